@@ -0,0 +1,1213 @@
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A bounded cache of lookup results keyed by (name, query type).
+ * Entries expire with the smallest TTL of their records. NXDOMAIN and empty
+ * answers are kept as negative entries so they are not asked for again. An NXDOMAIN is
+ * also kept for the name as a whole, and answers for every name below it (RFC 8020).
+ *
+ * Each entry is one block of off-heap memory holding its key and its records in
+ * uncompressed wire format, so the heap the cache takes does not grow with the number of
+ * records in it. Blocks come from slab classes of power-of-two sizes carved out of 1 MiB
+ * direct buffers. An open-addressing index maps a hash of the key to its block. When the
+ * cache is full, a CLOCK hand sweeps the index and evicts the first entry that is expired
+ * or has not been read since the hand last passed it.
+ *
+ * {@link #copyAnswers} serves an entry straight into a packet without allocating;
+ * {@link #get} decodes it into records.
+ *
+ * Entries that keep being read are refreshed before they expire: once a fraction of an
+ * entry's TTL has passed, a hit asks the {@link Refresher} to look it up again, and the
+ * new answer replaces it. With serve-stale on (RFC 8767), an entry that has expired is
+ * still served, with a short TTL, for a while after, and each hit on it asks for a refresh.
+ *
+ * The cache may be split by name hash into stripes, each with its own lock, index and
+ * memory, so lookups of different names on many cores do not contend on one lock. All
+ * entries of a name live in the same stripe, and an NXDOMAIN cut is found by asking the
+ * stripe of each ancestor. Each stripe gets an equal share of the entry and memory limits.
+ * Readers share a stripe's lock, so the fields a hit updates in a block (the reference bit,
+ * the hit count and when a refresh was last asked for) are updated atomically.
+ */
+public class AnswerCache {
+    public static final int RCODE_NO_ERROR = 0;
+    public static final int RCODE_NAME_ERROR = 3;
+    public static final int MISS = -1;                    // copyAnswers: nothing cached
+    public static final int NAME_ERROR = -2;              // copyAnswers: cached NXDOMAIN
+    static final int DEFAULT_MAX_ENTRIES = 10000;
+    static final long DEFAULT_MAX_BYTES = 64L << 20;
+    private static final int DEFAULT_NEGATIVE_TTL = 300;  // used when a negative answer has no SOA
+    private static final int MAX_TTL = 86400;             // never trust a record for more than a day
+    private static final double DEFAULT_PREFETCH_FRACTION = 0.9;
+    private static final int DEFAULT_PREFETCH_MIN_HITS = 2;
+    private static final int STALE_ANSWER_TTL = 30;       // RFC 8767 section 4
+    private static final int REFRESH_RETRY_INTERVAL = 30000;  // RFC 8767 failure recheck timer, in ms
+    private static final int NAME_ERROR_QTYPE = 0;        // key type of the entry saying a name does not exist
+
+    private static final int PAGE_SIZE = 1 << 20;
+    private static final int MIN_BLOCK_SHIFT = 6;         // 64 byte blocks
+    private static final int SLAB_CLASSES = 7;            // up to 4 KiB blocks
+    private static final int MAX_BLOCK_SIZE = 1 << (MIN_BLOCK_SHIFT + SLAB_CLASSES - 1);
+    private static final int SLOT_BITS = 28;
+
+    // block layout
+    private static final int HASH = 0;
+    private static final int REFERENCED = 4;
+    private static final int RCODE = 5;
+    private static final int QTYPE = 6;
+    private static final int EXPIRES_AT = 8;
+    private static final int STORED_AT = 16;
+    private static final int REFRESH_REQUESTED_AT = 24;
+    private static final int HITS = 32;
+    private static final int KEY_LENGTH = 36;
+    private static final int MESSAGE_LENGTH = 38;
+    private static final int KEY = 40;
+    private static final int ANSWER_COUNT = 6;            // offset of ANCOUNT in the stored message header
+    private static final int REFERENCED_BIT = 1 << 24;    // REFERENCED as the top byte of the int at its offset
+
+    private static final VarHandle INT_VIEW = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle LONG_VIEW =
+            MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    private final Stripe[] stripes;
+    private volatile Refresher refresher;
+    private volatile double prefetchFraction = DEFAULT_PREFETCH_FRACTION;
+    private volatile int prefetchMinHits = DEFAULT_PREFETCH_MIN_HITS;
+    private volatile long maxStaleMillis = 0;
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+    private final LongAdder staleHitCount = new LongAdder();
+    private final LongAdder refreshRequestCount = new LongAdder();
+    private final LongAdder nameErrorCutCount = new LongAdder();
+
+    public AnswerCache() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    public AnswerCache(int maxEntries) {
+        this(maxEntries, DEFAULT_MAX_BYTES);
+    }
+
+    public AnswerCache(int maxEntries, long maxBytes) {
+        this(1, maxEntries, maxBytes);
+    }
+
+    /**
+     * Create an answer cache.
+     *
+     * @param stripes    - the number of stripes, e.g. one per resolver shard.
+     * @param maxEntries - the number of entries kept before older ones are evicted, across all stripes.
+     * @param maxBytes   - the off-heap memory the entries may take, across all stripes; each
+     *                     block size of a stripe may take one 1 MiB page beyond its share.
+     */
+    public AnswerCache(int stripes, int maxEntries, long maxBytes) {
+        if (stripes < 1) {
+            throw new IllegalArgumentException("stripes must be positive: " + stripes);
+        }
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be positive: " + maxEntries);
+        }
+        this.stripes = new Stripe[stripes];
+        for (int i = 0; i < stripes; i++) {
+            this.stripes[i] = new Stripe(Math.max(1, maxEntries / stripes), maxBytes / stripes);
+        }
+    }
+
+    /**
+     * Set who is asked to look up entries again before they expire, or after under
+     * serve-stale. It is called by the thread that hit the entry once the cache is unlocked,
+     * and should hand the lookup off rather than do it.
+     *
+     * @param refresher - the refresher, or null to refresh nothing.
+     */
+    public void setRefresher(Refresher refresher) {
+        this.refresher = refresher;
+    }
+
+    /**
+     * Set when popular entries are refreshed ahead of expiry.
+     *
+     * @param fraction - the fraction of its TTL an entry must have used up, in (0, 1];
+     *                   0 turns prefetching off.
+     * @param minHits  - how many times the entry must have been read since it was stored.
+     */
+    public void setPrefetch(double fraction, int minHits) {
+        if (fraction < 0 || fraction > 1) {
+            throw new IllegalArgumentException("fraction must be in [0, 1]: " + fraction);
+        }
+        this.prefetchFraction = fraction;
+        this.prefetchMinHits = minHits;
+    }
+
+    /**
+     * Serve entries for a while after they expire, with a TTL of 30 seconds, while they
+     * are refreshed (RFC 8767). The refresh is retried at most every 30 seconds, and the
+     * stale answer is kept if it fails.
+     *
+     * @param maxStaleSeconds - how long after expiry an entry may still be served; 0 turns
+     *                        serve-stale off.
+     */
+    public void setServeStale(int maxStaleSeconds) {
+        if (maxStaleSeconds < 0) {
+            throw new IllegalArgumentException("maxStaleSeconds must not be negative: " + maxStaleSeconds);
+        }
+        this.maxStaleMillis = maxStaleSeconds * 1000L;
+    }
+
+    public int getStripeCount() {
+        return stripes.length;
+    }
+
+    /**
+     * Look up a cached result.
+     *
+     * @param name  - the name being looked up.
+     * @param qtype - the query type (1 for A, 28 for AAAA, ...).
+     * @return the live entry, a stale one under serve-stale, or null if there is none.
+     */
+    public Entry get(String name, int qtype) {
+        return stripeFor(name).get(name, qtype);
+    }
+
+    /**
+     * Copy the answer records of a cached result into a packet, with their TTLs counted
+     * down to what remains. Owners matching the question become pointers to it; other names
+     * stay uncompressed. Nothing is allocated.
+     *
+     * @param name   - the name being looked up.
+     * @param qtype  - the query type.
+     * @param target - a packet with its question at offset 12; the records go at its position.
+     * @return the number of records copied, {@link #NAME_ERROR} for a cached NXDOMAIN, or
+     * {@link #MISS}.
+     */
+    public int copyAnswers(String name, int qtype, ByteBuffer target) {
+        return stripeFor(name).copyAnswers(name, qtype, target);
+    }
+
+    /**
+     * The negative TTL left on a cached empty answer or NXDOMAIN covering a lookup, for the
+     * SOA a negative response carries (RFC 2308 section 5). Nothing is allocated when the
+     * entry for the name and type itself is found.
+     *
+     * @param name  - the name being looked up.
+     * @param qtype - the query type.
+     * @return the seconds left, or -1 if no live negative entry covers the lookup.
+     */
+    public int getNegativeTtl(String name, int qtype) {
+        int ttl = stripeFor(name).negativeTtl(name, qtype);
+        String suffix = ttl < 0 ? canonicalName(name) : "";
+        while (ttl < 0 && !suffix.isEmpty()) {
+            ttl = stripeFor(suffix).negativeTtl(suffix, NAME_ERROR_QTYPE);
+            int dot = suffix.indexOf('.');
+            suffix = dot < 0 ? "" : suffix.substring(dot + 1);
+        }
+        return ttl;
+    }
+
+    /**
+     * Cache the answers to a lookup. An empty answer list is cached as a negative entry.
+     *
+     * @param name    - the name that was looked up.
+     * @param qtype   - the query type.
+     * @param answers - the answer records.
+     * @param maxTtl  - an upper bound on the entry's TTL, e.g. from a CNAME that led here.
+     */
+    public void putAnswers(String name, int qtype, List<ResponseRecord> answers, int maxTtl) {
+        if (answers.isEmpty()) {
+            putNegative(name, qtype, RCODE_NO_ERROR, -1);
+            return;
+        }
+
+        int ttl = maxTtl;
+        for (ResponseRecord answer : answers) {
+            ttl = Math.min(ttl, answer.getTtl());
+        }
+        stripeFor(name).put(name, qtype, answers, RCODE_NO_ERROR, ttl);
+    }
+
+    public void putAnswers(String name, int qtype, List<ResponseRecord> answers) {
+        putAnswers(name, qtype, answers, MAX_TTL);
+    }
+
+    /**
+     * Cache a negative result. An NXDOMAIN is cached for the name under every type too, and
+     * makes {@link #findNameError} answer for the names below it.
+     *
+     * @param name  - the name that was looked up.
+     * @param qtype - the query type.
+     * @param rCode - 3 for NXDOMAIN, 0 for an empty (no data) answer.
+     * @param ttl   - the negative TTL from the authority's SOA, or -1 if there was none.
+     */
+    public void putNegative(String name, int qtype, int rCode, int ttl) {
+        if (ttl < 0) {
+            ttl = DEFAULT_NEGATIVE_TTL;
+        }
+        Stripe stripe = stripeFor(name);
+        stripe.put(name, qtype, new ArrayList<ResponseRecord>(), rCode, ttl);
+        if (rCode == RCODE_NAME_ERROR) {
+            stripe.put(name, NAME_ERROR_QTYPE, new ArrayList<ResponseRecord>(), rCode, ttl);
+        }
+    }
+
+    /**
+     * Find a live cached NXDOMAIN for a name or one of its ancestors. Nothing exists below a
+     * name that does not exist (RFC 8020), so a lookup it covers can be answered NXDOMAIN
+     * without asking, whatever its type; random subdomains of a dead name cost one query.
+     *
+     * @param name - the name being looked up.
+     * @return the nonexistent name, in canonical form, or null if none is cached.
+     */
+    public String findNameError(String name) {
+        String suffix = canonicalName(name);
+        while (!suffix.isEmpty()) {
+            if (stripeFor(suffix).isNameError(suffix)) {
+                return suffix;
+            }
+            int dot = suffix.indexOf('.');
+            suffix = dot < 0 ? "" : suffix.substring(dot + 1);
+        }
+        return null;
+    }
+
+    /**
+     * Write the live entries to a file so they can be read back by {@link #restore}: the
+     * number of sections, one per stripe, then the sections. Expiry times in the blocks are
+     * absolute.
+     *
+     * @param channel  - the file, open for reading and writing.
+     * @param position - where in the file to start.
+     * @return the position just past what was written.
+     * @throws IOException if the file cannot be mapped.
+     */
+    long snapshot(FileChannel channel, long position) throws IOException {
+        channel.map(FileChannel.MapMode.READ_WRITE, position, 4).putInt(stripes.length);
+        position += 4;
+        for (Stripe stripe : stripes) {
+            position = stripe.snapshotSection(channel, position);
+        }
+        return position;
+    }
+
+    /**
+     * Read back entries written by {@link #snapshot}, skipping those that have expired
+     * since, those already cached, which are newer, and those whose records do not decode,
+     * e.g. from a damaged file. Blocks are copied as they are. The
+     * snapshot may have been written by a cache with any number of stripes; each entry goes
+     * to the stripe of its name here.
+     *
+     * @param source - the snapshot, at the position {@link #snapshot} started at; it is
+     *               left just past the entries.
+     * @return the number of entries restored.
+     * @throws IOException if the entries are malformed.
+     */
+    int restore(ByteBuffer source) throws IOException {
+        int restored = 0;
+        int sections = source.getInt();
+        for (int i = 0; i < sections; i++) {
+            restored += restoreSection(source);
+        }
+        return restored;
+    }
+
+    private int restoreSection(ByteBuffer source) throws IOException {
+        int restored = 0;
+        long now = System.currentTimeMillis();
+        int count = source.getInt();
+        for (int i = 0; i < count; i++) {
+            int blockLength = source.getShort() & 0xFFFF;
+            int block = source.position();
+            if (blockLength < KEY || blockLength > MAX_BLOCK_SIZE || blockLength > source.remaining()
+                    || KEY + source.getShort(block + KEY_LENGTH) + source.getShort(block + MESSAGE_LENGTH)
+                    != blockLength) {
+                throw new IOException("Malformed cache entry " + i + " in snapshot");
+            }
+            source.position(block + blockLength);
+            if (source.getLong(block + EXPIRES_AT) <= now) {
+                continue;
+            }
+            int message = block + KEY + source.getShort(block + KEY_LENGTH);
+            if (!isWellFormed(source, message, source.getShort(block + MESSAGE_LENGTH))) {
+                continue;
+            }
+
+            char[] key = new char[source.getShort(block + KEY_LENGTH)];
+            for (int j = 0; j < key.length; j++) {
+                key[j] = (char) (source.get(block + KEY + j) & 0xFF);
+            }
+            String name = new String(key);
+            int qtype = source.getShort(block + QTYPE) & 0xFFFF;
+            if (stripeFor(name).restoreEntry(name, qtype, source, block, blockLength)) {
+                restored++;
+            }
+        }
+        return restored;
+    }
+
+    /**
+     * Check a restored entry's message is what {@link Stripe#encode} writes, since it is
+     * copied into responses without being decoded: a header whose only records are its
+     * answers, each with an uncompressed owner and data that decodes, ending where the
+     * message does.
+     */
+    private static boolean isWellFormed(ByteBuffer source, int message, int length) {
+        if (length < DNSMessage.HEADER_SIZE) {
+            return false;
+        }
+        byte[] data = new byte[length];
+        source.get(message, data);
+        try {
+            DNSMessage records = new DNSMessage(data, length);
+            if (records.getQuestionCount() != 0 || records.getAuthorityCount() != 0
+                    || records.getAdditionalCount() != 0) {
+                return false;
+            }
+            int end = DNSMessage.HEADER_SIZE;
+            while (records.nextRecord()) {
+                int owner = records.getRecordNameOffset();
+                if (records.getRecordOwner().wire().length != records.skipName(owner) - owner) {
+                    return false;  // compressed
+                }
+                records.getRData();
+                end = records.getRdataOffset() + records.getRdataLength();
+            }
+            return end == length;
+        } catch (IOException | IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            size += stripe.size();
+        }
+        return size;
+    }
+
+    public void clear() {
+        for (Stripe stripe : stripes) {
+            stripe.clear();
+        }
+    }
+
+    /**
+     * @return the off-heap memory taken by the cache's pages, in bytes.
+     */
+    public long getAllocatedBytes() {
+        long bytes = 0;
+        for (Stripe stripe : stripes) {
+            bytes += stripe.getAllocatedBytes();
+        }
+        return bytes;
+    }
+
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.sum();
+    }
+
+    /**
+     * @return how many hits were served from expired entries under serve-stale.
+     */
+    public long getStaleHitCount() {
+        return staleHitCount.sum();
+    }
+
+    /**
+     * @return how many times the refresher was asked to look an entry up again.
+     */
+    public long getRefreshRequestCount() {
+        return refreshRequestCount.sum();
+    }
+
+    /**
+     * @return how many lookups {@link #findNameError} answered from a nonexistent name.
+     */
+    public long getNameErrorCutCount() {
+        return nameErrorCutCount.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("AnswerCache size %d hits %d misses %d evictions %d stale %d refreshes %d"
+                        + " nxdomain cuts %d", size(), getHitCount(), getMissCount(), getEvictionCount(),
+                getStaleHitCount(), getRefreshRequestCount(), getNameErrorCutCount());
+    }
+
+    /**
+     * Normalise a domain name so that lookups differing only in case or a trailing dot share an entry.
+     */
+    static String canonicalName(String name) {
+        String canonical = name.toLowerCase();
+        if (canonical.endsWith(".")) {
+            canonical = canonical.substring(0, canonical.length() - 1);
+        }
+        return canonical;
+    }
+
+    private static int canonicalLength(String name) {
+        return name.endsWith(".") ? name.length() - 1 : name.length();
+    }
+
+    /**
+     * Hash the canonical form of a name alone, to pick the stripe or shard that owns it.
+     */
+    static int nameHash(String name) {
+        return hash(name, 0);
+    }
+
+    /**
+     * Hash the canonical form of a key without building it.
+     */
+    private static int hash(String name, int qtype) {
+        int h = qtype;
+        for (int i = 0, length = canonicalLength(name); i < length; i++) {
+            h = 31 * h + toLowerCase(name.charAt(i));
+        }
+        // murmur3 finaliser: spread the bits so linear probing sees few clusters
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private static char toLowerCase(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    private static long refOf(long indexEntry) {
+        return (indexEntry & 0xFFFFFFFFL) - 1;
+    }
+
+    private static int slabClass(int blockSize) {
+        int slabClass = 0;
+        while ((1 << (MIN_BLOCK_SHIFT + slabClass)) < blockSize) {
+            slabClass++;
+        }
+        return slabClass;
+    }
+
+    /**
+     * Compare a wire name in a page with an uncompressed name in a packet, ignoring case.
+     */
+    private static boolean sameName(ByteBuffer page, int offset, int length, ByteBuffer packet, int packetOffset) {
+        if (packetOffset + length > packet.position()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (DNSName.toLowerCase(page.get(offset + i)) != DNSName.toLowerCase(packet.get(packetOffset + i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Stripe stripeFor(String name) {
+        return stripes[(nameHash(name) & 0x7FFFFFFF) % stripes.length];
+    }
+
+    /**
+     * Ask the refresher to look an entry up again. The entry stays as it is until the new
+     * answer is put. Called without a stripe's lock.
+     */
+    private void requestRefresh(String name, int qtype) {
+        Refresher target = refresher;
+        if (target != null) {
+            refreshRequestCount.increment();
+            target.refresh(name, qtype);
+        }
+    }
+
+    /**
+     * Set an entry's reference bit. Readers sharing the lock may do so at once, so the bit
+     * is set with a compare-and-set of the int holding it.
+     */
+    private static void markReferenced(ByteBuffer page, int block) {
+        int word;
+        do {
+            word = (int) INT_VIEW.getVolatile(page, block + REFERENCED);
+            if ((word & REFERENCED_BIT) != 0) {
+                return;
+            }
+        } while (!INT_VIEW.compareAndSet(page, block + REFERENCED, word, word | REFERENCED_BIT));
+    }
+
+    /**
+     * One stripe of the cache: its own lock, index, slabs and CLOCK hand.
+     */
+    private final class Stripe {
+        private final int maxEntries;
+        private final long maxBytes;
+        private final long[] index;                           // (hash << 32) | (ref + 1); 0 is an empty slot
+        private final int indexMask;
+        private final Slab[] slabs = new Slab[SLAB_CLASSES];
+        private final ByteBuffer scratch = ByteBuffer.allocate(MAX_BLOCK_SIZE);
+        private final StampedLock lock = new StampedLock();
+        private int size = 0;
+        private int clockHand = 0;
+        private long allocatedBytes = 0;
+
+        Stripe(int maxEntries, long maxBytes) {
+            this.maxEntries = maxEntries;
+            this.maxBytes = maxBytes;
+            index = new long[Integer.highestOneBit(Math.max(16, 2 * maxEntries - 1)) << 1];  // at most half full
+            indexMask = index.length - 1;
+            for (int i = 0; i < SLAB_CLASSES; i++) {
+                slabs[i] = new Slab(1 << (MIN_BLOCK_SHIFT + i));
+            }
+        }
+
+        Entry get(String name, int qtype) {
+            long now = System.currentTimeMillis();
+            Entry entry;
+            boolean refresh;
+            long stamp = lock.readLock();
+            try {
+                long ref = find(name, qtype, hash(name, qtype), now);
+                if (ref < 0) {
+                    missCount.increment();
+                    return null;
+                }
+                hitCount.increment();
+                refresh = claimRefresh(ref, now);
+                entry = decode(ref);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+            if (refresh) {
+                requestRefresh(name, qtype);
+            }
+            return entry;
+        }
+
+        int copyAnswers(String name, int qtype, ByteBuffer target) {
+            long now = System.currentTimeMillis();
+            int count;
+            boolean refresh;
+            long stamp = lock.readLock();
+            try {
+                long ref = find(name, qtype, hash(name, qtype), now);
+                if (ref < 0) {
+                    missCount.increment();
+                    return MISS;
+                }
+                hitCount.increment();
+                refresh = claimRefresh(ref, now);
+                count = copyRecords(ref, now, target);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+            if (refresh) {
+                requestRefresh(name, qtype);
+            }
+            return count;
+        }
+
+        /**
+         * Copy an entry's records into a packet. The caller holds the stripe's lock.
+         *
+         * @return the number of records copied, or {@link #NAME_ERROR}.
+         */
+        private int copyRecords(long ref, long now, ByteBuffer target) {
+            ByteBuffer page = page(ref);
+            int block = blockOffset(ref);
+            if (page.get(block + RCODE) == RCODE_NAME_ERROR) {
+                return NAME_ERROR;
+            }
+            int message = block + KEY + page.getShort(block + KEY_LENGTH);
+            int messageLength = page.getShort(block + MESSAGE_LENGTH);
+            int count = page.getShort(message + ANSWER_COUNT);
+            int elapsed = (int) ((now - page.getLong(block + STORED_AT)) / 1000);
+            long expiresAt = page.getLong(block + EXPIRES_AT);
+            int remaining = expiresAt > now ? (int) ((expiresAt - now) / 1000) : STALE_ANSWER_TTL;
+            int pos = message + DNSMessage.HEADER_SIZE;
+            for (int i = 0; i < count; i++) {
+                int owner = pos;
+                while (page.get(pos) != 0) {
+                    pos += page.get(pos) + 1;
+                }
+                pos++;
+                if (sameName(page, owner, pos - owner, target, DNSMessage.HEADER_SIZE)) {
+                    target.putShort((short) (0xC000 | DNSMessage.HEADER_SIZE));
+                } else {
+                    target.put(target.position(), page, owner, pos - owner);
+                    target.position(target.position() + pos - owner);
+                }
+                int fixedEnd = pos + 10 + (page.getShort(pos + 8) & 0xFFFF);
+                int start = target.position();
+                target.put(start, page, pos, fixedEnd - pos);
+                target.position(start + fixedEnd - pos);
+                int ttl = expiresAt > now ? page.getInt(pos + 4) - elapsed : STALE_ANSWER_TTL;
+                target.putInt(start + 4, Math.max(0, Math.min(ttl, remaining)));
+                pos = fixedEnd;
+            }
+            return count;
+        }
+
+        /**
+         * @return the seconds left on a negative entry, as {@link #copyRecords} counts them, or
+         * -1 if the entry is not cached, is positive, or is past serving stale.
+         */
+        int negativeTtl(String name, int qtype) {
+            long now = System.currentTimeMillis();
+            long stamp = lock.readLock();
+            try {
+                int slot = findSlot(name, qtype, hash(name, qtype));
+                if (slot < 0) {
+                    return -1;
+                }
+                long ref = refOf(index[slot]);
+                ByteBuffer page = page(ref);
+                int block = blockOffset(ref);
+                int message = block + KEY + page.getShort(block + KEY_LENGTH);
+                long expiresAt = page.getLong(block + EXPIRES_AT);
+                if (expiresAt + maxStaleMillis <= now || (page.get(block + RCODE) != RCODE_NAME_ERROR
+                        && page.getShort(message + ANSWER_COUNT) != 0)) {
+                    return -1;
+                }
+                return expiresAt > now ? (int) ((expiresAt - now) / 1000) : STALE_ANSWER_TTL;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        /**
+         * @param suffix - a name in canonical form.
+         * @return true if a live NXDOMAIN is cached for the name itself.
+         */
+        boolean isNameError(String suffix) {
+            long now = System.currentTimeMillis();
+            long stamp = lock.readLock();
+            try {
+                int slot = findSlot(suffix, NAME_ERROR_QTYPE, hash(suffix, NAME_ERROR_QTYPE));
+                if (slot >= 0) {
+                    long ref = refOf(index[slot]);
+                    if (isLive(ref, now)) {
+                        markReferenced(page(ref), blockOffset(ref));
+                        nameErrorCutCount.increment();
+                        return true;
+                    }
+                }
+                return false;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        void put(String name, int qtype, List<ResponseRecord> answers, int rCode, int ttl) {
+            if (ttl <= 0) {
+                return;  // zero TTL records must not be cached
+            }
+            long now = System.currentTimeMillis();
+            long stamp = lock.writeLock();
+            try {
+                int hash = hash(name, qtype);
+                int existing = findSlot(name, qtype, hash);
+                if (existing >= 0) {
+                    remove(existing);
+                }
+
+                int blockSize = encode(name, qtype, answers, rCode, now, now + Math.min(ttl, MAX_TTL) * 1000L, hash);
+                if (blockSize < 0) {
+                    return;  // larger than the largest block
+                }
+                place(hash, scratch, 0, blockSize);
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        /**
+         * Copy a block into the slab of its size, evicting to make room, and index it.
+         * The caller holds the write lock and has removed any entry with the same key.
+         */
+        private void place(int hash, ByteBuffer source, int offset, int blockSize) {
+            int slabClass = slabClass(blockSize);
+            while (size >= maxEntries && evictOne(-1)) {
+                // make room in the index
+            }
+            int slot = slabs[slabClass].allocate();
+            while (slot < 0 && evictOne(slabClass)) {
+                slot = slabs[slabClass].allocate();
+            }
+            if (slot < 0) {
+                return;
+            }
+
+            long ref = ((long) slabClass << SLOT_BITS) | slot;
+            int block = blockOffset(ref);
+            ByteBuffer page = page(ref);
+            page.put(block, source, offset, blockSize);
+            page.putInt(block + HASH, hash);
+            page.put(block + REFERENCED, (byte) 0);
+            page.putLong(block + REFRESH_REQUESTED_AT, 0);
+            insert(hash, ref);
+        }
+
+        /**
+         * Write the stripe's live entries as one section: [count] then [length, block] for each.
+         * Each stripe is consistent in itself; the stripes are written one after another.
+         */
+        long snapshotSection(FileChannel channel, long position) throws IOException {
+            long stamp = lock.readLock();
+            try {
+                long now = System.currentTimeMillis();
+                long length = 4;
+                int count = 0;
+                for (long entry : index) {
+                    if (entry != 0 && isLive(refOf(entry), now)) {
+                        length += 2 + blockLength(refOf(entry));
+                        count++;
+                    }
+                }
+
+                MappedByteBuffer target = channel.map(FileChannel.MapMode.READ_WRITE, position, length);
+                target.putInt(count);
+                for (long entry : index) {
+                    if (entry != 0 && isLive(refOf(entry), now)) {
+                        long ref = refOf(entry);
+                        int blockLength = blockLength(ref);
+                        target.putShort((short) blockLength);
+                        target.put(target.position(), page(ref), blockOffset(ref), blockLength);
+                        target.position(target.position() + blockLength);
+                    }
+                }
+                return position + length;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        /**
+         * Place a block read from a snapshot unless a live entry for its key is cached.
+         *
+         * @return true if the block was placed.
+         */
+        boolean restoreEntry(String name, int qtype, ByteBuffer source, int block, int blockLength) {
+            long now = System.currentTimeMillis();
+            int hash = hash(name, qtype);
+            long stamp = lock.writeLock();
+            try {
+                int existing = findSlot(name, qtype, hash);
+                if (existing >= 0 && !isLive(refOf(index[existing]), now)) {
+                    remove(existing);
+                    existing = -1;
+                }
+                if (existing < 0) {
+                    place(hash, source, block, blockLength);
+                    return true;
+                }
+                return false;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        /**
+         * Write an entry's block into the scratch buffer.
+         *
+         * @return the block's size, or -1 if it would not fit in the largest block.
+         */
+        private int encode(String name, int qtype, List<ResponseRecord> answers, int rCode, long now, long expiresAt,
+                           int hash) {
+            try {
+                scratch.clear();
+                scratch.putInt(HASH, hash);
+                scratch.put(REFERENCED, (byte) 0);
+                scratch.put(RCODE, (byte) rCode);
+                scratch.putShort(QTYPE, (short) qtype);
+                scratch.putLong(EXPIRES_AT, expiresAt);
+                scratch.putLong(STORED_AT, now);
+                scratch.putLong(REFRESH_REQUESTED_AT, 0);
+                scratch.putInt(HITS, 0);
+                scratch.position(KEY);
+                int keyLength = canonicalLength(name);
+                for (int i = 0; i < keyLength; i++) {
+                    scratch.put((byte) toLowerCase(name.charAt(i)));
+                }
+                scratch.putShort(KEY_LENGTH, (short) keyLength);
+
+                int message = scratch.position();
+                scratch.put(new byte[DNSMessage.HEADER_SIZE]);
+                scratch.putShort(message + ANSWER_COUNT, (short) answers.size());
+                for (ResponseRecord answer : answers) {
+                    answer.getOwner().writeTo(scratch);
+                    scratch.putShort((short) answer.getType());
+                    scratch.putShort((short) answer.getRecordClass());
+                    scratch.putInt(answer.getTtl());
+                    int lengthOffset = scratch.position();
+                    scratch.putShort((short) 0);
+                    answer.getRData().writeTo(scratch, null);
+                    scratch.putShort(lengthOffset, (short) (scratch.position() - lengthOffset - 2));
+                }
+                scratch.putShort(MESSAGE_LENGTH, (short) (scratch.position() - message));
+                return scratch.position();
+            } catch (BufferOverflowException e) {
+                return -1;
+            }
+        }
+
+        private Entry decode(long ref) {
+            ByteBuffer page = page(ref);
+            int block = blockOffset(ref);
+            markReferenced(page, block);
+
+            int rCode = page.get(block + RCODE);
+            long storedAt = page.getLong(block + STORED_AT);
+            long expiresAt = page.getLong(block + EXPIRES_AT);
+            int message = block + KEY + page.getShort(block + KEY_LENGTH);
+            byte[] data = new byte[page.getShort(block + MESSAGE_LENGTH)];
+            page.get(message, data);
+
+            List<ResponseRecord> answers = new ArrayList<>();
+            long now = System.currentTimeMillis();
+            int elapsed = (int) ((now - storedAt) / 1000);
+            boolean stale = expiresAt <= now;
+            try {
+                DNSMessage records = new DNSMessage(data, data.length);
+                while (records.nextRecord()) {
+                    int ttl = stale ? STALE_ANSWER_TTL : Math.max(0, records.getRecordTtl() - elapsed);
+                    answers.add(new ResponseRecord(records.getRecordOwner(), records.getRecordType(),
+                            records.getRecordClass(), ttl, records.getRData()));
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Corrupt answer cache block", e);
+            }
+            return new Entry(answers, rCode, expiresAt, stale);
+        }
+
+        /**
+         * @return the ref of the live or servable stale entry for a key, or -1. Marks the entry
+         * referenced and counts the hit on it. The caller holds the stripe's lock.
+         */
+        private long find(String name, int qtype, int hash, long now) {
+            int slot = findSlot(name, qtype, hash);
+            if (slot < 0) {
+                return -1;
+            }
+            long ref = refOf(index[slot]);
+            ByteBuffer page = page(ref);
+            int block = blockOffset(ref);
+            long expiresAt = page.getLong(block + EXPIRES_AT);
+            if (expiresAt + maxStaleMillis <= now) {
+                return -1;  // the CLOCK hand reclaims it
+            }
+            markReferenced(page, block);
+            INT_VIEW.getAndAdd(page, block + HITS, 1);
+            if (expiresAt <= now) {
+                staleHitCount.increment();
+            }
+            return ref;
+        }
+
+        /**
+         * Decide whether a hit entry should be looked up again: it is stale, or popular and near
+         * expiry, and no refresh was asked for recently. Of the readers hitting it at once, one
+         * wins. The caller holds the stripe's lock, and asks for the refresh once it has let go of it.
+         *
+         * @return true if the caller should call {@link #requestRefresh}.
+         */
+        private boolean claimRefresh(long ref, long now) {
+            if (refresher == null) {
+                return false;
+            }
+            ByteBuffer page = page(ref);
+            int block = blockOffset(ref);
+            long expiresAt = page.getLong(block + EXPIRES_AT);
+            if (expiresAt > now) {
+                long storedAt = page.getLong(block + STORED_AT);
+                if (prefetchFraction <= 0 || (int) INT_VIEW.getVolatile(page, block + HITS) < prefetchMinHits
+                        || now - storedAt < prefetchFraction * (expiresAt - storedAt)) {
+                    return false;
+                }
+            }
+            long requestedAt = (long) LONG_VIEW.getVolatile(page, block + REFRESH_REQUESTED_AT);
+            return now - requestedAt >= REFRESH_RETRY_INTERVAL
+                    && LONG_VIEW.compareAndSet(page, block + REFRESH_REQUESTED_AT, requestedAt, now);
+        }
+
+        private int findSlot(String name, int qtype, int hash) {
+            for (int slot = hash & indexMask; ; slot = (slot + 1) & indexMask) {
+                long entry = index[slot];
+                if (entry == 0) {
+                    return -1;
+                }
+                if ((int) (entry >>> 32) == hash && keyEquals(refOf(entry), name, qtype)) {
+                    return slot;
+                }
+            }
+        }
+
+        private boolean keyEquals(long ref, String name, int qtype) {
+            ByteBuffer page = page(ref);
+            int block = blockOffset(ref);
+            int length = canonicalLength(name);
+            if (page.getShort(block + QTYPE) != (short) qtype || page.getShort(block + KEY_LENGTH) != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (page.get(block + KEY + i) != (byte) toLowerCase(name.charAt(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void insert(int hash, long ref) {
+            int slot = hash & indexMask;
+            while (index[slot] != 0) {
+                slot = (slot + 1) & indexMask;
+            }
+            index[slot] = ((long) hash << 32) | (ref + 1);
+            size++;
+        }
+
+        /**
+         * Free an entry's block and delete it from the index, shifting later entries of its
+         * probe run back so lookups never meet a hole.
+         */
+        private void remove(int slot) {
+            long ref = refOf(index[slot]);
+            slabs[(int) (ref >>> SLOT_BITS)].free((int) (ref & ((1 << SLOT_BITS) - 1)));
+            size--;
+
+            int hole = slot;
+            index[hole] = 0;
+            for (int next = (hole + 1) & indexMask; index[next] != 0; next = (next + 1) & indexMask) {
+                int home = (int) (index[next] >>> 32) & indexMask;
+                boolean between = hole <= next ? hole < home && home <= next : hole < home || home <= next;
+                if (!between) {
+                    index[hole] = index[next];
+                    index[next] = 0;
+                    hole = next;
+                }
+            }
+        }
+
+        /**
+         * Advance the CLOCK hand to the next entry that is expired or unreferenced, clearing
+         * reference bits on the way, and evict it.
+         *
+         * @param slabClass - only evict blocks of this size class, or -1 for any.
+         * @return false if no entry could be evicted.
+         */
+        private boolean evictOne(int slabClass) {
+            long now = System.currentTimeMillis();
+            for (int step = 0; step < 2 * index.length; step++) {
+                int slot = clockHand;
+                clockHand = (clockHand + 1) & indexMask;
+                long entry = index[slot];
+                if (entry == 0) {
+                    continue;
+                }
+                long ref = refOf(entry);
+                if (slabClass >= 0 && (int) (ref >>> SLOT_BITS) != slabClass) {
+                    continue;
+                }
+                ByteBuffer page = page(ref);
+                int block = blockOffset(ref);
+                if (page.get(block + REFERENCED) != 0 && page.getLong(block + EXPIRES_AT) + maxStaleMillis > now) {
+                    page.put(block + REFERENCED, (byte) 0);
+                    continue;
+                }
+                remove(slot);
+                evictionCount.increment();
+                clockHand = slot;  // an entry may have shifted into the freed slot
+                return true;
+            }
+            return false;
+        }
+
+        int size() {
+            long stamp = lock.readLock();
+            try {
+                return size;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        void clear() {
+            long stamp = lock.writeLock();
+            try {
+                for (int slot = 0; slot < index.length; slot++) {
+                    if (index[slot] != 0) {
+                        long ref = refOf(index[slot]);
+                        slabs[(int) (ref >>> SLOT_BITS)].free((int) (ref & ((1 << SLOT_BITS) - 1)));
+                        index[slot] = 0;
+                    }
+                }
+                size = 0;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        long getAllocatedBytes() {
+            long stamp = lock.readLock();
+            try {
+                return allocatedBytes;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        private boolean isLive(long ref, long now) {
+            return page(ref).getLong(blockOffset(ref) + EXPIRES_AT) > now;
+        }
+
+        private int blockLength(long ref) {
+            ByteBuffer page = page(ref);
+            int block = blockOffset(ref);
+            return KEY + page.getShort(block + KEY_LENGTH) + page.getShort(block + MESSAGE_LENGTH);
+        }
+
+        private ByteBuffer page(long ref) {
+            return slabs[(int) (ref >>> SLOT_BITS)].page((int) (ref & ((1 << SLOT_BITS) - 1)));
+        }
+
+        private int blockOffset(long ref) {
+            return slabs[(int) (ref >>> SLOT_BITS)].offset((int) (ref & ((1 << SLOT_BITS) - 1)));
+        }
+
+        /**
+         * Blocks of one size, carved from pages allocated as they are needed.
+         */
+        private class Slab {
+            private final int blockSize;
+            private final int blocksPerPage;
+            private final List<ByteBuffer> pages = new ArrayList<>();
+            private int[] freeSlots = new int[16];
+            private int freeCount = 0;
+            private int used = 0;  // slots handed out from the end of the last page
+
+            Slab(int blockSize) {
+                this.blockSize = blockSize;
+                this.blocksPerPage = PAGE_SIZE / blockSize;
+            }
+
+            /**
+             * @return a free slot, or -1 if the memory budget is spent.
+             */
+            int allocate() {
+                if (freeCount > 0) {
+                    return freeSlots[--freeCount];
+                }
+                if (used == pages.size() * blocksPerPage) {
+                    if (!pages.isEmpty() && allocatedBytes + PAGE_SIZE > maxBytes) {
+                        return -1;
+                    }
+                    // aligned so the fields hits update atomically are too
+                    pages.add(ByteBuffer.allocateDirect(PAGE_SIZE + Long.BYTES - 1).alignedSlice(Long.BYTES));
+                    allocatedBytes += PAGE_SIZE;
+                }
+                return used++;
+            }
+
+            void free(int slot) {
+                if (freeCount == freeSlots.length) {
+                    int[] grown = new int[freeSlots.length * 2];
+                    System.arraycopy(freeSlots, 0, grown, 0, freeCount);
+                    freeSlots = grown;
+                }
+                freeSlots[freeCount++] = slot;
+            }
+
+            ByteBuffer page(int slot) {
+                return pages.get(slot / blocksPerPage);
+            }
+
+            int offset(int slot) {
+                return (slot % blocksPerPage) * blockSize;
+            }
+        }
+    }
+
+    /**
+     * Looks cached entries up again so they can be replaced before, or after, they expire.
+     */
+    public interface Refresher {
+        /**
+         * @param name  - the name to look up, as it was asked for.
+         * @param qtype - the query type.
+         */
+        void refresh(String name, int qtype);
+    }
+
+    /**
+     * A cached lookup result, decoded.
+     */
+    public static class Entry {
+        private final List<ResponseRecord> answers;
+        private final int rCode;
+        private final long expiresAt;
+        private final boolean stale;
+
+        Entry(List<ResponseRecord> answers, int rCode, long expiresAt, boolean stale) {
+            this.answers = answers;
+            this.rCode = rCode;
+            this.expiresAt = expiresAt;
+            this.stale = stale;
+        }
+
+        /**
+         * @return true if the entry had expired and is served under serve-stale.
+         */
+        public boolean isStale() {
+            return stale;
+        }
+
+        public boolean isNegative() {
+            return answers.isEmpty();
+        }
+
+        public boolean isNameError() {
+            return rCode == RCODE_NAME_ERROR;
+        }
+
+        public int getRCode() {
+            return rCode;
+        }
+
+        /**
+         * @return copies of the cached answers with their TTLs counted down to what remains.
+         */
+        public List<ResponseRecord> getAnswers() {
+            int remaining = getRemainingTtl();
+            List<ResponseRecord> result = new ArrayList<>(answers.size());
+            for (ResponseRecord answer : answers) {
+                result.add(answer.withTtl(Math.min(answer.getTtl(), remaining)));
+            }
+            return result;
+        }
+
+        public int getRemainingTtl() {
+            if (stale) {
+                return STALE_ANSWER_TTL;
+            }
+            return (int) Math.max(0, (expiresAt - System.currentTimeMillis()) / 1000);
+        }
+    }
+}
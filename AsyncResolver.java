@@ -0,0 +1,1532 @@
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A non-blocking iterative resolver. Every lookup is a small state machine driven by one
+ * event loop thread that owns a single DatagramChannel, so thousands of lookups can be in
+ * flight at once. Outstanding queries are matched to responses by (query id, server).
+ * Query ids are drawn from a SecureRandom used only by the event loop, so they cannot be
+ * predicted by an off-path spoofer and several resolvers never contend on one generator.
+ * A {@link Resolver} can run several of these as shards, sharing the caches, server
+ * statistics and metrics, which are safe to use from many threads.
+ *
+ * Each question goes to the candidate servers of a zone in order of measured RTT. If the
+ * first does not answer within the stagger delay the next is asked as well, and so on up
+ * to the parallel limit; the first valid response wins and the others are cancelled.
+ * Retransmission timeouts come from each server's RTT estimate (see {@link ServerStats}).
+ *
+ * Queries carry an EDNS(0) OPT record so servers can send large referrals over UDP. A
+ * truncated response is asked again over TCP, on a connection to that server that is kept
+ * open and shared by every query to it (see {@link TcpConnection}).
+ *
+ * With QNAME minimisation on (RFC 9156), each zone's servers are asked only for the name
+ * one label below the zone, as an A query, until the zone that holds the full name is
+ * reached; an NXDOMAIN on the way ends the lookup. Otherwise each server is asked the full
+ * question.
+ *
+ * Lookups for the same (name, type) that overlap in time share one resolution, whether
+ * they were asked for by callers or started internally for CNAME targets and nameservers
+ * without glue.
+ *
+ * Every lookup and upstream query is counted in {@link ResolverMetrics}. A sample of
+ * lookups also records a structured {@link ResolutionTrace}.
+ *
+ * Futures are completed on the event loop thread; callbacks attached to them must not block.
+ * A bug in a lookup's step fails that lookup with OTHER_ERROR and is counted in the metrics;
+ * the loop carries on with the others.
+ */
+public class AsyncResolver implements Closeable {
+    private static final int DEFAULT_PORT = 53;
+    private static final int RANDOM_GENERATOR_MAX_VALUE = 65535;
+    private static final int MAX_RECEIVE_BUF_SIZE = 65535;
+    private static final int DEFAULT_EDNS_PAYLOAD_SIZE = 1232;  // avoids IP fragmentation on common paths
+    private static final int RCODE_FORMAT_ERROR = 1;
+    private static final int TCP_QUERY_TIMEOUT = 5000;
+    private static final int TCP_IDLE_TIMEOUT = 10000;
+    private static final int MAX_SEND_RETRIES = 3;
+    private static final int MAX_QUERY_LIFETIME = 10000;  // give up on a server after this many ms
+    private static final int MAX_SERVERS_PER_QUESTION = 4;
+    private static final int DEFAULT_MAX_PARALLEL_QUERIES = 3;
+    private static final int DEFAULT_STAGGER_DELAY = 200;
+    private static final int MAX_PARALLEL_NAMESERVER_LOOKUPS = 3;
+    private static final int MAX_MINIMISED_QUERIES = 10;  // RFC 9156 MAX_MINIMISE_COUNT
+
+    private final InetAddress rootServer;
+    private final int port;
+    private final AnswerCache answerCache;
+    private final DelegationCache delegationCache;
+    private final ServerStats serverStats;
+    private final ResolverMetrics metrics;
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final Thread eventLoop;
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocate(MAX_RECEIVE_BUF_SIZE);
+    private final DNSMessage headerView = new DNSMessage();  // screens packets before they are parsed
+    private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(DNSQuery.MAX_QUERY_SIZE);
+    private final SecureRandom randomGenerator = new SecureRandom();  // used on the event loop only
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Set<Resolution> unfinished = ConcurrentHashMap.newKeySet();  // failed when the loop stops
+
+    // only touched by the event loop thread
+    private final Map<PendingKey, PendingQuery> pending = new HashMap<>();
+    private final Map<String, Resolution> inFlight = new HashMap<>();
+    private final Map<PendingKey, PendingQuery> tcpPending = new HashMap<>();
+    private final Map<InetSocketAddress, TcpConnection> tcpConnections = new HashMap<>();
+    private final Set<InetAddress> ednsUnsupported = new HashSet<>();
+    private final PriorityQueue<Timer> timers =
+            new PriorityQueue<>(Comparator.comparingLong((Timer timer) -> timer.deadline));
+
+    private volatile boolean running = true;
+    private volatile int maxParallelQueries = DEFAULT_MAX_PARALLEL_QUERIES;
+    private volatile long staggerDelay = DEFAULT_STAGGER_DELAY;
+    private volatile int ednsPayloadSize = DEFAULT_EDNS_PAYLOAD_SIZE;
+    private volatile boolean qnameMinimisation = false;
+    private volatile boolean ipv6Nameservers = false;
+    private final AtomicLong coalescedCount = new AtomicLong();
+    private final AtomicLong refreshCount = new AtomicLong();
+    private volatile ResolutionTrace.Sink traceSink;
+    private volatile int traceSampleEvery = 1;
+
+    public AsyncResolver(InetAddress rootServer) throws IOException {
+        this(rootServer, DEFAULT_PORT, new AnswerCache(), new DelegationCache());
+    }
+
+    /**
+     * Create a resolver and start its event loop.
+     *
+     * @param rootServer      - the server every uncached lookup starts at.
+     * @param port            - the port nameservers listen on.
+     * @param answerCache     - the answer cache, which may be shared with other resolvers.
+     * @param delegationCache - the zone cut cache, which may be shared with other resolvers.
+     * @throws IOException if the channel cannot be opened.
+     */
+    public AsyncResolver(InetAddress rootServer, int port, AnswerCache answerCache,
+                         DelegationCache delegationCache) throws IOException {
+        this(rootServer, port, answerCache, delegationCache, new ServerStats(), new ResolverMetrics());
+    }
+
+    /**
+     * Create a resolver that shares its server statistics and metrics with others, e.g. as
+     * one shard of a {@link Resolver}, and start its event loop.
+     *
+     * @param rootServer      - the server every uncached lookup starts at.
+     * @param port            - the port nameservers listen on.
+     * @param answerCache     - the answer cache.
+     * @param delegationCache - the zone cut cache.
+     * @param serverStats     - the RTT estimates of upstream servers.
+     * @param metrics         - where lookups and queries are counted.
+     * @throws IOException if the channel cannot be opened.
+     */
+    public AsyncResolver(InetAddress rootServer, int port, AnswerCache answerCache, DelegationCache delegationCache,
+                         ServerStats serverStats, ResolverMetrics metrics) throws IOException {
+        this.rootServer = rootServer;
+        this.port = port;
+        this.answerCache = answerCache;
+        this.delegationCache = delegationCache;
+        this.serverStats = serverStats;
+        this.metrics = metrics;
+
+        selector = Selector.open();
+        channel = DatagramChannel.open();
+        channel.configureBlocking(false);
+        channel.bind(null);
+        channel.register(selector, SelectionKey.OP_READ);
+
+        eventLoop = new Thread(this::run, "dns-resolver-" + channel.getLocalAddress());
+        eventLoop.setDaemon(true);
+        eventLoop.start();
+        answerCache.setRefresher(this::refresh);
+    }
+
+    /**
+     * Resolve a name iteratively. Failures complete the future with a {@link ResolutionException}.
+     *
+     * @param fqdn  - the name to look up.
+     * @param qtype - the query type (1 for A, 28 for AAAA).
+     * @return a future for the answer records; an empty list means the name has no such records.
+     */
+    public CompletableFuture<List<ResponseRecord>> resolve(String fqdn, int qtype) {
+        return resolve(new ResolutionContext(fqdn, qtype));
+    }
+
+    /**
+     * Resolve the name of a lookup context, counting its queries and tracing it there.
+     *
+     * @param context - the lookup; it must not have been used before.
+     * @return a future for the answer records.
+     */
+    public CompletableFuture<List<ResponseRecord>> resolve(final ResolutionContext context) {
+        final Resolution resolution = newLookup(context);
+        submit(resolution, () -> resolution.step(resolution::start));
+        return resolution.future;
+    }
+
+    /**
+     * Resolve several types of one name, e.g. A and AAAA, sharing the walk down the
+     * delegation tree. The first lookup walks; the others start once it has a response that
+     * is not a referral, or when it ends, and then find the zone it reached in the delegation
+     * cache and ask its servers directly. If the first lookup starts from a cached zone cut,
+     * the others start with it, in parallel.
+     *
+     * @param contexts - the lookups, all for the same name; none may have been used before.
+     * @return futures for the answers of each lookup, in the same order.
+     */
+    public List<CompletableFuture<List<ResponseRecord>>> resolveTogether(ResolutionContext... contexts) {
+        final List<Resolution> lookups = new ArrayList<>(contexts.length);
+        List<CompletableFuture<List<ResponseRecord>>> futures = new ArrayList<>(contexts.length);
+        for (ResolutionContext context : contexts) {
+            Resolution resolution = newLookup(context);
+            lookups.add(resolution);
+            futures.add(resolution.future);
+        }
+        final Resolution walker = lookups.get(0);
+        submit(walker, () -> {
+            walker.followers = new ArrayList<>(lookups.subList(1, lookups.size()));
+            walker.step(walker::start);
+        });
+        return futures;
+    }
+
+    /**
+     * Create the resolution of a top-level lookup, sampling it for tracing and recording its
+     * metrics when it completes.
+     */
+    private Resolution newLookup(final ResolutionContext context) {
+        final ResolutionTrace.Sink sink = traceSink;
+        if (sink != null && ThreadLocalRandom.current().nextInt(traceSampleEvery) == 0) {
+            context.setSampledTrace(new ResolutionTrace(context.getName(), context.getQtype()));
+        }
+        Resolution resolution = new Resolution(context.getName(), context.getQtype(), context, null);
+        resolution.future.whenComplete((answers, error) -> {
+            ResolveStatus status;
+            if (error == null) {
+                status = ResolveResult.answeredStatus(context.getQtype(), answers);
+            } else if (error instanceof ResolutionException) {
+                status = ((ResolutionException) error).getStatus();
+            } else {
+                status = ResolveStatus.OTHER_ERROR;
+            }
+            metrics.recordLookup(status, context.getElapsedNanos() / 1000, context.getReferralCount());
+            ResolutionTrace trace = context.getSampledTrace();
+            if (trace != null) {
+                trace.finish(status);
+                sink.accept(trace);
+            }
+        });
+        return resolution;
+    }
+
+    /**
+     * Look a name up again without reading its cached answer, so the answer is replaced
+     * when the lookup completes. A failed refresh leaves the cached answer alone.
+     *
+     * @param fqdn  - the name to look up.
+     * @param qtype - the query type.
+     */
+    public void refresh(String fqdn, int qtype) {
+        final Resolution resolution = new Resolution(fqdn, qtype, new ResolutionContext(fqdn, qtype), null);
+        resolution.refresh = true;
+        refreshCount.incrementAndGet();
+        // always queued: the cache asks for refreshes from whichever thread hit the entry
+        tasks.add(() -> resolution.step(resolution::start));
+        selector.wakeup();
+        if (!running) {
+            resolution.abandon();
+        }
+    }
+
+    /**
+     * Record a structured trace of one lookup in every sampleEvery and hand it to a sink
+     * when the lookup completes. Lookups that are not sampled pay one random draw.
+     *
+     * @param sampleEvery - 1 traces every lookup, 1000 about one in a thousand.
+     * @param sink        - where traces go, or null to stop tracing.
+     */
+    public void setTraceSampling(int sampleEvery, ResolutionTrace.Sink sink) {
+        if (sampleEvery < 1) {
+            throw new IllegalArgumentException("sampleEvery must be positive: " + sampleEvery);
+        }
+        this.traceSampleEvery = sampleEvery;
+        this.traceSink = sink;
+    }
+
+    /**
+     * Set how many of a zone's servers may be asked the same question at once.
+     * 1 asks one server at a time, moving on only when it times out.
+     */
+    public void setMaxParallelQueries(int maxParallelQueries) {
+        if (maxParallelQueries < 1) {
+            throw new IllegalArgumentException("maxParallelQueries must be positive: " + maxParallelQueries);
+        }
+        this.maxParallelQueries = maxParallelQueries;
+    }
+
+    /**
+     * Set how long to wait for a server before also asking the next one, in milliseconds.
+     */
+    public void setStaggerDelay(long staggerDelay) {
+        this.staggerDelay = staggerDelay;
+    }
+
+    /**
+     * Set the UDP payload size advertised in each query's OPT record; larger responses come
+     * back truncated and are fetched over TCP. 0 sends plain queries without EDNS.
+     */
+    public void setEdnsPayloadSize(int ednsPayloadSize) {
+        if (ednsPayloadSize != 0 && (ednsPayloadSize < 512 || ednsPayloadSize > MAX_RECEIVE_BUF_SIZE)) {
+            throw new IllegalArgumentException("ednsPayloadSize must be 0 or 512.." + MAX_RECEIVE_BUF_SIZE
+                    + ": " + ednsPayloadSize);
+        }
+        this.ednsPayloadSize = ednsPayloadSize;
+    }
+
+    /**
+     * Send each zone's servers only the part of a name they need (QNAME minimisation, RFC
+     * 9156), so that the root and TLD servers do not see full names. Each label that is not
+     * a zone cut costs a query, up to ten per lookup; servers that fail minimised queries are
+     * asked the full question.
+     */
+    public void setQnameMinimisation(boolean qnameMinimisation) {
+        this.qnameMinimisation = qnameMinimisation;
+    }
+
+    /**
+     * Also use the IPv6 addresses of nameservers: from glue, from the delegation cache, and
+     * from AAAA lookups of nameservers that have no IPv4 address. Off by default, since the
+     * host may have no IPv6 route; IPv4 addresses are still tried first.
+     */
+    public void setIpv6Nameservers(boolean ipv6Nameservers) {
+        this.ipv6Nameservers = ipv6Nameservers;
+    }
+
+    public AnswerCache getAnswerCache() {
+        return answerCache;
+    }
+
+    public DelegationCache getDelegationCache() {
+        return delegationCache;
+    }
+
+    public ServerStats getServerStats() {
+        return serverStats;
+    }
+
+    public ResolverMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return how many lookups were answered by joining an identical lookup already in flight.
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    /**
+     * @return how many lookups were started to refresh cached answers.
+     */
+    public long getRefreshCount() {
+        return refreshCount.get();
+    }
+
+    /**
+     * Stop the event loop. Lookups still in flight, and lookups queued but not yet started,
+     * fail with OTHER_ERROR; the loop fails them on its way out, so their callbacks never
+     * run on two threads at once. Lookups asked for once the loop has stopped fail at once.
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        try {
+            eventLoop.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        selector.close();
+        channel.close();
+    }
+
+    /**
+     * Run a task that starts a lookup on the event loop. The lookup is registered as
+     * unfinished before the loop is checked, so if the loop is stopping either it fails the
+     * lookup on its way out or this does.
+     */
+    private void submit(Resolution resolution, Runnable task) {
+        if (Thread.currentThread() == eventLoop) {
+            task.run();
+            return;
+        }
+        tasks.add(task);
+        selector.wakeup();
+        if (!running) {
+            resolution.abandon();
+        }
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                long timeout = 0;
+                Timer next = timers.peek();
+                if (next != null) {
+                    timeout = Math.max(1, next.deadline - System.currentTimeMillis());
+                }
+                selector.select(timeout);
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (key.attachment() instanceof TcpConnection) {
+                        ((TcpConnection) key.attachment()).handle();
+                    }
+                }
+                selector.selectedKeys().clear();
+
+                receive();
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                runTimers();
+            } catch (IOException e) {
+                // the channel hiccuped; queries it lost are retransmitted or time out
+            } catch (RuntimeException e) {
+                metrics.recordInternalError();  // not in any lookup's step, so none is left hanging
+            }
+        }
+        shutDown();
+    }
+
+    /**
+     * Fail everything the loop still owes an answer: lookups queued and not started, lookups
+     * in flight, and whatever they started. Runs on the loop thread as it stops; lookups that
+     * fail start nothing new, since starting checks that the loop is running.
+     */
+    private void shutDown() {
+        tasks.clear();
+        while (!unfinished.isEmpty()) {
+            for (final Resolution resolution : new ArrayList<>(unfinished)) {
+                unfinished.remove(resolution);
+                resolution.step(() -> resolution.fail(ResolveStatus.OTHER_ERROR, "resolver closed"));
+            }
+        }
+        pending.clear();
+        tcpPending.clear();
+        for (TcpConnection connection : new ArrayList<>(tcpConnections.values())) {
+            connection.close();
+        }
+        timers.clear();
+    }
+
+    /**
+     * Drain every datagram waiting on the channel and hand each to the query it answers.
+     *
+     * A packet is only parsed once its id and source match an outstanding query and its
+     * question is the one that query asked; anything else (late answers to retransmitted
+     * queries, duplicates, spoofs) is dropped after a look at the header, and leaves the
+     * real query waiting. Packets are read into the loop's one receive buffer and parsed
+     * in place: a response is handled before the next packet is read, and its records are
+     * copied out as they are decoded.
+     */
+    private void receive() throws IOException {
+        SocketAddress source;
+        byte[] packet = receiveBuffer.array();
+        while ((source = channel.receive(receiveBuffer)) != null) {
+            int length = receiveBuffer.position();
+            receiveBuffer.clear();
+
+            PendingQuery query = match(packet, length, pending, (InetSocketAddress) source);
+            if (query == null) {
+                continue;
+            }
+            DNSResponse response;
+            try {
+                response = new DNSResponse(packet, length);
+            } catch (IOException e) {
+                continue;  // cannot happen once the header has been read
+            }
+            pending.remove(query.key);
+            deliver(query, response);
+        }
+    }
+
+    /**
+     * Hand a response to the exchange of the query it answers, as a step of its lookup.
+     */
+    private void deliver(final PendingQuery query, final DNSResponse response) {
+        query.cancelled = true;
+        query.exchange.resolution.step(() -> query.exchange.onResponse(query, response));
+    }
+
+    /**
+     * Find the outstanding query a packet answers, by id, source and question.
+     *
+     * @return the query, or null if the packet answers nothing outstanding.
+     */
+    private PendingQuery match(byte[] packet, int length, Map<PendingKey, PendingQuery> queries,
+                               InetSocketAddress source) {
+        try {
+            headerView.wrap(packet, length);
+        } catch (IOException e) {
+            metrics.recordDroppedResponse();
+            return null;  // not a DNS message
+        }
+        PendingQuery query = headerView.isResponse()
+                ? queries.get(new PendingKey(headerView.getId(), source)) : null;
+        if (query == null || !headerView.questionEquals(query.exchange.name, query.exchange.qtype)) {
+            metrics.recordDroppedResponse();
+            return null;
+        }
+        return query;
+    }
+
+    /**
+     * Send a query over the pooled TCP connection to its server, opening one if needed.
+     *
+     * @return false if no connection could be opened.
+     */
+    private boolean sendOverTcp(PendingQuery query) {
+        TcpConnection connection = tcpConnections.get(query.key.server);
+        if (connection == null) {
+            try {
+                connection = new TcpConnection(query.key.server, selector, tcpListener);
+            } catch (IOException e) {
+                return false;
+            }
+            tcpConnections.put(query.key.server, connection);
+        }
+        tcpPending.put(query.key, query);
+        connection.send(encode(query));
+        return true;
+    }
+
+    private final TcpConnection.Listener tcpListener = new TcpConnection.Listener() {
+        @Override
+        public void onMessage(TcpConnection connection, byte[] message) {
+            PendingQuery query = match(message, message.length, tcpPending, connection.getServer());
+            if (query != null) {
+                try {
+                    DNSResponse response = new DNSResponse(message, message.length);
+                    tcpPending.remove(query.key);
+                    deliver(query, response);
+                } catch (IOException e) {
+                    // cannot happen once the header has been read
+                }
+            }
+            if (connection.getOutstanding() == 0) {
+                scheduleIdleClose(connection);
+            }
+        }
+
+        @Override
+        public void onClosed(TcpConnection connection, IOException cause) {
+            tcpConnections.remove(connection.getServer(), connection);
+            for (final PendingQuery query : new ArrayList<>(tcpPending.values())) {
+                if (query.key.server.equals(connection.getServer())) {
+                    tcpPending.remove(query.key);
+                    query.cancelled = true;
+                    query.exchange.resolution.step(() -> query.exchange.onTcpFailed(query));
+                }
+            }
+        }
+    };
+
+    /**
+     * Close a connection that stays unused for the idle timeout.
+     */
+    private void scheduleIdleClose(final TcpConnection connection) {
+        schedule(new Timer() {
+            @Override
+            void expire() {
+                if (connection.getOutstanding() == 0
+                        && System.currentTimeMillis() - connection.getLastUsed() >= TCP_IDLE_TIMEOUT) {
+                    connection.close();
+                }
+            }
+        }, TCP_IDLE_TIMEOUT);
+    }
+
+    /**
+     * Encode a query into the send buffer, which is reused for every query: each is written
+     * out before the next is encoded.
+     *
+     * @return the send buffer, flipped for reading.
+     */
+    private ByteBuffer encode(PendingQuery query) {
+        sendBuffer.clear();
+        DNSQuery.encode(sendBuffer, query.key.queryId, query.exchange.name, query.exchange.qtype,
+                query.payloadSize);
+        sendBuffer.flip();
+        return sendBuffer;
+    }
+
+    /**
+     * @return the number of labels in a canonical name; 0 for the root.
+     */
+    private static int labelCount(String name) {
+        if (name.isEmpty()) {
+            return 0;
+        }
+        int count = 1;
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) == '.') {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void schedule(Timer timer, long delay) {
+        timer.deadline = System.currentTimeMillis() + delay;
+        timers.add(timer);
+    }
+
+    /**
+     * Fire every timer whose deadline has passed.
+     */
+    private void runTimers() {
+        long now = System.currentTimeMillis();
+        Timer timer;
+        while ((timer = timers.peek()) != null && timer.deadline <= now) {
+            timers.poll();
+            if (!timer.cancelled) {
+                timer.expire();
+            }
+        }
+    }
+
+    private abstract static class Timer {
+        long deadline;
+        boolean cancelled = false;
+
+        abstract void expire();
+    }
+
+    private enum State {
+        IDLE, AWAITING_RESPONSE, AWAITING_NAMESERVER, AWAITING_ALIAS, AWAITING_FLIGHT, DONE
+    }
+
+    /**
+     * The state of one iterative lookup. Every method runs on the event loop thread.
+     */
+    private class Resolution {
+        private final String fqdn;
+        private final int qtype;
+        private DNSName name;                     // fqdn in wire form, made by the first query
+        private DNSName asked;                    // the name the current exchange asks for
+        private String zone = "";                 // the deepest zone reached; "" for the root
+        private List<InetAddress> zoneServers;    // its servers
+        private int knownLabels = 0;              // labels of fqdn at or above that zone
+        private boolean minimise;                 // QNAME minimisation
+        private int minimisedQueries = 0;
+        private List<Resolution> followers;       // lookups of other types waiting for this walk
+        private final String flightKey;
+        private final ResolutionContext context;
+        private final Resolution parent;          // the lookup that started this one, if any
+        private final List<Resolution> waitingOn = new ArrayList<>();
+        private final CompletableFuture<List<ResponseRecord>> future = new CompletableFuture<>();
+        private State state = State.IDLE;
+        private boolean leader = false;           // registered in the in-flight table
+        private boolean refresh = false;          // replacing a cached answer; do not read it
+
+        Resolution(String fqdn, int qtype, ResolutionContext context, Resolution parent) {
+            this.fqdn = fqdn;
+            this.qtype = qtype;
+            this.flightKey = AnswerCache.canonicalName(fqdn) + "/" + qtype;
+            this.context = context;
+            this.parent = parent;
+            this.minimise = qnameMinimisation;
+            unfinished.add(this);
+        }
+
+        /**
+         * Run one step of this lookup. A bug in it fails the lookup, rather than leaving its
+         * future incomplete for ever, and is counted.
+         */
+        void step(Runnable step) {
+            try {
+                step.run();
+            } catch (RuntimeException e) {
+                metrics.recordInternalError();
+                if (!future.isDone()) {
+                    fail(ResolveStatus.OTHER_ERROR, "internal error resolving " + fqdn, e);
+                }
+            }
+        }
+
+        /**
+         * Fail this lookup from outside the loop, which has stopped or is stopping; only the
+         * future is touched.
+         */
+        void abandon() {
+            unfinished.remove(this);
+            future.completeExceptionally(new ResolutionException(ResolveStatus.OTHER_ERROR, "resolver closed"));
+        }
+
+        void start() {
+            if (!running) {
+                fail(ResolveStatus.OTHER_ERROR, "resolver closed");
+                return;
+            }
+            AnswerCache.Entry cached = refresh ? null : answerCache.get(fqdn, qtype);
+            if (cached != null) {
+                metrics.recordCacheHit();
+                trace(ResolutionTrace.Kind.CACHE_HIT, null, cached.getRCode(), null);
+                if (context.isTracing()) {
+                    context.getTrace().println("\n\nCached       " + fqdn + "  " + ResponseRecord.typeName(qtype));
+                }
+                if (cached.isNameError()) {
+                    fail(ResolveStatus.NAME_ERROR, fqdn + " does not exist");
+                } else {
+                    complete(cached.getAnswers());
+                }
+                return;
+            }
+
+            if (!refresh) {
+                String nonexistent = answerCache.findNameError(fqdn);
+                if (nonexistent != null) {
+                    metrics.recordCacheHit();
+                    trace(ResolutionTrace.Kind.CACHE_HIT, null, AnswerCache.RCODE_NAME_ERROR, nonexistent);
+                    if (context.isTracing()) {
+                        context.getTrace().println("\n\nCached       " + fqdn + "  below nonexistent " + nonexistent);
+                    }
+                    fail(ResolveStatus.NAME_ERROR, fqdn + " does not exist");
+                    return;
+                }
+                metrics.recordCacheMiss();
+            }
+            Resolution flight = inFlight.get(flightKey);
+            if (flight != null && !flight.dependsOn(this)) {
+                join(flight);
+                return;
+            }
+            if (flight == null) {
+                inFlight.put(flightKey, this);
+                leader = true;
+            }
+
+            DelegationCache.Delegation delegation = delegationCache.findClosest(fqdn, ipv6Nameservers);
+            if (delegation == null) {
+                query(Collections.singletonList(rootServer));
+                return;
+            }
+            startFollowers();
+            trace(ResolutionTrace.Kind.DELEGATION, null, -1, delegation.getZone());
+            zone = delegation.getZone();
+            knownLabels = labelCount(zone);
+            if (context.isTracing()) {
+                context.getTrace().println("\n\nDelegation   " + fqdn + "  " + delegation.getZone());
+            }
+            query(delegation.getAddresses(ipv6Nameservers));
+        }
+
+        /**
+         * Start the lookups waiting for this one's walk; they find the zone it reached in the
+         * delegation cache.
+         */
+        private void startFollowers() {
+            if (followers != null) {
+                List<Resolution> waiting = followers;
+                followers = null;
+                for (Resolution follower : waiting) {
+                    follower.step(follower::start);
+                }
+            }
+        }
+
+        /**
+         * Take the result of an identical lookup that is already in flight.
+         */
+        private void join(Resolution flight) {
+            coalescedCount.incrementAndGet();
+            trace(ResolutionTrace.Kind.JOINED, null, -1, null);
+            if (context.isTracing()) {
+                context.getTrace().println("\n\nJoined       " + fqdn + "  " + ResponseRecord.typeName(qtype));
+            }
+            state = State.AWAITING_FLIGHT;
+            waitingOn.add(flight);
+            flight.future.whenComplete((answers, error) -> step(() -> {
+                if (error != null) {
+                    failWith(error);
+                } else {
+                    complete(new ArrayList<>(answers));
+                }
+            }));
+        }
+
+        /**
+         * Would waiting for this lookup deadlock the given one? True if this lookup is, or
+         * is waiting on, the given lookup or one of the lookups that started it.
+         */
+        private boolean dependsOn(Resolution joiner) {
+            for (Resolution ancestor = joiner; ancestor != null; ancestor = ancestor.parent) {
+                if (reaches(this, ancestor)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean reaches(Resolution from, Resolution target) {
+            if (from == target) {
+                return true;
+            }
+            for (Resolution next : from.waitingOn) {
+                if (reaches(next, target)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Ask the question of this lookup to one of a zone's servers; under QNAME
+         * minimisation, ask for the name one label below what is known so far instead.
+         *
+         * @param servers - the zone's servers; they are tried fastest first.
+         */
+        void query(List<InetAddress> servers) {
+            if (!context.spendQuery()) {
+                fail(ResolveStatus.TOO_MANY_QUERIES, "too many queries resolving " + fqdn);
+                return;
+            }
+            if (name == null) {
+                try {
+                    name = DNSName.of(fqdn);
+                } catch (IllegalArgumentException e) {
+                    fail(ResolveStatus.OTHER_ERROR, "cannot encode query for " + fqdn, e);
+                    return;
+                }
+            }
+            zoneServers = servers;
+            asked = name;
+            int askedType = qtype;
+            if (minimise && knownLabels + 1 < name.getLabelCount() && minimisedQueries < MAX_MINIMISED_QUERIES) {
+                minimisedQueries++;
+                asked = name.suffix(knownLabels + 1);
+                askedType = RData.TYPE_A;
+            }
+            state = State.AWAITING_RESPONSE;
+            new Exchange(this, serverStats.order(servers), asked, askedType).start();
+        }
+
+        /**
+         * Every server of the zone failed to answer usefully.
+         */
+        void onExchangeFailed(ResolveStatus status, String message) {
+            if (asked != name && status != ResolveStatus.TIMEOUT) {
+                // some servers mishandle minimised queries: ask the full question (RFC 9156 section 3)
+                minimise = false;
+                query(zoneServers);
+                return;
+            }
+            fail(status, message);
+        }
+
+        void onResponse(DNSResponse response) {
+            if (state != State.AWAITING_RESPONSE) {
+                return;
+            }
+            if (context.isTracing()) {
+                response.dumpResponse(context.getTrace());
+            }
+            if (asked == name && !isReferral(response)) {
+                startFollowers();  // this zone answers for the name
+            }
+
+            if (asked == name && qtype != RData.TYPE_CNAME && qtype != RData.TYPE_DNAME) {
+                List<ResponseRecord> aliases = new ArrayList<>();
+                DNSName target = followChain(response.getAnswers(), aliases);
+                if (target == null) {
+                    fail(ResolveStatus.OTHER_ERROR, "alias chain of " + fqdn + " is too long");
+                    return;
+                }
+                if (!aliases.isEmpty()) {
+                    completeChain(response, aliases, target);
+                    return;
+                }
+            }
+
+            if (response.getRCode() == AnswerCache.RCODE_NAME_ERROR) {
+                if (asked == name) {
+                    answerCache.putNegative(fqdn, qtype, AnswerCache.RCODE_NAME_ERROR, response.getNegativeTtl());
+                    fail(ResolveStatus.NAME_ERROR, fqdn + " does not exist");
+                    return;
+                }
+                if (response.getAnswers().isEmpty()) {
+                    // nothing exists below a name that does not exist (RFC 8020)
+                    answerCache.putNegative(asked.toString(), RData.TYPE_A, AnswerCache.RCODE_NAME_ERROR,
+                            response.getNegativeTtl());
+                    fail(ResolveStatus.NAME_ERROR, fqdn + " does not exist");
+                    return;
+                }
+                // the minimised name is an alias whose target does not exist; it exists itself
+            }
+            if (asked != name && !isReferral(response)) {
+                // the minimised name exists but is no zone cut: these servers hold the next label too
+                knownLabels = asked.getLabelCount();
+                query(zoneServers);
+                return;
+            }
+
+            ResponseRecord record = response.getNextQueryServerRecord();
+
+            if (record == null || (response.isAuthoritative() && record.getType() != 5)) {
+                complete(cacheAnswers(response));
+            } else if (record.getType() == 5 && record.getOwner().equals(name)) {
+                if (!context.spendAlias()) {
+                    fail(ResolveStatus.OTHER_ERROR, "alias chain of " + fqdn + " is too long");
+                    return;
+                }
+                DNSName target = ((RData.Name) record.getRData()).getTarget();
+                trace(ResolutionTrace.Kind.ALIAS, null, -1, target.toString());
+                followAlias(Collections.singletonList(record), target);
+            } else if (isReferral(response)) {
+                context.countReferral();
+                trace(ResolutionTrace.Kind.REFERRAL, null, -1,
+                        response.getNameservers().isEmpty() ? null : response.getNameservers().get(0).getName());
+                DelegationCache.Delegation cut = delegationCache.putReferral(zone, asked.toString(),
+                        response.getNameservers(), response.getAdditional());
+                if (cut != null) {
+                    zone = cut.getZone();
+                    knownLabels = Math.max(knownLabels, labelCount(zone));
+                    List<InetAddress> servers = cut.getAddresses(ipv6Nameservers);
+                    if (!servers.isEmpty()) {
+                        query(servers);
+                    } else {
+                        resolveNameservers(cut);
+                    }
+                } else {
+                    fail(ResolveStatus.OTHER_ERROR, "referral for " + asked + " from the servers of "
+                            + (zone.isEmpty() ? "the root" : zone) + " is outside their zone");
+                }
+            } else {
+                // neither an alias of this name nor a referral: keep what answers the question
+                complete(cacheAnswers(response));
+            }
+        }
+
+        /**
+         * Follow the aliases in an answer section from the name asked for: CNAMEs, and DNAMEs
+         * that move the name under another (RFC 6672). A DNAME is followed by the CNAME
+         * synthesised from it, unless the server sent that CNAME itself. Only aliases in the
+         * zone of the answering servers are followed; the chain stops at the first name
+         * outside it.
+         *
+         * @param answers - the answer section.
+         * @param aliases - receives the records followed, in order.
+         * @return the last name of the chain, which is the name asked for if it is no alias;
+         * null if the chain is too long or a DNAME makes a name too long.
+         */
+        private DNSName followChain(List<ResponseRecord> answers, List<ResponseRecord> aliases) {
+            DNSName current = name;
+            while (inBailiwick(current)) {
+                ResponseRecord cname = null;
+                ResponseRecord dname = null;
+                for (ResponseRecord answer : answers) {
+                    if (answer.getType() == RData.TYPE_CNAME && answer.getOwner().equals(current)) {
+                        cname = answer;
+                        break;
+                    }
+                    if (answer.getType() == RData.TYPE_DNAME && dname == null && inBailiwick(answer.getOwner())
+                            && current.isSubdomainOf(answer.getOwner()) && !current.equals(answer.getOwner())) {
+                        dname = answer;
+                    }
+                }
+                if (cname == null && dname == null) {
+                    return current;
+                }
+                if (!context.spendAlias()) {
+                    return null;
+                }
+                if (cname == null) {
+                    DNSName rewritten = current.replaceSuffix(dname.getOwner(),
+                            ((RData.Name) dname.getRData()).getTarget());
+                    if (rewritten == null) {
+                        return null;
+                    }
+                    aliases.add(dname);
+                    cname = new ResponseRecord(current, RData.TYPE_CNAME, dname.getRecordClass(), dname.getTtl(),
+                            new RData.Name(RData.TYPE_CNAME, rewritten));
+                }
+                aliases.add(cname);
+                current = ((RData.Name) cname.getRData()).getTarget();
+                trace(ResolutionTrace.Kind.ALIAS, null, -1, current.toString());
+            }
+            return current;  // outside the zone; its servers cannot speak for it
+        }
+
+        /**
+         * @return true if a name is in the zone whose servers are being asked, so that what
+         * they say about it can be trusted.
+         */
+        private boolean inBailiwick(DNSName owner) {
+            return DelegationCache.isAncestor(zone, AnswerCache.canonicalName(owner.toString()));
+        }
+
+        /**
+         * The answer starts with aliases of the name. Use what the same response holds for
+         * the last target if the server is authoritative for it, and look the target up
+         * otherwise. The chain and the target's records are cached under this name as one
+         * answer.
+         *
+         * @param aliases - the records leading from this name to the target.
+         * @param target  - the last name of the chain.
+         */
+        private void completeChain(DNSResponse response, List<ResponseRecord> aliases, DNSName target) {
+            if (!response.isAuthoritative() || !inBailiwick(target)) {
+                followAlias(aliases, target);
+                return;
+            }
+            List<ResponseRecord> data = new ArrayList<>();
+            boolean nodata = false;
+            for (ResponseRecord answer : response.getAnswers()) {
+                if (answer.getType() == qtype && answer.getOwner().equals(target)) {
+                    data.add(answer);
+                }
+            }
+            if (data.isEmpty()) {
+                // an SOA above the target means the server holds the target's zone and has nothing for it
+                for (ResponseRecord ns : response.getNameservers()) {
+                    nodata |= ns.getType() == RData.TYPE_SOA && inBailiwick(ns.getOwner())
+                            && target.isSubdomainOf(ns.getOwner());
+                }
+            }
+
+            if (response.getRCode() == AnswerCache.RCODE_NAME_ERROR) {
+                // the rcode is about the last name of the chain (RFC 6604)
+                answerCache.putNegative(target.toString(), qtype, AnswerCache.RCODE_NAME_ERROR,
+                        response.getNegativeTtl());
+                fail(ResolveStatus.NAME_ERROR, fqdn + " is an alias of " + target + ", which does not exist");
+            } else if (!data.isEmpty() || nodata) {
+                if (!data.isEmpty()) {
+                    answerCache.putAnswers(target.toString(), qtype, data);
+                }
+                List<ResponseRecord> chain = new ArrayList<>(aliases.size() + data.size());
+                chain.addAll(aliases);
+                chain.addAll(data);
+                answerCache.putAnswers(fqdn, qtype, chain);
+                complete(chain);
+            } else {
+                followAlias(aliases, target);
+            }
+        }
+
+        /**
+         * Restart the lookup at the target of an alias chain, from the deepest zone cut known
+         * for it. The chain and the target's answers are the answer for this name, and are
+         * cached under it as one.
+         *
+         * @param aliases - the records leading from this name to the target.
+         * @param target  - the last name of the chain.
+         */
+        private void followAlias(final List<ResponseRecord> aliases, DNSName target) {
+            state = State.AWAITING_ALIAS;
+            Resolution alias = new Resolution(target.toString(), qtype, context, this);
+            alias.refresh = refresh;
+            waitingOn.add(alias);
+            alias.future.whenComplete((answers, error) -> step(() -> {
+                if (error != null) {
+                    failWith(error);
+                } else {
+                    List<ResponseRecord> chain = new ArrayList<>(aliases.size() + answers.size());
+                    chain.addAll(aliases);
+                    chain.addAll(answers);
+                    answerCache.putAnswers(fqdn, qtype, chain);
+                    complete(chain);
+                }
+            }));
+            alias.step(alias::start);
+        }
+
+        /**
+         * Look up the addresses of a zone cut's nameservers, which came without glue, several
+         * at a time. The lookup continues at the first that resolves; the rest still finish
+         * and fill in the delegation cache. If none resolves, the lookup fails with OTHER_ERROR.
+         */
+        private void resolveNameservers(DelegationCache.Delegation cut) {
+            state = State.AWAITING_NAMESERVER;
+            final int[] remaining = {0};
+            final Throwable[] firstError = {null};
+            final boolean[] resumed = {false};
+
+            for (String nsName : cut.getNameservers()) {
+                if (remaining[0] == MAX_PARALLEL_NAMESERVER_LOOKUPS) {
+                    break;
+                }
+                remaining[0]++;
+                trace(ResolutionTrace.Kind.NAMESERVER_LOOKUP, null, -1, nsName);
+                lookUpNameserver(cut.getZone(), nsName, RData.TYPE_A, remaining, firstError, resumed);
+            }
+            for (Resolution nameserver : new ArrayList<>(waitingOn)) {
+                nameserver.step(nameserver::start);
+            }
+        }
+
+        /**
+         * Look up one address type of a referral's nameserver; the lookup is started by the caller.
+         * A nameserver without IPv4 addresses is looked up again for IPv6 ones if they are used.
+         */
+        private Resolution lookUpNameserver(final String cutZone, final String nsName, final int type,
+                                            final int[] remaining, final Throwable[] firstError,
+                                            final boolean[] resumed) {
+            Resolution nameserver = new Resolution(nsName, type, context, this);
+            waitingOn.add(nameserver);
+            nameserver.future.whenComplete((answers, error) -> step(() -> {
+                remaining[0]--;
+                List<String> addresses = new ArrayList<>();
+                if (error == null) {
+                    for (ResponseRecord address : answers) {
+                        if (address.getType() == type) {
+                            delegationCache.putAddress(cutZone, nsName, address.getValue(), address.getTtl());
+                            addresses.add(address.getValue());
+                        }
+                    }
+                } else if (firstError[0] == null) {
+                    firstError[0] = error;
+                }
+
+                if (resumed[0] || state != State.AWAITING_NAMESERVER) {
+                    return;  // an earlier nameserver already answered
+                }
+                if (!addresses.isEmpty()) {
+                    resumed[0] = true;
+                    waitingOn.clear();
+                    queryAddresses(addresses);
+                } else if (error == null && type == RData.TYPE_A && ipv6Nameservers) {
+                    remaining[0]++;
+                    Resolution ipv6 = lookUpNameserver(cutZone, nsName, RData.TYPE_AAAA, remaining, firstError,
+                            resumed);
+                    ipv6.step(ipv6::start);
+                } else if (remaining[0] == 0) {
+                    // the zone cannot be reached; that says nothing about whether the name has data
+                    fail(ResolveStatus.OTHER_ERROR, "no address found for any nameserver of "
+                            + (cutZone.isEmpty() ? "the root" : cutZone), firstError[0]);
+                }
+            }));
+            return nameserver;
+        }
+
+        private void queryAddresses(List<String> addresses) {
+            List<InetAddress> servers = new ArrayList<>(addresses.size());
+            for (String address : addresses) {
+                try {
+                    servers.add(InetAddress.getByName(address));
+                } catch (IOException e) {
+                    // not a literal address; skip it
+                }
+            }
+            if (servers.isEmpty()) {
+                fail(ResolveStatus.OTHER_ERROR, "no usable server address in " + addresses);
+            } else {
+                query(servers);
+            }
+        }
+
+        /**
+         * @return true if the response hands the question to the servers of a zone below.
+         */
+        private boolean isReferral(DNSResponse response) {
+            if (response.isAuthoritative() || !response.getAnswers().isEmpty()) {
+                return false;
+            }
+            for (ResponseRecord ns : response.getNameservers()) {
+                if (ns.getType() == RData.TYPE_NS) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Cache the records of the answer section that answer this question: those owned by
+         * this name, of the type asked for or an alias. Anything else a server put there is
+         * neither cached nor returned; if nothing is left of a non-empty answer, nothing is
+         * cached.
+         */
+        private List<ResponseRecord> cacheAnswers(DNSResponse response) {
+            List<ResponseRecord> answers = new ArrayList<>();
+            for (ResponseRecord answer : response.getAnswers()) {
+                int type = answer.getType();
+                if (answer.getOwner().equals(name)
+                        && (type == qtype || type == RData.TYPE_CNAME || type == RData.TYPE_DNAME)) {
+                    answers.add(answer);
+                }
+            }
+            if (!answers.isEmpty()) {
+                answerCache.putAnswers(fqdn, qtype, answers);
+            } else if (response.getAnswers().isEmpty()) {
+                answerCache.putNegative(fqdn, qtype, AnswerCache.RCODE_NO_ERROR, response.getNegativeTtl());
+            }
+            return answers;
+        }
+
+        /**
+         * Add an event to the lookup's trace if it is being sampled.
+         */
+        void trace(ResolutionTrace.Kind kind, InetAddress server, long value, String detail) {
+            ResolutionTrace trace = context.getSampledTrace();
+            if (trace != null) {
+                trace.add(kind, fqdn, server, value, detail);
+            }
+        }
+
+        private void complete(List<ResponseRecord> answers) {
+            finish();
+            future.complete(answers);
+        }
+
+        void fail(ResolveStatus status, String message) {
+            failWith(new ResolutionException(status, message));
+        }
+
+        void fail(ResolveStatus status, String message, Throwable cause) {
+            failWith(new ResolutionException(status, message, cause));
+        }
+
+        private void failWith(Throwable error) {
+            finish();
+            future.completeExceptionally(error);
+        }
+
+        private void finish() {
+            state = State.DONE;
+            unfinished.remove(this);
+            waitingOn.clear();
+            if (leader) {
+                inFlight.remove(flightKey);
+                leader = false;
+            }
+            startFollowers();
+        }
+    }
+
+    /**
+     * One question put to the candidate servers of a zone. Servers are started one stagger
+     * delay apart while fewer than the parallel limit are outstanding, and a server that
+     * times out is replaced by the next candidate. The first usable response ends the
+     * exchange and cancels every other query in it.
+     */
+    private class Exchange {
+        private final Resolution resolution;
+        private final DNSName name;
+        private final int qtype;
+        private final List<InetAddress> candidates;
+        private final List<PendingQuery> queries = new ArrayList<>();
+        private int nextCandidate = 0;
+        private int outstanding = 0;
+        private boolean done = false;
+        private ResolveStatus failure = ResolveStatus.TIMEOUT;
+        private Timer stagger;
+
+        Exchange(Resolution resolution, List<InetAddress> candidates, DNSName name, int qtype) {
+            this.resolution = resolution;
+            this.name = name;
+            this.qtype = qtype;
+            this.candidates = candidates.subList(0, Math.min(candidates.size(), MAX_SERVERS_PER_QUESTION));
+        }
+
+        void start() {
+            sendNext();
+        }
+
+        private void sendNext() {
+            if (done || nextCandidate >= candidates.size()) {
+                return;
+            }
+            InetAddress server = candidates.get(nextCandidate++);
+            send(server);
+
+            if (nextCandidate < candidates.size() && outstanding < maxParallelQueries) {
+                stagger = new Timer() {
+                    @Override
+                    void expire() {
+                        resolution.step(() -> {
+                            if (outstanding < maxParallelQueries) {
+                                sendNext();
+                            }
+                        });
+                    }
+                };
+                schedule(stagger, Math.min(staggerDelay, serverStats.getTimeoutMillis(server)));
+            }
+        }
+
+        private void send(InetAddress server) {
+            InetSocketAddress address = new InetSocketAddress(server, port);
+            PendingKey key;
+            do {
+                key = new PendingKey(randomGenerator.nextInt(RANDOM_GENERATOR_MAX_VALUE + 1), address);
+            } while (pending.containsKey(key) || tcpPending.containsKey(key));
+
+            int payloadSize = ednsUnsupported.contains(server) ? 0 : ednsPayloadSize;
+            PendingQuery query = new PendingQuery(key, this, payloadSize, false);
+            pending.put(key, query);
+            queries.add(query);
+            outstanding++;
+            transmit(query);
+        }
+
+        private void transmit(PendingQuery query) {
+            ResolutionContext context = resolution.context;
+            if (context.isTracing()) {
+                context.getTrace().println("\n\nQuery ID     " + query.key.queryId + " " + name + "  "
+                        + ResponseRecord.typeName(qtype) + " --> "
+                        + query.key.server.getAddress().getHostAddress());
+            }
+            metrics.recordQuery(query.retries > 0);
+            resolution.trace(query.retries > 0 ? ResolutionTrace.Kind.RETRANSMIT : ResolutionTrace.Kind.QUERY,
+                    query.key.server.getAddress(), query.key.queryId,
+                    name == resolution.name ? null : name.toString());
+            query.sentAt = System.nanoTime();
+            if (query.retries == 0) {
+                query.firstSentAt = query.sentAt;
+            }
+            schedule(query, serverStats.getTimeoutMillis(query.key.server.getAddress()));
+            try {
+                channel.send(encode(query), query.key.server);
+            } catch (IOException e) {
+                // treated like a lost packet: the deadline retransmits or fails the query
+            }
+        }
+
+        void onResponse(PendingQuery query, DNSResponse response) {
+            if (done) {
+                return;
+            }
+            InetAddress server = query.key.server.getAddress();
+            long rtt = -1;
+            if (query.retries == 0 && !query.overTcp) {
+                // Karn: a reply to a retransmitted query cannot be timed
+                rtt = (System.nanoTime() - query.sentAt) / 1000;
+                serverStats.recordRtt(server, rtt);
+            }
+            metrics.recordResponse(server, response.getRCode(), rtt);
+            resolution.trace(ResolutionTrace.Kind.RESPONSE, server, response.getRCode(), null);
+            if (response.isTruncated() && !query.overTcp) {
+                retryOverTcp(query);
+                return;
+            }
+            if (response.getRCode() == RCODE_FORMAT_ERROR && query.payloadSize > 0) {
+                retryWithoutEdns(query);
+                return;
+            }
+            outstanding--;
+
+            try {
+                response.decodeRecords();
+            } catch (IOException e) {
+                serverFailed(ResolveStatus.OTHER_ERROR);
+                return;
+            }
+            int rCode = response.getRCode();
+            if (rCode != 0 && rCode != AnswerCache.RCODE_NAME_ERROR) {
+                if (resolution.context.isTracing()) {
+                    response.dumpResponse(resolution.context.getTrace());
+                }
+                serverFailed(ResolveStatus.OTHER_ERROR);  // SERVFAIL, REFUSED...: another server may do better
+                return;
+            }
+
+            finish();
+            resolution.onResponse(response);
+        }
+
+        /**
+         * The response did not fit in a datagram: ask the same server again over TCP.
+         */
+        private void retryOverTcp(PendingQuery truncated) {
+            metrics.recordTcpRetry();
+            metrics.recordQuery(false);
+            resolution.trace(ResolutionTrace.Kind.TCP_RETRY, truncated.key.server.getAddress(),
+                    truncated.key.queryId, null);
+            if (resolution.context.isTracing()) {
+                resolution.context.getTrace().println("\n\nTruncated    " + resolution.fqdn + "  retrying over TCP --> "
+                        + truncated.key.server.getAddress().getHostAddress());
+            }
+            PendingQuery query = new PendingQuery(truncated.key, this, truncated.payloadSize, true);
+            queries.add(query);
+            if (!sendOverTcp(query)) {
+                query.cancelled = true;
+                outstanding--;
+                serverFailed(ResolveStatus.OTHER_ERROR);
+                return;
+            }
+            query.sentAt = System.nanoTime();
+            query.firstSentAt = query.sentAt;
+            schedule(query, TCP_QUERY_TIMEOUT);
+        }
+
+        /**
+         * The server rejected the OPT record (FORMERR): remember that and ask it again without one.
+         */
+        private void retryWithoutEdns(PendingQuery rejected) {
+            InetAddress server = rejected.key.server.getAddress();
+            ednsUnsupported.add(server);
+            metrics.recordEdnsFallback();
+            resolution.trace(ResolutionTrace.Kind.EDNS_FALLBACK, server, rejected.key.queryId, null);
+            PendingQuery query = new PendingQuery(rejected.key, this, 0, false);
+            pending.put(query.key, query);
+            queries.add(query);
+            transmit(query);
+        }
+
+        /**
+         * The TCP connection a query was sent on closed before it was answered.
+         */
+        void onTcpFailed(PendingQuery query) {
+            if (done) {
+                return;
+            }
+            outstanding--;
+            serverFailed(ResolveStatus.OTHER_ERROR);
+        }
+
+        void onTimeout(PendingQuery query) {
+            if (done) {
+                return;
+            }
+            metrics.recordTimeout();
+            resolution.trace(ResolutionTrace.Kind.TIMEOUT, query.key.server.getAddress(), query.key.queryId, null);
+            if (query.overTcp) {
+                tcpPending.remove(query.key);
+                query.cancelled = true;
+                TcpConnection connection = tcpConnections.get(query.key.server);
+                if (connection != null) {
+                    connection.abandon(query.key.queryId);
+                }
+                outstanding--;
+                serverFailed(ResolveStatus.TIMEOUT);
+                return;
+            }
+            InetAddress server = query.key.server.getAddress();
+            serverStats.recordTimeout(server);
+            long age = (System.nanoTime() - query.firstSentAt) / 1000000;
+            if (query.retries < MAX_SEND_RETRIES && nextCandidate >= candidates.size()
+                    && age + serverStats.getTimeoutMillis(server) <= MAX_QUERY_LIFETIME) {
+                query.retries++;
+                transmit(query);
+                return;
+            }
+            pending.remove(query.key);
+            query.cancelled = true;
+            outstanding--;
+            serverFailed(ResolveStatus.TIMEOUT);
+        }
+
+        /**
+         * A server gave up or gave an unusable answer: try the next one, or fail once none are left.
+         */
+        private void serverFailed(ResolveStatus status) {
+            if (status != ResolveStatus.TIMEOUT) {
+                failure = status;
+            }
+            if (nextCandidate < candidates.size()) {
+                sendNext();
+            } else if (outstanding == 0) {
+                finish();
+                resolution.onExchangeFailed(failure, "no usable response for " + name + " from " + candidates);
+            }
+        }
+
+        /**
+         * End the exchange and cancel whatever is still outstanding.
+         */
+        private void finish() {
+            done = true;
+            if (stagger != null) {
+                stagger.cancelled = true;
+            }
+            for (PendingQuery query : queries) {
+                if (!query.cancelled) {
+                    query.cancelled = true;
+                    if (query.overTcp) {
+                        tcpPending.remove(query.key);
+                        TcpConnection connection = tcpConnections.get(query.key.server);
+                        if (connection != null) {
+                            connection.abandon(query.key.queryId);
+                        }
+                    } else {
+                        pending.remove(query.key);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Identifies an outstanding query: responses must come from the server it was sent to
+     * and echo its id.
+     */
+    private static class PendingKey {
+        private final int queryId;
+        private final InetSocketAddress server;
+
+        PendingKey(int queryId, InetSocketAddress server) {
+            this.queryId = queryId;
+            this.server = server;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof PendingKey)) {
+                return false;
+            }
+            PendingKey other = (PendingKey) o;
+            return queryId == other.queryId && server.equals(other.server);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * server.hashCode() + queryId;
+        }
+    }
+
+    /**
+     * A query sent to one server; as a timer it fires when the server has taken too long.
+     */
+    private static class PendingQuery extends Timer {
+        private final PendingKey key;
+        private final Exchange exchange;
+        private final int payloadSize;    // advertised in an OPT record; 0 for none
+        private final boolean overTcp;
+        private int retries = 0;
+        private long firstSentAt;
+        private long sentAt;
+
+        PendingQuery(PendingKey key, Exchange exchange, int payloadSize, boolean overTcp) {
+            this.key = key;
+            this.exchange = exchange;
+            this.payloadSize = payloadSize;
+            this.overTcp = overTcp;
+        }
+
+        @Override
+        void expire() {
+            exchange.resolution.step(() -> exchange.onTimeout(this));
+        }
+    }
+}
@@ -0,0 +1,157 @@
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resolves a stream of names, one per line, with a bounded number of lookups in flight.
+ * All lookups share one resolver and therefore its answer and delegation caches.
+ * Results are written as they complete, in the same format as a single lookup.
+ */
+public class BatchLookup {
+    public static final int DEFAULT_MAX_IN_FLIGHT = 256;
+
+    private final Resolver resolver;
+    private final int qtype;
+    private final int maxInFlight;
+    private final AtomicLong resolvedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private boolean dualStack = false;
+
+    /**
+     * @param resolver    - the resolver every name is looked up with.
+     * @param qtype       - the query type (1 for A, 28 for AAAA).
+     * @param maxInFlight - the most lookups allowed to run at once.
+     */
+    public BatchLookup(Resolver resolver, int qtype, int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be positive: " + maxInFlight);
+        }
+        this.resolver = resolver;
+        this.qtype = qtype;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Resolve every name read from input and print the results to out. Blank lines and
+     * lines starting with '#' are skipped. Returns once every lookup has completed.
+     *
+     * @param input - the names, one per line.
+     * @param out   - where the results are printed.
+     * @throws IOException          if input cannot be read.
+     * @throws InterruptedException if interrupted while waiting for lookups.
+     */
+    public void run(BufferedReader input, final PrintStream out) throws IOException, InterruptedException {
+        final Semaphore inFlight = new Semaphore(maxInFlight);
+        // results are printed off the resolver's event loop so a slow consumer cannot stall it
+        ExecutorService printer = Executors.newSingleThreadExecutor();
+
+        try {
+            String line;
+            while ((line = input.readLine()) != null) {
+                String name = line.trim();
+                if (name.isEmpty() || name.startsWith("#")) {
+                    continue;
+                }
+
+                inFlight.acquire();
+                lookUp(name).thenAcceptAsync(formatted -> {
+                    try {
+                        out.print(formatted);
+                    } finally {
+                        inFlight.release();
+                    }
+                }, printer);
+            }
+            inFlight.acquire(maxInFlight);  // wait for the stragglers
+        } finally {
+            printer.shutdown();
+            printer.awaitTermination(1, TimeUnit.MINUTES);
+            out.flush();
+        }
+    }
+
+    /**
+     * Like {@link #run}, but each name is resolved by blocking code on a thread of its own,
+     * virtual where the JVM has them; see {@link LookupPool}.
+     *
+     * @param input - the names, one per line.
+     * @param out   - where the results are printed.
+     * @throws IOException          if input cannot be read.
+     * @throws InterruptedException if interrupted while waiting for lookups.
+     */
+    public void runOnThreads(BufferedReader input, final PrintStream out) throws IOException, InterruptedException {
+        // reading waits for a free slot rather than rejecting names
+        LookupPool pool = new LookupPool(resolver, maxInFlight, Long.MAX_VALUE);
+        try {
+            String line;
+            while ((line = input.readLine()) != null) {
+                final String name = line.trim();
+                if (name.isEmpty() || name.startsWith("#")) {
+                    continue;
+                }
+                pool.submit(() -> {
+                    String formatted = lookUp(name).join();
+                    synchronized (out) {
+                        out.print(formatted);
+                    }
+                    return formatted;
+                });
+            }
+        } finally {
+            pool.close();
+            out.flush();
+        }
+    }
+
+    /**
+     * Start the lookup of one name and count how it ends.
+     *
+     * @return a future for the lines to print; it never completes exceptionally.
+     */
+    private CompletableFuture<String> lookUp(String name) {
+        if (dualStack) {
+            return resolver.resolveDualStackAsync(name).thenApply(result -> {
+                count(result.isSuccess());
+                return DNSlookup.formatResult(result);
+            });
+        }
+        return resolver.resolveAsync(name, qtype).thenApply(result -> {
+            count(result.isSuccess());
+            return DNSlookup.formatResult(result);
+        });
+    }
+
+    private void count(boolean success) {
+        if (success) {
+            resolvedCount.incrementAndGet();
+        } else {
+            failedCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Look up both the A and AAAA records of each name, sharing one walk; qtype is ignored.
+     */
+    public void setDualStack(boolean dualStack) {
+        this.dualStack = dualStack;
+    }
+
+    public long getResolvedCount() {
+        return resolvedCount.get();
+    }
+
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    public long getTotalCount() {
+        return getResolvedCount() + getFailedCount();
+    }
+}
@@ -0,0 +1,149 @@
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Saves an answer cache and a delegation cache to a file so a restarted resolver starts
+ * warm. The file is written through a memory mapping: a header, then the answer cache's
+ * blocks as they sit off-heap, then the zone cuts. Expiry times are absolute, so entries
+ * that expired while the process was down are skipped when the file is read back.
+ *
+ * A snapshot is written to a temporary file and renamed over the old one, so a crash while
+ * saving leaves the previous snapshot intact.
+ */
+public class CacheSnapshot implements Closeable {
+    private static final int MAGIC = 0x444E5343;  // "DNSC"
+    private static final int VERSION = 3;
+    private static final int HEADER_SIZE = 16;    // magic, version, time written
+
+    private final Path file;
+    private final AnswerCache answerCache;
+    private final DelegationCache delegationCache;
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * @param file            - the snapshot file.
+     * @param answerCache     - the answer cache to save and restore.
+     * @param delegationCache - the zone cut cache to save and restore.
+     */
+    public CacheSnapshot(Path file, AnswerCache answerCache, DelegationCache delegationCache) {
+        this.file = file;
+        this.answerCache = answerCache;
+        this.delegationCache = delegationCache;
+    }
+
+    /**
+     * Write both caches to the snapshot file, replacing the previous snapshot.
+     *
+     * @throws IOException if the file cannot be written.
+     */
+    public synchronized void save() throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.putLong(System.currentTimeMillis());
+            long position = answerCache.snapshot(channel, HEADER_SIZE);
+            delegationCache.snapshot(channel, position);
+            channel.force(false);
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Restore the caches from the snapshot file, if there is one. The file is mapped rather
+     * than read, so only the pages holding live entries are touched. Entries already in the
+     * caches are kept, as they are newer.
+     *
+     * @return the number of answers and zone cuts restored.
+     * @throws IOException if the file cannot be read or is not a snapshot.
+     */
+    public int load() throws IOException {
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer source = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (source.remaining() < HEADER_SIZE || source.getInt() != MAGIC || source.getInt() != VERSION) {
+                throw new IOException(file + " is not a cache snapshot");
+            }
+            source.getLong();
+            return answerCache.restore(source) + delegationCache.restore(source);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException(file + " is truncated", e);
+        }
+    }
+
+    /**
+     * Restore the caches on a background thread, so lookups can be served while the
+     * snapshot is still being read; entries become visible as they are restored.
+     *
+     * @return a future for the number of entries restored.
+     */
+    public CompletableFuture<Integer> loadInBackground() {
+        final CompletableFuture<Integer> loaded = new CompletableFuture<>();
+        Thread loader = new Thread(() -> {
+            try {
+                loaded.complete(load());
+            } catch (IOException e) {
+                loaded.completeExceptionally(e);
+            }
+        }, "cache-snapshot-loader");
+        loader.setDaemon(true);
+        loader.start();
+        return loaded;
+    }
+
+    /**
+     * Save the caches periodically until closed. A failed save is retried at the next period.
+     *
+     * @param period - the time between saves.
+     * @param unit   - the unit of period.
+     */
+    public synchronized void saveEvery(long period, TimeUnit unit) {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "cache-snapshot-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                save();
+            } catch (IOException e) {
+                // keep the previous snapshot; try again next period
+            }
+        }, period, period, unit);
+    }
+
+    /**
+     * Stop periodic saves and save one last time.
+     *
+     * @throws IOException if the final save fails.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (scheduler != null) {
+                scheduler.shutdown();
+                scheduler = null;
+            }
+        }
+        save();
+    }
+}
@@ -0,0 +1,510 @@
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A flyweight view of a DNS message held in a byte array. Header fields and records are
+ * read at absolute offsets when asked for, so walking a message copies nothing; names are
+ * only turned into strings on request, through a buffer owned by the view.
+ * A view can be re-pointed at another packet with {@link #wrap(byte[], int)}.
+ */
+public class DNSMessage {
+    public static final int HEADER_SIZE = 12;
+    public static final int SECTION_ANSWER = 1;
+    public static final int SECTION_AUTHORITY = 2;
+    public static final int SECTION_ADDITIONAL = 3;
+    private static final int MAX_NAME_LENGTH = 255;     // presentation form, dots included
+    private static final int FIXED_RECORD_SIZE = 10;    // type, class, ttl, rdlength
+
+    private byte[] data;
+    private int length;
+    private final char[] nameBuffer = new char[MAX_NAME_LENGTH + 1];
+    private final byte[] wireBuffer = new byte[DNSName.MAX_WIRE_LENGTH];
+
+    // record cursor
+    private int position;
+    private int recordIndex;
+    private int nameOffset;
+    private int type;
+    private int recordClass;
+    private int ttl;
+    private int rdataOffset;
+    private int rdataLength;
+
+    public DNSMessage() {
+    }
+
+    public DNSMessage(byte[] data, int length) throws IOException {
+        wrap(data, length);
+    }
+
+    /**
+     * Point this view at a packet. The array is not copied and must not change while it is in use.
+     *
+     * @param data   - the packet buffer.
+     * @param length - the number of valid bytes in it.
+     * @return this view.
+     * @throws IOException if the packet is too short to hold a header.
+     */
+    public DNSMessage wrap(byte[] data, int length) throws IOException {
+        if (length < HEADER_SIZE || length > data.length) {
+            throw new IOException("Truncated DNS header: " + length + " bytes");
+        }
+        this.data = data;
+        this.length = length;
+        this.position = -1;
+        this.recordIndex = -1;
+        return this;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public int getId() {
+        return readUnsignedShort(0);
+    }
+
+    public int getFlags() {
+        return readUnsignedShort(2);
+    }
+
+    public boolean isResponse() {
+        return (getFlags() & 0x8000) != 0;
+    }
+
+    public int getOpcode() {
+        return (getFlags() & 0x7800) >> 11;
+    }
+
+    public boolean isAuthoritative() {
+        return (getFlags() & 0x0400) != 0;
+    }
+
+    public boolean isTruncated() {
+        return (getFlags() & 0x0200) != 0;
+    }
+
+    public int getRCode() {
+        return getFlags() & 0x000F;
+    }
+
+    public int getQuestionCount() {
+        return readUnsignedShort(4);
+    }
+
+    public int getAnswerCount() {
+        return readUnsignedShort(6);
+    }
+
+    public int getAuthorityCount() {
+        return readUnsignedShort(8);
+    }
+
+    public int getAdditionalCount() {
+        return readUnsignedShort(10);
+    }
+
+    /**
+     * @return the type of the first question.
+     * @throws IOException if the message has no well formed question.
+     */
+    public int getQuestionType() throws IOException {
+        return readUnsignedShort(checkRange(skipName(HEADER_SIZE), 4));
+    }
+
+    public int getQuestionClass() throws IOException {
+        return readUnsignedShort(checkRange(skipName(HEADER_SIZE), 4) + 2);
+    }
+
+    /**
+     * Compare the first question's name with a name, ignoring case and a trailing dot.
+     */
+    public boolean questionNameEquals(String name) throws IOException {
+        return nameEquals(HEADER_SIZE, name);
+    }
+
+    public String getQuestionName() throws IOException {
+        return readName(HEADER_SIZE);
+    }
+
+    /**
+     * Check that this message has exactly the question of a query we sent: the same name,
+     * ignoring case, type and class IN. The question is compared in wire form, so nothing is
+     * decoded or allocated.
+     *
+     * @param name  - the name we asked for.
+     * @param qtype - the type we asked for.
+     * @return false if the question differs, is missing or is malformed.
+     */
+    public boolean questionEquals(DNSName name, int qtype) {
+        if (getQuestionCount() != 1) {
+            return false;
+        }
+        byte[] wire = name.wire();
+        int nameEnd = HEADER_SIZE + wire.length;
+        if (nameEnd + 4 > length) {
+            return false;
+        }
+        for (int i = 0; i < wire.length; i++) {
+            if (DNSName.toLowerCase(data[HEADER_SIZE + i]) != DNSName.toLowerCase(wire[i])) {
+                return false;
+            }
+        }
+        return readUnsignedShort(nameEnd) == qtype && readUnsignedShort(nameEnd + 2) == 1;
+    }
+
+    /**
+     * Advance the record cursor to the next answer, authority or additional record.
+     *
+     * @return false once every record has been visited.
+     * @throws IOException if a record runs past the end of the packet.
+     */
+    public boolean nextRecord() throws IOException {
+        if (position < 0) {
+            position = HEADER_SIZE;
+            for (int i = getQuestionCount(); i > 0; i--) {
+                position = checkRange(skipName(position), 4) + 4;
+            }
+        }
+        if (recordIndex + 1 >= getAnswerCount() + getAuthorityCount() + getAdditionalCount()) {
+            return false;
+        }
+
+        recordIndex++;
+        nameOffset = position;
+        int fixed = checkRange(skipName(position), FIXED_RECORD_SIZE);
+        type = readUnsignedShort(fixed);
+        recordClass = readUnsignedShort(fixed + 2);
+        ttl = readInt(fixed + 4);
+        rdataLength = readUnsignedShort(fixed + 8);
+        rdataOffset = checkRange(fixed + FIXED_RECORD_SIZE, rdataLength);
+        position = rdataOffset + rdataLength;
+        return true;
+    }
+
+    /**
+     * Move the record cursor back before the first record.
+     */
+    public void rewind() {
+        position = -1;
+        recordIndex = -1;
+    }
+
+    /**
+     * @return the section of the current record, one of the SECTION_ constants.
+     */
+    public int getSection() {
+        if (recordIndex < getAnswerCount()) {
+            return SECTION_ANSWER;
+        }
+        if (recordIndex < getAnswerCount() + getAuthorityCount()) {
+            return SECTION_AUTHORITY;
+        }
+        return SECTION_ADDITIONAL;
+    }
+
+    public int getRecordNameOffset() {
+        return nameOffset;
+    }
+
+    public int getRecordType() {
+        return type;
+    }
+
+    public int getRecordClass() {
+        return recordClass;
+    }
+
+    public int getRecordTtl() {
+        return ttl;
+    }
+
+    public int getRdataOffset() {
+        return rdataOffset;
+    }
+
+    public int getRdataLength() {
+        return rdataLength;
+    }
+
+    public String getRecordName() throws IOException {
+        return readName(nameOffset);
+    }
+
+    public DNSName getRecordOwner() throws IOException {
+        return readWireName(nameOffset);
+    }
+
+    /**
+     * @return the current record's data, typed by its record type.
+     * @throws IOException if the data is malformed for its type.
+     */
+    public RData getRData() throws IOException {
+        return RData.decode(this, type, rdataOffset, rdataLength);
+    }
+
+    /**
+     * Render the current record's RDATA as text: addresses in dotted/colon form, names for
+     * NS and CNAME records, and "----" for types that are not interpreted.
+     */
+    public String getRdataString() throws IOException {
+        if (type == 1 && rdataLength == 4) {
+            return formatIPv4(rdataOffset);
+        } else if (type == 28 && rdataLength == 16) {
+            return formatIPv6(rdataOffset);
+        } else if (type == 2 || type == 5) {
+            return readName(rdataOffset);
+        }
+        return "----";
+    }
+
+    /**
+     * Find where a name ends, without following compression pointers.
+     *
+     * @param offset - the offset the name starts at.
+     * @return the offset of the first byte after the name.
+     * @throws IOException if the name runs past the end of the packet.
+     */
+    public int skipName(int offset) throws IOException {
+        int pos = offset;
+        while (true) {
+            int len = readUnsignedByte(pos);
+            if (len == 0) {
+                return pos + 1;
+            }
+            if ((len & 0xC0) == 0xC0) {
+                checkRange(pos, 2);
+                return pos + 2;
+            }
+            if ((len & 0xC0) != 0) {
+                throw new IOException("Unsupported label type at offset " + pos);
+            }
+            pos += len + 1;
+        }
+    }
+
+    /**
+     * Decode the name at an offset into presentation form, without the trailing dot.
+     *
+     * @param offset - the offset the name starts at.
+     * @return the decoded name; the root is the empty string.
+     * @throws IOException if the name is malformed, too long or its pointers loop.
+     */
+    public String readName(int offset) throws IOException {
+        int length = decodeName(offset);
+        return new String(nameBuffer, 0, length);
+    }
+
+    /**
+     * Decode the name at an offset into uncompressed wire form.
+     *
+     * @param offset - the offset the name starts at.
+     * @return the name.
+     * @throws IOException if the name is malformed, too long or its pointers loop.
+     */
+    public DNSName readWireName(int offset) throws IOException {
+        return new DNSName(Arrays.copyOf(wireBuffer, decodeWireName(offset)));
+    }
+
+    /**
+     * Decode a name inside RDATA, which must not run past the end of the record.
+     *
+     * @param offset - the offset the name starts at.
+     * @param end    - the offset just past the record's data.
+     */
+    DNSName readWireName(int offset, int end) throws IOException {
+        if (skipName(offset) > end) {
+            throw new IOException("Name runs past its record at offset " + offset);
+        }
+        return readWireName(offset);
+    }
+
+    /**
+     * @return a copy of part of the packet.
+     */
+    byte[] copyRange(int offset, int count) throws IOException {
+        checkRange(offset, count);
+        return Arrays.copyOfRange(data, offset, offset + count);
+    }
+
+    /**
+     * Compare the name at an offset with a name, ignoring ASCII case and a trailing dot.
+     * Nothing is allocated.
+     */
+    public boolean nameEquals(int offset, String name) throws IOException {
+        int length = decodeName(offset);
+        int expected = name.length();
+        if (expected > 0 && name.charAt(expected - 1) == '.') {
+            expected--;
+        }
+        if (length != expected) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (toLowerCase(nameBuffer[i]) != toLowerCase(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decode a name into the view's name buffer. Every compression pointer has to point
+     * strictly before the label it replaces, so a chain of pointers always terminates.
+     *
+     * @return the number of characters written.
+     */
+    private int decodeName(int offset) throws IOException {
+        int pos = offset;
+        int limit = offset;  // pointers must go below this
+        int written = 0;
+
+        while (true) {
+            int len = readUnsignedByte(pos);
+            if (len == 0) {
+                return written;
+            }
+
+            if ((len & 0xC0) == 0xC0) {
+                int target = ((len & 0x3F) << 8) | readUnsignedByte(pos + 1);
+                if (target >= limit) {
+                    throw new IOException("Compression pointer loop at offset " + pos);
+                }
+                limit = target;
+                pos = target;
+                continue;
+            }
+            if ((len & 0xC0) != 0) {
+                throw new IOException("Unsupported label type at offset " + pos);
+            }
+
+            checkRange(pos + 1, len);
+            if (written + len + (written > 0 ? 1 : 0) > MAX_NAME_LENGTH) {
+                throw new IOException("Name too long at offset " + offset);
+            }
+            if (written > 0) {
+                nameBuffer[written++] = '.';
+            }
+            for (int i = 1; i <= len; i++) {
+                nameBuffer[written++] = (char) (data[pos + i] & 0xFF);
+            }
+            pos += len + 1;
+        }
+    }
+
+    /**
+     * Decode a name into the view's wire buffer, following compression pointers as
+     * {@link #decodeName(int)} does.
+     *
+     * @return the number of bytes written, the root label included.
+     */
+    private int decodeWireName(int offset) throws IOException {
+        int pos = offset;
+        int limit = offset;
+        int written = 0;
+
+        while (true) {
+            int len = readUnsignedByte(pos);
+            if (len == 0) {
+                wireBuffer[written++] = 0;
+                return written;
+            }
+
+            if ((len & 0xC0) == 0xC0) {
+                int target = ((len & 0x3F) << 8) | readUnsignedByte(pos + 1);
+                if (target >= limit) {
+                    throw new IOException("Compression pointer loop at offset " + pos);
+                }
+                limit = target;
+                pos = target;
+                continue;
+            }
+            if ((len & 0xC0) != 0) {
+                throw new IOException("Unsupported label type at offset " + pos);
+            }
+
+            checkRange(pos + 1, len);
+            if (written + len + 2 > DNSName.MAX_WIRE_LENGTH) {
+                throw new IOException("Name too long at offset " + offset);
+            }
+            System.arraycopy(data, pos, wireBuffer, written, len + 1);
+            written += len + 1;
+            pos += len + 1;
+        }
+    }
+
+    private String formatIPv4(int offset) {
+        int written = 0;
+        for (int i = 0; i < 4; i++) {
+            if (i > 0) {
+                nameBuffer[written++] = '.';
+            }
+            written = appendDecimal(data[offset + i] & 0xFF, written);
+        }
+        return new String(nameBuffer, 0, written);
+    }
+
+    /**
+     * Format an IPv6 address the way InetAddress.getHostAddress does: eight uncompressed hex groups.
+     */
+    private String formatIPv6(int offset) {
+        int written = 0;
+        for (int i = 0; i < 8; i++) {
+            if (i > 0) {
+                nameBuffer[written++] = ':';
+            }
+            int group = readUnsignedShort(offset + 2 * i);
+            boolean leading = true;
+            for (int shift = 12; shift >= 0; shift -= 4) {
+                int digit = (group >> shift) & 0xF;
+                if (digit != 0 || !leading || shift == 0) {
+                    nameBuffer[written++] = Character.forDigit(digit, 16);
+                    leading = false;
+                }
+            }
+        }
+        return new String(nameBuffer, 0, written);
+    }
+
+    private int appendDecimal(int value, int written) {
+        if (value >= 100) {
+            nameBuffer[written++] = (char) ('0' + value / 100);
+        }
+        if (value >= 10) {
+            nameBuffer[written++] = (char) ('0' + value / 10 % 10);
+        }
+        nameBuffer[written++] = (char) ('0' + value % 10);
+        return written;
+    }
+
+    private static char toLowerCase(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    private int checkRange(int offset, int count) throws IOException {
+        if (offset < 0 || offset + count > length) {
+            throw new IOException("DNS message truncated at offset " + offset);
+        }
+        return offset;
+    }
+
+    private int readUnsignedByte(int offset) throws IOException {
+        if (offset >= length) {
+            throw new IOException("DNS message truncated at offset " + offset);
+        }
+        return data[offset] & 0xFF;
+    }
+
+    int readUnsignedShort(int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+
+    int readInt(int offset) {
+        return (readUnsignedShort(offset) << 16) | readUnsignedShort(offset + 2);
+    }
+}
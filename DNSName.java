@@ -0,0 +1,218 @@
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A domain name held in uncompressed wire form: length-prefixed labels ending with the
+ * empty root label, as the name appears in a packet. Case is kept for printing and
+ * encoding; equality and hashing ignore ASCII case as DNS does.
+ */
+public final class DNSName {
+    public static final DNSName ROOT = new DNSName(new byte[]{0});
+    static final int MAX_WIRE_LENGTH = 255;
+    static final int MAX_LABEL_LENGTH = 63;
+
+    private final byte[] wire;
+    private int hash;  // 0 until computed
+
+    /**
+     * @param wire - a well formed uncompressed name; it is not copied.
+     */
+    DNSName(byte[] wire) {
+        this.wire = wire;
+    }
+
+    /**
+     * Parse a name in dotted form. A trailing dot is optional; "" and "." are the root.
+     *
+     * @param name - the name.
+     * @return the name in wire form.
+     * @throws IllegalArgumentException if a label is empty or too long, or the name is too long.
+     */
+    public static DNSName of(String name) {
+        int end = name.endsWith(".") ? name.length() - 1 : name.length();
+        if (end <= 0) {
+            return ROOT;
+        }
+        byte[] wire = new byte[end + 2];
+        int labelStart = 0;
+        int written = 0;
+        for (int i = 0; i <= end; i++) {
+            if (i == end || name.charAt(i) == '.') {
+                int length = i - labelStart;
+                if (length == 0 || length > MAX_LABEL_LENGTH) {
+                    throw new IllegalArgumentException("Bad label length " + length + " in " + name);
+                }
+                wire[written++] = (byte) length;
+                for (int j = labelStart; j < i; j++) {
+                    wire[written++] = (byte) name.charAt(j);
+                }
+                labelStart = i + 1;
+            }
+        }
+        wire[written] = 0;
+        if (wire.length > MAX_WIRE_LENGTH) {
+            throw new IllegalArgumentException("Name too long: " + name);
+        }
+        return new DNSName(wire);
+    }
+
+    /**
+     * @return the wire form itself, for encoders in this package; it must not be changed.
+     */
+    byte[] wire() {
+        return wire;
+    }
+
+    public int getWireLength() {
+        return wire.length;
+    }
+
+    public int getLabelCount() {
+        int count = 0;
+        for (int pos = 0; wire[pos] != 0; pos += wire[pos] + 1) {
+            count++;
+        }
+        return count;
+    }
+
+    public boolean isRoot() {
+        return wire.length == 1;
+    }
+
+    /**
+     * Write the name uncompressed.
+     */
+    public void writeTo(ByteBuffer buffer) {
+        buffer.put(wire);
+    }
+
+    /**
+     * The ancestor of this name made of its last labels, e.g. 2 labels of www.cs.ubc.ca is ubc.ca.
+     *
+     * @param labels - how many labels to keep, at most {@link #getLabelCount()}.
+     * @return the ancestor; the name itself if every label is kept.
+     */
+    public DNSName suffix(int labels) {
+        int skip = getLabelCount() - labels;
+        if (skip < 0 || labels < 0) {
+            throw new IllegalArgumentException("No " + labels + " label suffix of " + this);
+        }
+        int pos = 0;
+        for (int i = 0; i < skip; i++) {
+            pos += wire[pos] + 1;
+        }
+        return pos == 0 ? this : new DNSName(Arrays.copyOfRange(wire, pos, wire.length));
+    }
+
+    /**
+     * Move this name from under one ancestor to under another, as a DNAME does: with
+     * a.b.example.com, example.com and example.net, the result is a.b.example.net.
+     *
+     * @param oldSuffix - an ancestor of this name.
+     * @param newSuffix - the name to put in its place.
+     * @return the rewritten name, or null if it would be longer than 255 bytes.
+     * @throws IllegalArgumentException if oldSuffix is not an ancestor of this name.
+     */
+    public DNSName replaceSuffix(DNSName oldSuffix, DNSName newSuffix) {
+        if (!isSubdomainOf(oldSuffix)) {
+            throw new IllegalArgumentException(oldSuffix + " is not an ancestor of " + this);
+        }
+        int prefix = wire.length - oldSuffix.wire.length;
+        if (prefix + newSuffix.wire.length > MAX_WIRE_LENGTH) {
+            return null;
+        }
+        byte[] rewritten = Arrays.copyOf(wire, prefix + newSuffix.wire.length);
+        System.arraycopy(newSuffix.wire, 0, rewritten, prefix, newSuffix.wire.length);
+        return new DNSName(rewritten);
+    }
+
+    /**
+     * @return true if this name is the given name or lies below it.
+     */
+    public boolean isSubdomainOf(DNSName ancestor) {
+        int offset = wire.length - ancestor.wire.length;
+        if (offset < 0) {
+            return false;
+        }
+        // the suffix must start on a label boundary
+        int pos = 0;
+        while (pos < offset) {
+            pos += wire[pos] + 1;
+        }
+        return pos == offset && regionEquals(wire, offset, ancestor.wire, 0, ancestor.wire.length);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof DNSName)) {
+            return false;
+        }
+        DNSName other = (DNSName) o;
+        return wire.length == other.wire.length && regionEquals(wire, 0, other.wire, 0, wire.length);
+    }
+
+    @Override
+    public int hashCode() {
+        int h = hash;
+        if (h == 0) {
+            for (byte b : wire) {
+                h = 31 * h + toLowerCase(b);
+            }
+            hash = h;
+        }
+        return h;
+    }
+
+    /**
+     * @return the name in dotted form without a trailing dot; the root is the empty string.
+     */
+    @Override
+    public String toString() {
+        if (isRoot()) {
+            return "";
+        }
+        char[] chars = new char[wire.length - 2];
+        int written = 0;
+        for (int pos = 0; wire[pos] != 0; pos += wire[pos] + 1) {
+            if (written > 0) {
+                chars[written++] = '.';
+            }
+            for (int i = 1; i <= wire[pos]; i++) {
+                chars[written++] = (char) (wire[pos + i] & 0xFF);
+            }
+        }
+        return new String(chars, 0, written);
+    }
+
+    /**
+     * A copy of the name with every label lowercased.
+     */
+    public DNSName toLowerCase() {
+        byte[] lower = Arrays.copyOf(wire, wire.length);
+        for (int i = 0; i < lower.length; i++) {
+            lower[i] = toLowerCase(lower[i]);
+        }
+        return new DNSName(lower);
+    }
+
+    private static boolean regionEquals(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            if (toLowerCase(a[aOffset + i]) != toLowerCase(b[bOffset + i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Lowercase an ASCII letter. Length bytes are at most 63, below 'A', so whole wire
+     * names can be folded byte by byte.
+     */
+    static byte toLowerCase(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+}
@@ -0,0 +1,87 @@
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Builds DNS query messages.
+ *
+ * The name is taken in wire form ({@link DNSName}), whose labels were checked when it was
+ * parsed, so a lookup turns its name into bytes once and every query it sends, to each
+ * server of the referral chain and on each retransmission, is a few puts into a buffer.
+ */
+public class DNSQuery {
+    public static final int TYPE_OPT = 41;
+    private static final int OPT_RECORD_SIZE = 11;
+    /** The largest query {@link #encode(ByteBuffer, int, DNSName, int, int)} writes. */
+    public static final int MAX_QUERY_SIZE = DNSMessage.HEADER_SIZE + DNSName.MAX_WIRE_LENGTH + 4 + OPT_RECORD_SIZE;
+
+    /**
+     * Encode a non-recursive query for one name, without EDNS.
+     *
+     * @see #encode(int, String, int, int)
+     */
+    public static byte[] encode(int queryId, String fqdn, int qtype) throws IOException {
+        return encode(queryId, fqdn, qtype, 0);
+    }
+
+    /**
+     * Encode a non-recursive query for one name into a new array.
+     *
+     * @param queryId        - the 16 bit id the response must echo.
+     * @param fqdn           - the name to ask for.
+     * @param qtype          - the query type (1 for A, 28 for AAAA, ...).
+     * @param udpPayloadSize - the largest UDP response we accept, advertised in an EDNS(0)
+     *                         OPT record; 0 sends no OPT record, limiting responses to 512 bytes.
+     * @return the query message.
+     * @throws IOException if a label of the name is empty or longer than 63 bytes, or the
+     *                     name is longer than 255.
+     */
+    public static byte[] encode(int queryId, String fqdn, int qtype, int udpPayloadSize) throws IOException {
+        DNSName name;
+        try {
+            name = DNSName.of(fqdn);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_QUERY_SIZE);
+        int length = encode(buffer, queryId, name, qtype, udpPayloadSize);
+        return Arrays.copyOf(buffer.array(), length);
+    }
+
+    /**
+     * Encode a non-recursive query for one name into a buffer, at its position. Nothing is
+     * allocated, so the buffer can be kept and reused for every query.
+     *
+     * @param target         - the buffer; it needs {@link #MAX_QUERY_SIZE} bytes of room.
+     * @param queryId        - the 16 bit id the response must echo.
+     * @param name           - the name to ask for.
+     * @param qtype          - the query type.
+     * @param udpPayloadSize - the UDP payload size to advertise with EDNS(0), or 0 for none.
+     * @return the number of bytes written; the position is left after them.
+     */
+    public static int encode(ByteBuffer target, int queryId, DNSName name, int qtype, int udpPayloadSize) {
+        int start = target.position();
+        target.putShort((short) queryId);
+        target.putShort((short) 0x0000);                           // flags: a plain query, RD clear
+        target.putShort((short) 1);                                // QDCOUNT
+        target.putShort((short) 0);                                // ANCOUNT
+        target.putShort((short) 0);                                // NSCOUNT
+        target.putShort((short) (udpPayloadSize > 0 ? 1 : 0));     // ARCOUNT
+
+        name.writeTo(target);
+        target.putShort((short) qtype);
+        target.putShort((short) 1);                                // QCLASS IN
+
+        if (udpPayloadSize > 0) {
+            // OPT record (RFC 6891): root owner, payload size in the class field,
+            // extended rcode, version 0 and no flags in the TTL, no options
+            target.put((byte) 0);
+            target.putShort((short) TYPE_OPT);
+            target.putShort((short) udpPayloadSize);
+            target.putInt(0);
+            target.putShort((short) 0);
+        }
+        return target.position() - start;
+    }
+}
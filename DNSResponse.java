@@ -1,10 +1,8 @@
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
 import java.io.IOException;
-import java.net.InetAddress;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -16,15 +14,22 @@ public class DNSResponse {
     private int nsCount = 0;              // number of nscount response records
     private int additionalCount = 0;      // number of additional (alternate) response records
     private boolean authoritative = false;// Is this an authoritative record
-    private byte[] data;
+    private int rCode = 0;                // response code, 3 is NXDOMAIN
+    private boolean truncated = false;    // TC: the answer did not fit and must be asked again over TCP
+    private int udpPayloadSize = 0;       // from the OPT record, 0 if the server did not use EDNS
+    private final DNSMessage message;     // flyweight over the packet bytes
+    private boolean decoded = false;      // records are decoded on first use
     private List<ResponseRecord> answerList = new ArrayList<>();
     private List<ResponseRecord> nsList = new ArrayList<>();
     private List<ResponseRecord> additionalList = new ArrayList<>();
 
     /**
      * Print the contents of the dns response.
+     *
+     * @param out - where to print it.
      */
-    void dumpResponse() {
+    void dumpResponse(PrintStream out) {
+        ensureDecoded();
         StringBuilder builder = new StringBuilder();
         builder.append("Response ID: ");
         builder.append(queryID);
@@ -54,198 +59,71 @@ public class DNSResponse {
         }
 
         builder.setLength(builder.length() - 1);
-        System.out.println(builder.toString());
+        out.println(builder.toString());
     }
 
     /**
-     * Create a DNS Response object.
+     * Create a DNS Response object. Only the header is read here; records are decoded the
+     * first time they are asked for, so packets that are discarded after an ID check cost
+     * next to nothing.
      *
-     * @param data the dns response packet data.
+     * @param data   the dns response packet data; it must not change while this response is in use.
+     * @param length the number of valid bytes in data.
+     * @throws IOException if the packet is too short to hold a DNS header.
      */
-    public DNSResponse(String rootDomainName, byte[] data) throws IOException {
-        this.data = data;
-        ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream((data));
-        DataInputStream dnsMessage = new DataInputStream(byteArrayInputStream);
-
-        queryID = dnsMessage.readUnsignedShort();
-
-        short placeHolder = dnsMessage.readShort();
-
-        int QR = placeHolder & 0x8000;
-        boolean isResponse = QR == 0x8000;
-
-        int OPCODE = placeHolder & 0x7800;
-
-        int AA = placeHolder & 0x0400;
-        authoritative = AA == 0x0400;
-
-        int TC = placeHolder & 0x0200;
-        int RD = placeHolder & 0x0100;
-        int RA = placeHolder & 0x0080;
-        int Z = placeHolder & 0x0070;
-        int rCode = placeHolder & 0x000F;
-
-        if (rCode != 0) {
-            generateError(rootDomainName, rCode);
-        }
-
-        int questionCount = dnsMessage.readShort();
-        answerCount = dnsMessage.readShort();
-        nsCount = dnsMessage.readShort();
-        additionalCount = dnsMessage.readShort();
-
-        //skip over question, type, class
-        byte length = 1;
-        while (length != 0) {
-            length = dnsMessage.readByte();
-            dnsMessage.skip(length);
-        }
-        dnsMessage.skip(4);
-
-        for (int i = 0; i < answerCount; i++) {
-            answerList.add(getResponseRecord(dnsMessage));
-        }
-
-        for (int i = 0; i < nsCount; i++) {
-            nsList.add(getResponseRecord(dnsMessage));
-        }
-
-        for (int i = 0; i < additionalCount; i++) {
-            additionalList.add(getResponseRecord(dnsMessage));
-        }
+    public DNSResponse(byte[] data, int length) throws IOException {
+        message = new DNSMessage(data, length);
+
+        queryID = message.getId();
+        authoritative = message.isAuthoritative();
+        rCode = message.getRCode();
+        truncated = message.isTruncated();
+        answerCount = message.getAnswerCount();
+        nsCount = message.getAuthorityCount();
+        additionalCount = message.getAdditionalCount();
     }
 
     /**
-     * Decode bytes from a dns response message.
+     * Decode every record of the message into the answer, nameserver and additional lists.
+     * Called on demand by the getters; call it directly to see a malformed packet as an IOException.
      *
-     * @param dnsMessage the response dns message.
-     * @return the decoded string.
-     * @throws IOException
+     * @throws IOException if a record is malformed.
      */
-    private String decode(DataInputStream dnsMessage) throws IOException {
-        String decodedString = "";
-        boolean isTermination = false;
-        boolean isFirstCall = true;
-        while (!isTermination) {
-            dnsMessage.mark(1);
-            byte firstByte = dnsMessage.readByte();
-            boolean isCompressed = (firstByte & 0xc0) == 0xc0;
-            isTermination = firstByte == 0;
-
-            if (!isTermination) {
-                dnsMessage.reset();
-
-                if (isFirstCall) {
-                    isFirstCall = false;
-                } else {
-                    decodedString += ".";
-                }
-
-                if (isCompressed) {
-                    int offset = dnsMessage.readShort() & 0x3FFF;
-                    decodedString = decode(decodedString, offset);
-                    break;
-                } else {
-                    byte bytesToRead = dnsMessage.readByte();
-                    for (int j = 0; j < bytesToRead; j++) {
-                        decodedString += (char) dnsMessage.readByte();
-                    }
-                }
-            }
+    public void decodeRecords() throws IOException {
+        if (decoded) {
+            return;
         }
-        return decodedString;
-    }
-
-    /**
-     * Decode a compressed value within the dns response message.
-     *
-     * @param decodedString current string that is being decoded.
-     * @param offset        the offset to start reading bytes from.
-     * @return the decoded string from compression.
-     * @throws IOException
-     */
-    private String decode(String decodedString, int offset) throws IOException {
-        byte[] array = Arrays.copyOfRange(data, offset, data.length + 1);
-        ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream((array));
-        DataInputStream dnsMessage = new DataInputStream(byteArrayInputStream);
-
-        boolean isTermination = false;
-        boolean isFirstCall = true;
-        while (!isTermination) {
-            dnsMessage.mark(1);
-            byte firstByte = dnsMessage.readByte();
-            boolean isCompressed = (firstByte & 0xc0) == 0xc0;
-            isTermination = firstByte == 0;
-
-            if (!isTermination) {
-                dnsMessage.reset();
-
-                if (isFirstCall) {
-                    isFirstCall = false;
-                } else {
-                    decodedString += ".";
-                }
+        decoded = true;
+
+        while (message.nextRecord()) {
+            if (message.getRecordType() == DNSQuery.TYPE_OPT) {
+                // EDNS pseudo-record: its class is the sender's UDP payload size
+                udpPayloadSize = message.getRecordClass();
+                additionalCount--;
+                continue;
+            }
+            ResponseRecord responseRecord = new ResponseRecord(message.getRecordOwner(), message.getRecordType(),
+                    message.getRecordClass(), message.getRecordTtl(), message.getRData());
 
-                if (isCompressed) {
-                    int newOffset = dnsMessage.readShort() & 0x3FFF;
-                    decodedString = decode(decodedString, newOffset);
+            switch (message.getSection()) {
+                case DNSMessage.SECTION_ANSWER:
+                    answerList.add(responseRecord);
                     break;
-                } else {
-                    byte bytesToRead = dnsMessage.readByte();
-                    for (int j = 0; j < bytesToRead; j++) {
-                        decodedString += (char) dnsMessage.readByte();
-                    }
-                }
+                case DNSMessage.SECTION_AUTHORITY:
+                    nsList.add(responseRecord);
+                    break;
+                default:
+                    additionalList.add(responseRecord);
             }
         }
-        return decodedString;
     }
 
-    /**
-     * Create a response record to store record data.
-     *
-     * @param dnsMessage the response dns message.
-     * @return a response record.
-     * @throws IOException
-     */
-    private ResponseRecord getResponseRecord(DataInputStream dnsMessage) throws IOException {
-        ResponseRecord responseRecord = new ResponseRecord();
-
-        String name = decode(dnsMessage);
-
-
-        responseRecord.setName(name);
-
-        int type = dnsMessage.readShort();
-        responseRecord.setType(type);
-
-        int rclass = dnsMessage.readShort();
-
-        int ttl = dnsMessage.readInt();
-        responseRecord.setTtl(ttl);
-
-        int dataLength = dnsMessage.readShort();
-
-        if (type == 1 || type == 28) {
-            byte[] ipAddressBytes = new byte[dataLength];
-
-            for (int k = 0; k < dataLength; k++) {
-                ipAddressBytes[k] = dnsMessage.readByte();
-            }
-
-            InetAddress ipAddress = InetAddress.getByAddress(ipAddressBytes);
-            responseRecord.setValue(ipAddress.getHostAddress());
-        } else if (type == 2) {
-            String serverName = decode(dnsMessage);
-            responseRecord.setValue(serverName);
-        } else if (type == 5) {
-            String cname = decode(dnsMessage);
-            responseRecord.setValue(cname);
-        } else {
-            dnsMessage.skip(dataLength);
-            responseRecord.setValue("----");
+    private void ensureDecoded() {
+        try {
+            decodeRecords();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
-        return responseRecord;
     }
 
     /**
@@ -254,6 +132,7 @@ public class DNSResponse {
      * @return the response record to use next.
      */
     public ResponseRecord getNextQueryServerRecord() {
+        ensureDecoded();
         ResponseRecord toUseRecord = null;
         for (ResponseRecord answer : answerList) {
             if (!answer.isIPV6()) {
@@ -285,32 +164,69 @@ public class DNSResponse {
     }
 
     /**
-     * Check if rCode produces an error and if so exit.
+     * The TTL to cache a negative answer for, taken from the SOA in the authority section:
+     * the smaller of the SOA record's TTL and its MINIMUM field (RFC 2308 section 5).
      *
-     * @param rootDomainName - The original name being looked up.
-     * @param rCode          - The rcode of the response packet.
+     * @return the negative TTL, or -1 if the response carries no SOA.
      */
-    private void generateError(String rootDomainName, int rCode) {
-        if (rCode == 3) {
-            System.out.println(rootDomainName + " -1   A 0.0.0.0");
-        } else {
-            System.out.println(rootDomainName + " -4   A 0.0.0.0");
+    public int getNegativeTtl() {
+        ensureDecoded();
+        for (ResponseRecord ns : nsList) {
+            if (ns.getType() == RData.TYPE_SOA && ns.getRData() instanceof RData.SOA) {
+                int minimum = ((RData.SOA) ns.getRData()).getMinimum();
+                // MINIMUM is unsigned; a value past 2^31 is no limit at all
+                return minimum < 0 ? ns.getTtl() : Math.min(ns.getTtl(), minimum);
+            }
         }
-        System.exit(0);
+        return -1;
     }
 
     public int getQueryID() {
         return queryID;
     }
 
+    public int getRCode() {
+        return rCode;
+    }
+
+    /**
+     * @return the flyweight view of the packet, for callers that want to inspect it without decoding.
+     */
+    public DNSMessage getMessage() {
+        return message;
+    }
+
     public boolean isAuthoritative() {
         return authoritative;
     }
 
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * @return the UDP payload size the server advertised in its OPT record, or 0 if it sent none.
+     */
+    public int getUdpPayloadSize() {
+        ensureDecoded();
+        return udpPayloadSize;
+    }
+
     public List<ResponseRecord> getAnswers() {
+        ensureDecoded();
         return answerList;
     }
 
+    public List<ResponseRecord> getNameservers() {
+        ensureDecoded();
+        return nsList;
+    }
+
+    public List<ResponseRecord> getAdditional() {
+        ensureDecoded();
+        return additionalList;
+    }
+
 }
 
 
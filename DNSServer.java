@@ -0,0 +1,459 @@
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serves stub clients over UDP and TCP from a {@link Resolver}, making it a caching
+ * iterative resolver daemon.
+ *
+ * Each receive thread owns a UDP socket bound to the same port with SO_REUSEPORT, so the
+ * kernel spreads clients over the threads; where SO_REUSEPORT is missing the threads share
+ * one socket. Cached answers are copied into the response in wire format straight from the
+ * receive thread. Misses go to the resolver and are answered from whichever thread completes
+ * them. Every thread encodes into its own {@link ResponseWriter}, so answering allocates no
+ * packet buffers over UDP. Over TCP, responses are queued to a writer thread per connection,
+ * since the resolver completes lookups on its event loop, which must never wait for a client
+ * that stops reading; such a client is disconnected once its queue is full.
+ */
+public class DNSServer implements Closeable {
+    public static final int DEFAULT_PORT = 53;
+    private static final int MAX_UDP_QUERY_SIZE = 4096;
+    private static final int MIN_UDP_PAYLOAD_SIZE = 512;
+    private static final int MAX_UDP_PAYLOAD_SIZE = 1232;   // what we advertise and send at most
+    private static final int MAX_TCP_MESSAGE_SIZE = 65535;
+    private static final int MAX_TCP_CONNECTIONS = 256;
+    private static final int MAX_TCP_QUEUED_RESPONSES = 64;  // per connection, before it is dropped
+    private static final int TCP_IDLE_TIMEOUT = 10000;       // RFC 7766 suggests tens of seconds at most
+    private static final int RCODE_NAME_ERROR = 3;
+
+    private final Resolver resolver;
+    private final List<DatagramChannel> udpChannels = new ArrayList<>();
+    private final List<Thread> threads = new ArrayList<>();
+    private final ServerSocket tcpSocket;
+    private final ExecutorService tcpExecutor;
+    private final Set<Socket> tcpConnections = ConcurrentHashMap.newKeySet();
+    private final ThreadLocal<ResponseWriter> writers =
+            ThreadLocal.withInitial(() -> new ResponseWriter(MAX_TCP_MESSAGE_SIZE));
+    private final AtomicLong queryCount = new AtomicLong();
+    private final AtomicLong cacheAnswerCount = new AtomicLong();
+    private volatile boolean running = true;
+
+    /**
+     * Bind the server's sockets and start serving.
+     *
+     * @param resolver - resolves what the cache cannot answer.
+     * @param address  - the address and port to listen on; port 0 picks a free one.
+     * @param threads  - the number of UDP receive threads.
+     * @throws IOException if a socket cannot be bound.
+     */
+    public DNSServer(Resolver resolver, InetSocketAddress address, int threads) throws IOException {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive: " + threads);
+        }
+        this.resolver = resolver;
+
+        try {
+            DatagramChannel first = DatagramChannel.open();
+            udpChannels.add(first);
+            boolean reusePort = first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+            if (reusePort) {
+                first.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            first.bind(address);
+            InetSocketAddress bound = (InetSocketAddress) first.getLocalAddress();
+
+            for (int i = 1; reusePort && i < threads; i++) {
+                DatagramChannel channel = DatagramChannel.open();
+                udpChannels.add(channel);
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                channel.bind(bound);
+            }
+
+            tcpSocket = new ServerSocket();
+            tcpSocket.setReuseAddress(true);
+            tcpSocket.bind(bound);
+        } catch (IOException e) {
+            for (DatagramChannel channel : udpChannels) {
+                channel.close();
+            }
+            throw e;
+        }
+
+        // a connection is served by blocking code, so it gets a virtual thread where there are some
+        tcpExecutor = Executors.newCachedThreadPool(VirtualThreads.factory("dns-server-tcp"));
+        for (int i = 0; i < threads; i++) {
+            final DatagramChannel channel = udpChannels.get(i % udpChannels.size());
+            start(new Thread(() -> serveUdp(channel), "dns-server-udp-" + i));
+        }
+        start(new Thread(this::acceptTcp, "dns-server-accept"));
+    }
+
+    private void start(Thread thread) {
+        thread.setDaemon(true);
+        threads.add(thread);
+        thread.start();
+    }
+
+    public InetSocketAddress getLocalAddress() throws IOException {
+        return (InetSocketAddress) udpChannels.get(0).getLocalAddress();
+    }
+
+    /**
+     * @return the number of queries received over UDP and TCP.
+     */
+    public long getQueryCount() {
+        return queryCount.get();
+    }
+
+    /**
+     * @return the number of queries answered from the cache without going to the resolver.
+     */
+    public long getCacheAnswerCount() {
+        return cacheAnswerCount.get();
+    }
+
+    /**
+     * Wait until the server is closed.
+     */
+    public void join() throws InterruptedException {
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        for (DatagramChannel channel : udpChannels) {
+            channel.close();
+        }
+        tcpSocket.close();
+        for (Socket socket : tcpConnections) {
+            socket.close();
+        }
+        tcpExecutor.shutdown();
+    }
+
+    private void serveUdp(DatagramChannel channel) {
+        ByteBuffer request = ByteBuffer.allocate(MAX_UDP_QUERY_SIZE);
+        DNSMessage query = new DNSMessage();
+
+        while (running) {
+            SocketAddress client;
+            request.clear();
+            try {
+                client = channel.receive(request);
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                continue;
+            }
+            queryCount.incrementAndGet();
+            try {
+                query.wrap(request.array(), request.position());
+            } catch (IOException e) {
+                continue;  // too short to answer
+            }
+            answer(query, new UdpReply(channel, client, udpPayloadSize(query)));
+        }
+    }
+
+    private void acceptTcp() {
+        while (running) {
+            final Socket socket;
+            try {
+                socket = tcpSocket.accept();
+            } catch (IOException e) {
+                if (tcpSocket.isClosed()) {
+                    return;
+                }
+                continue;
+            }
+            if (tcpConnections.size() >= MAX_TCP_CONNECTIONS) {
+                closeQuietly(socket);
+                continue;
+            }
+            tcpConnections.add(socket);
+            tcpExecutor.execute(() -> serveTcp(socket));
+        }
+    }
+
+    /**
+     * Answer length-prefixed queries on one connection until the client closes it or goes
+     * idle. Queries are pipelined: the next is read while earlier ones are still resolving.
+     */
+    private void serveTcp(Socket socket) {
+        TcpReply reply = null;
+        try {
+            socket.setSoTimeout(TCP_IDLE_TIMEOUT);
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            reply = new TcpReply(socket);
+            tcpExecutor.execute(reply::writeResponses);
+            DNSMessage query = new DNSMessage();
+            byte[] request = new byte[MAX_TCP_MESSAGE_SIZE];
+
+            while (running) {
+                int length;
+                try {
+                    length = in.readUnsignedShort();
+                } catch (EOFException e) {
+                    return;
+                }
+                in.readFully(request, 0, length);
+                queryCount.incrementAndGet();
+                try {
+                    query.wrap(request, length);
+                } catch (IOException e) {
+                    continue;
+                }
+                answer(query, reply);
+            }
+        } catch (IOException e) {
+            // idle timeout, reset or closed by us
+        } finally {
+            tcpConnections.remove(socket);
+            closeQuietly(socket);
+            if (reply != null) {
+                reply.close();
+            }
+        }
+    }
+
+    /**
+     * Answer a query from the cache if possible, otherwise once the resolver is done.
+     * The query's buffer is reused by the caller as soon as this returns.
+     */
+    private void answer(DNSMessage query, Reply reply) {
+        if (query.isResponse()) {
+            return;
+        }
+        final String name;
+        final int qtype;
+        try {
+            if (query.getOpcode() != 0) {
+                reply.send(writers.get().error(query, ResponseWriter.RCODE_NOT_IMPLEMENTED));
+                return;
+            }
+            if (query.getQuestionCount() != 1) {
+                reply.send(writers.get().error(query, ResponseWriter.RCODE_FORMAT_ERROR));
+                return;
+            }
+            name = query.getQuestionName();
+            qtype = query.getQuestionType();
+            if (query.getQuestionClass() != 1 || name.isEmpty()) {
+                reply.send(writers.get().answer(query, ResponseWriter.RCODE_REFUSED,
+                        new ArrayList<ResponseRecord>(), -1, reply.maxSize, reply.udpPayloadSize));
+                return;
+            }
+        } catch (IOException e) {
+            reply.send(writers.get().error(query, ResponseWriter.RCODE_FORMAT_ERROR));
+            return;
+        }
+
+        try {
+            ByteBuffer cached = writers.get().cachedAnswer(query, resolver.getAnswerCache(), name, qtype,
+                    reply.maxSize, reply.udpPayloadSize);
+            if (cached != null) {
+                cacheAnswerCount.incrementAndGet();
+                reply.send(cached);
+                return;
+            }
+        } catch (IOException e) {
+            return;  // the question was readable a moment ago
+        }
+
+        final byte[] saved = Arrays.copyOf(query.getData(), query.getLength());
+        resolver.resolveAsync(name, qtype).thenAccept(result -> {
+            int rCode;
+            int negativeTtl = -1;
+            switch (result.getStatus()) {
+                case SUCCESS:
+                    rCode = 0;
+                    break;
+                case NO_ANSWER:
+                    rCode = 0;
+                    negativeTtl = negativeTtl(name, qtype, result.getAnswers());
+                    break;
+                case NAME_ERROR:
+                    rCode = RCODE_NAME_ERROR;
+                    negativeTtl = negativeTtl(name, qtype, result.getAnswers());
+                    break;
+                default:
+                    rCode = ResponseWriter.RCODE_SERVER_FAILURE;
+            }
+            try {
+                send(new DNSMessage(saved, saved.length), reply, rCode, result.getAnswers(), negativeTtl);
+            } catch (IOException e) {
+                // the query was parsed once already
+            }
+        });
+    }
+
+    /**
+     * The TTL for the SOA of a negative answer: what is left of the negative entry the lookup
+     * cached for the end of its alias chain, or 0, so the client does not cache it, if none was.
+     */
+    private int negativeTtl(String name, int qtype, List<ResponseRecord> answers) {
+        String target = name;
+        for (ResponseRecord answer : answers) {
+            if (answer.getType() == RData.TYPE_CNAME) {
+                target = answer.getValue();
+            }
+        }
+        return Math.max(0, resolver.getAnswerCache().getNegativeTtl(target, qtype));
+    }
+
+    /**
+     * Send the answer of a lookup as the resolver gave it: for an alias, the chain of CNAME
+     * and DNAME records from the name asked for, then the target's records, and for a
+     * negative answer an SOA carrying its negative TTL.
+     */
+    private void send(DNSMessage query, Reply reply, int rCode, List<ResponseRecord> answers, int negativeTtl) {
+        try {
+            reply.send(writers.get().answer(query, rCode, answers, negativeTtl, reply.maxSize,
+                    reply.udpPayloadSize));
+        } catch (IOException e) {
+            // question unreadable; nothing sensible to send
+        }
+    }
+
+    /**
+     * The largest UDP response a query allows: its EDNS payload size, or 512 without one.
+     */
+    private static int udpPayloadSize(DNSMessage query) {
+        try {
+            while (query.nextRecord()) {
+                if (query.getRecordType() == DNSQuery.TYPE_OPT) {
+                    return Math.max(MIN_UDP_PAYLOAD_SIZE, Math.min(MAX_UDP_PAYLOAD_SIZE, query.getRecordClass()));
+                }
+            }
+        } catch (IOException e) {
+            // a malformed additional section gets the classic limit
+        } finally {
+            query.rewind();
+        }
+        return 0;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // nothing left to do
+        }
+    }
+
+    /**
+     * Where the response to one query goes.
+     */
+    private abstract static class Reply {
+        final int maxSize;
+        final int udpPayloadSize;  // advertised back to EDNS clients; 0 for the rest
+
+        Reply(int maxSize, int udpPayloadSize) {
+            this.maxSize = maxSize;
+            this.udpPayloadSize = udpPayloadSize;
+        }
+
+        abstract void send(ByteBuffer response);
+    }
+
+    private static class UdpReply extends Reply {
+        private final DatagramChannel channel;
+        private final SocketAddress client;
+
+        UdpReply(DatagramChannel channel, SocketAddress client, int udpPayloadSize) {
+            super(udpPayloadSize > 0 ? udpPayloadSize : MIN_UDP_PAYLOAD_SIZE,
+                    udpPayloadSize > 0 ? MAX_UDP_PAYLOAD_SIZE : 0);
+            this.channel = channel;
+            this.client = client;
+        }
+
+        @Override
+        void send(ByteBuffer response) {
+            try {
+                channel.send(response, client);
+            } catch (IOException e) {
+                // the client is gone or the socket closed; it will retry
+            }
+        }
+    }
+
+    /**
+     * Queues responses for the connection's writer thread; sending never blocks.
+     */
+    private static class TcpReply extends Reply {
+        private static final byte[] CLOSED = new byte[0];
+
+        private final Socket socket;
+        private final DataOutputStream out;
+        private final BlockingQueue<byte[]> responses = new ArrayBlockingQueue<>(MAX_TCP_QUEUED_RESPONSES);
+
+        TcpReply(Socket socket) throws IOException {
+            super(MAX_TCP_MESSAGE_SIZE, 0);
+            this.socket = socket;
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        @Override
+        void send(ByteBuffer response) {
+            byte[] copy = new byte[response.remaining()];
+            response.get(copy);
+            if (!responses.offer(copy)) {
+                closeQuietly(socket);  // the client has stopped reading
+            }
+        }
+
+        /**
+         * Write queued responses in order until the connection is closed.
+         */
+        void writeResponses() {
+            try {
+                byte[] response;
+                while ((response = responses.take()) != CLOSED) {
+                    out.writeShort(response.length);
+                    out.write(response);
+                    if (responses.isEmpty()) {
+                        out.flush();
+                    }
+                }
+            } catch (IOException e) {
+                closeQuietly(socket);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Stop the writer once the socket is closed: it either takes this marker or fails
+         * writing to the socket.
+         */
+        void close() {
+            responses.offer(CLOSED);
+        }
+    }
+}
@@ -1,13 +1,16 @@
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
+import java.io.BufferedReader;
+import java.io.FileReader;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.io.InputStreamReader;
 import java.net.InetAddress;
-import java.net.SocketTimeoutException;
+import java.net.InetSocketAddress;
+import java.nio.file.Paths;
 import java.util.List;
-import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
 
 /**
  * Lookup a fully qualified domain name with a server.
@@ -15,197 +18,283 @@ import java.util.Random;
 public class DNSlookup {
     private static final int MIN_PERMITTED_ARGUMENT_COUNT = 2;
     private static final int MAX_PERMITTED_ARGUMENT_COUNT = 3;
-    private static final int DEFAULT_PORT = 53;
-    private static final int RANDOM_GENERATOR_MAX_VALUE = 65535;
-    private static final int MAX_SEND_BUF_SIZE = 512;
-    private static final int MAX_RECEIVE_BUF_SIZE = 1024;
-    private static final int SO_TIMEOUT = 5000;
-    private static int QUERY_COUNT = 0;
-    private static boolean tracingOn = false;
-    private static boolean IPV6Query = false;
-    private static final Random randomGenerator = new Random();
-    private static String rootDomainName;
-    private static DatagramSocket socket;
-    private static InetAddress rootServer;
+    private static final int SNAPSHOT_PERIOD_SECONDS = 60;
+    private static final int MAX_PORT = 65535;
+    private static final String METRICS_MBEAN_NAME = "dnslookup:type=Resolver";
 
     /**
      * @param args
      */
     public static void main(String[] args) {
         int argCount = args.length;
+        boolean tracingOn = false;
+        boolean IPV6Query = false;
+        boolean dualStack = false;
+
+        if (argCount > MIN_PERMITTED_ARGUMENT_COUNT && args[1].equals("-b")) {
+            batch(args);
+            return;
+        }
+        if (argCount > MIN_PERMITTED_ARGUMENT_COUNT && args[1].equals("-s")) {
+            serve(args);
+            return;
+        }
 
         if (argCount < MIN_PERMITTED_ARGUMENT_COUNT || argCount > MAX_PERMITTED_ARGUMENT_COUNT) {
             usage();
             return;
         }
 
-        try {
-            rootServer = InetAddress.getByName(args[0]);
-            rootDomainName = args[1];
-
-            if (argCount == 3) {  // option provided
-                if (args[2].equals("-t"))
-                    tracingOn = true;
-                else if (args[2].equals("-6"))
-                    IPV6Query = true;
-                else if (args[2].equals("-t6")) {
-                    tracingOn = true;
-                    IPV6Query = true;
-                } else { // option present but wasn't valid option
-                    usage();
-                    return;
+        String rootDomainName = args[1];
+
+        if (argCount == 3) {  // option provided
+            if (args[2].equals("-t"))
+                tracingOn = true;
+            else if (args[2].equals("-6"))
+                IPV6Query = true;
+            else if (args[2].equals("-t6")) {
+                tracingOn = true;
+                IPV6Query = true;
+            } else if (args[2].equals("-46"))
+                dualStack = true;
+            else if (args[2].equals("-t46")) {
+                tracingOn = true;
+                dualStack = true;
+            } else { // option present but wasn't valid option
+                usage();
+                return;
+            }
+        }
+
+        try (Resolver resolver = new Resolver(InetAddress.getByName(args[0]))) {
+            if (dualStack) {
+                ResolutionContext ipv4 = new ResolutionContext(rootDomainName, 1);
+                ResolutionContext ipv6 = new ResolutionContext(rootDomainName, 28);
+                if (tracingOn) {
+                    ipv4.setTrace(System.out);
+                    ipv6.setTrace(System.out);
                 }
+                System.out.print(formatResult(resolver.resolveDualStackAsync(ipv4, ipv6).join()));
+                return;
             }
-            socket = new DatagramSocket();
-            socket.setSoTimeout(SO_TIMEOUT);
-            List<ResponseRecord> answerList = sendQuery(rootDomainName, rootServer, IPV6Query);
-            if (answerList == null) {
-                System.exit(0);
-            } else {
-                printAnswers(rootDomainName, IPV6Query, answerList);
+            ResolutionContext context = new ResolutionContext(rootDomainName, IPV6Query ? 28 : 1);
+            if (tracingOn) {
+                context.setTrace(System.out);
             }
-
+            printResult(resolver.resolve(context));
         } catch (Exception e) {
-            System.out.println(rootDomainName + " -4   A 0.0.0.0");
-            System.exit(0);
+            System.out.println(rootDomainName + " " + ResolveStatus.OTHER_ERROR.getCode() + "   A 0.0.0.0");
         }
-
     }
 
     /**
-     * Method to retrieve answers for a lookup.
+     * Batch mode: rootDNS -b file|- [-6|-46] [-n6] [-q] [-v] [-p maxInFlight] [-r shards]
      *
-     * @param fqdn           - The name to be looked up.
-     * @param rootNameServer - The server to check against.
-     * @param IPV6Lookup     - Flag for ipv6 lookup.
-     * @return an answer list.
-     * @throws IOException
+     * @param args
      */
-    static public List<ResponseRecord> sendQuery(String fqdn, InetAddress rootNameServer,
-                                                 boolean IPV6Lookup) throws IOException {
-        ByteArrayOutputStream dnsMessage = new ByteArrayOutputStream(MAX_SEND_BUF_SIZE);
-        DataOutputStream dataOutputStream = new DataOutputStream(dnsMessage);
-        DNSResponse response;
-
-        int queryId = randomGenerator.nextInt(RANDOM_GENERATOR_MAX_VALUE + 1);
-
-        QUERY_COUNT++;
-        if (QUERY_COUNT > 30) {
-            System.out.println(rootDomainName + " -3   A 0.0.0.0");
-            return null;
-        }
-
-        int SEND_RETRY_COUNTER = 0;
-        dataOutputStream.writeShort(queryId);
-        // flag identifiers set
-        dataOutputStream.writeShort(0x0000);
-        // QDCOUNT
-        dataOutputStream.writeShort(0x0001);
-        // ANCOUNT
-        dataOutputStream.writeShort(0x0000);
-        // NSCOUNT
-        dataOutputStream.writeShort(0x0000);
-        // ARCOUNT
-        dataOutputStream.writeShort(0x0000);
-
-        // Query Message
-        for (final String label : fqdn.split("\\.")) {
-            dataOutputStream.writeByte((byte) label.length());
-            dataOutputStream.write(label.getBytes());
-        }
-        // termination byte
-        dataOutputStream.writeByte(0x00);
-        // QType
-
-        if (IPV6Lookup) {
-            dataOutputStream.writeShort(0x001c);
-        } else {
-            dataOutputStream.writeShort(0x0001);
-        }
-        // QClass
-        dataOutputStream.writeShort(0x0001);
+    private static void batch(String[] args) {
+        boolean IPV6Query = false;
+        boolean minimise = false;
+        boolean onThreads = false;
+        boolean dualStack = false;
+        boolean ipv6Nameservers = false;
+        int maxInFlight = BatchLookup.DEFAULT_MAX_IN_FLIGHT;
+        int shards = 1;
 
-        dataOutputStream.flush();
-
-        while (SEND_RETRY_COUNTER <= 1) {
-            if (tracingOn) {
-                StringBuilder builder = new StringBuilder();
-                builder.append("\n\n");
-                builder.append("Query ID     ");
-                builder.append(queryId);
-                builder.append(" ");
-                builder.append(fqdn);
-                builder.append("  ");
-                if (IPV6Lookup) {
-                    builder.append("AAAA");
-                } else {
-                    builder.append("A");
-                }
-                builder.append(" --> ");
-                builder.append(rootNameServer.getHostAddress());
-                System.out.println(builder.toString());
-            }
-
-            DatagramPacket sendPacket =
-                    new DatagramPacket(dnsMessage.toByteArray(), dnsMessage.size(), rootNameServer, DEFAULT_PORT);
-            socket.send(sendPacket);
-
-            try {
-                // Wait for response
-                DatagramPacket responsePacket =
-                        new DatagramPacket(new byte[MAX_RECEIVE_BUF_SIZE], MAX_RECEIVE_BUF_SIZE);
-                socket.receive(responsePacket);
-                response = new DNSResponse(rootDomainName, responsePacket.getData());
-
-                while (response.getQueryID() != queryId) {
-                    responsePacket =
-                            new DatagramPacket(new byte[MAX_RECEIVE_BUF_SIZE], MAX_RECEIVE_BUF_SIZE);
-                    socket.receive(responsePacket);
-                    response = new DNSResponse(rootDomainName, responsePacket.getData());
+        for (int i = 3; i < args.length; i++) {
+            if (args[i].equals("-6")) {
+                IPV6Query = true;
+            } else if (args[i].equals("-46")) {
+                dualStack = true;
+            } else if (args[i].equals("-n6")) {
+                ipv6Nameservers = true;
+            } else if (args[i].equals("-q")) {
+                minimise = true;
+            } else if (args[i].equals("-v")) {
+                onThreads = true;
+            } else if ((args[i].equals("-p") || args[i].equals("-r")) && i + 1 < args.length) {
+                try {
+                    if (args[i].equals("-p")) {
+                        maxInFlight = Integer.parseInt(args[++i]);
+                    } else {
+                        shards = Integer.parseInt(args[++i]);
+                    }
+                } catch (NumberFormatException e) {
+                    usage();
+                    return;
                 }
-
-                if (tracingOn) {
-                    response.dumpResponse();
+                if (maxInFlight < 1 || shards < 1) {
+                    usage();
+                    return;
                 }
+            } else {
+                usage();
+                return;
+            }
+        }
 
-                ResponseRecord record = response.getNextQueryServerRecord();
+        try (Resolver resolver = new Resolver(InetAddress.getByName(args[0]), Resolver.DEFAULT_PORT, shards);
+             BufferedReader input = args[2].equals("-")
+                     ? new BufferedReader(new InputStreamReader(System.in))
+                     : new BufferedReader(new FileReader(args[2]))) {
+            resolver.setQnameMinimisation(minimise);
+            resolver.setIpv6Nameservers(ipv6Nameservers);
+            BatchLookup batch = new BatchLookup(resolver, IPV6Query ? 28 : 1, maxInFlight);
+            batch.setDualStack(dualStack);
+            long start = System.nanoTime();
+            if (onThreads) {
+                batch.runOnThreads(input, System.out);
+            } else {
+                batch.run(input, System.out);
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
 
-                if (record == null) {
-                    return response.getAnswers();
-                }
+            System.err.printf("%d names (%d failed) in %.3f s: %.1f names/sec%n", batch.getTotalCount(),
+                    batch.getFailedCount(), seconds, batch.getTotalCount() / Math.max(seconds, 1e-9));
+            System.err.println(resolver.getAnswerCache());
+            System.err.println("Coalesced lookups " + resolver.getCoalescedCount()
+                    + ", upstream queries " + resolver.getMetrics().getQueryCount());
+            System.err.println("Lookup latency (us) " + resolver.getMetrics().getLookupLatency());
+        } catch (IOException e) {
+            System.err.println("Batch lookup failed: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-                if (response.isAuthoritative()) {
-                    if (record.getType() == 5) {
-                        return sendQuery(record.getValue(), rootServer, IPV6Lookup);
+    /**
+     * Server mode: rootDNS -s port [-w threads] [-c snapshotFile] [-x maxStaleSeconds] [-m metricsPort]
+     * [-T sampleEvery] [-q] [-n6] [-r shards]
+     *
+     * @param args
+     */
+    private static void serve(String[] args) {
+        int port;
+        int threads = Runtime.getRuntime().availableProcessors();
+        String snapshotFile = null;
+        int maxStaleSeconds = 0;
+        int metricsPort = -1;
+        int traceSampleEvery = 0;
+        boolean minimise = false;
+        boolean ipv6Nameservers = false;
+        int shards = 1;
+        try {
+            port = Integer.parseInt(args[2]);
+            if (port < 0 || port > MAX_PORT) {
+                usage();
+                return;
+            }
+            for (int i = 3; i < args.length; i++) {
+                if (args[i].equals("-w") && i + 1 < args.length) {
+                    threads = Integer.parseInt(args[++i]);
+                    if (threads < 1) {
+                        usage();
+                        return;
                     }
-                    return response.getAnswers();
-                } else {
-                    if (record.getType() == 5) {
-                        return sendQuery(record.getValue(), rootServer, IPV6Lookup);
+                } else if (args[i].equals("-c") && i + 1 < args.length) {
+                    snapshotFile = args[++i];
+                } else if (args[i].equals("-x") && i + 1 < args.length) {
+                    maxStaleSeconds = Integer.parseInt(args[++i]);
+                    if (maxStaleSeconds < 0) {
+                        usage();
+                        return;
                     }
-
-                    if (record.getType() == 2) {
-                        List<ResponseRecord> answerList =
-                                sendQuery(record.getValue(), rootServer, false);
-                        if (answerList == null || answerList.isEmpty()) {
-                            return answerList;
-                        }
-                        ResponseRecord answerRecord = answerList.get(0);
-                        return sendQuery(fqdn, InetAddress.getByName(answerRecord.getValue()), IPV6Query);
+                } else if (args[i].equals("-m") && i + 1 < args.length) {
+                    metricsPort = Integer.parseInt(args[++i]);
+                    if (metricsPort < 0 || metricsPort > MAX_PORT) {
+                        usage();
+                        return;
+                    }
+                } else if (args[i].equals("-q")) {
+                    minimise = true;
+                } else if (args[i].equals("-n6")) {
+                    ipv6Nameservers = true;
+                } else if (args[i].equals("-r") && i + 1 < args.length) {
+                    shards = Integer.parseInt(args[++i]);
+                    if (shards < 1) {
+                        usage();
+                        return;
                     }
-                    return sendQuery(fqdn, InetAddress.getByName(record.getValue()), IPV6Lookup);
+                } else if (args[i].equals("-T") && i + 1 < args.length) {
+                    traceSampleEvery = Integer.parseInt(args[++i]);
+                    if (traceSampleEvery < 1) {
+                        usage();
+                        return;
+                    }
+                } else {
+                    usage();
+                    return;
                 }
-            } catch (SocketTimeoutException ste) {
-                SEND_RETRY_COUNTER++;
             }
+        } catch (NumberFormatException e) {
+            usage();
+            return;
         }
 
-        System.out.println(rootDomainName + " -2   A 0.0.0.0");
-        return null;
+        try (Resolver resolver = new Resolver(InetAddress.getByName(args[0]), Resolver.DEFAULT_PORT, shards)) {
+            resolver.getAnswerCache().setServeStale(maxStaleSeconds);
+            resolver.setQnameMinimisation(minimise);
+            resolver.setIpv6Nameservers(ipv6Nameservers);
+            try {
+                resolver.getMetrics().register(METRICS_MBEAN_NAME);
+            } catch (JMException e) {
+                System.err.println("Metrics not registered with JMX: " + e.getMessage());
+            }
+            if (traceSampleEvery > 0) {
+                // traces arrive on the resolver's event loop; print them off it
+                final ExecutorService traceWriter = Executors.newSingleThreadExecutor(task -> {
+                    Thread thread = new Thread(task, "trace-writer");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                resolver.setTraceSampling(traceSampleEvery,
+                        trace -> traceWriter.execute(() -> System.err.print(trace)));
+            }
+            if (metricsPort >= 0) {
+                MetricsEndpoint endpoint = new MetricsEndpoint(resolver.getMetrics(),
+                        new InetSocketAddress(metricsPort));
+                System.err.println("Metrics on port " + endpoint.getLocalAddress().getPort() + " at /metrics");
+            }
+            if (snapshotFile != null) {
+                final CacheSnapshot snapshot = new CacheSnapshot(Paths.get(snapshotFile), resolver.getAnswerCache(),
+                        resolver.getDelegationCache());
+                final long start = System.nanoTime();
+                snapshot.loadInBackground().whenComplete((Integer restored, Throwable error) -> {
+                    if (error != null) {
+                        System.err.println("Cache snapshot not loaded: " + error.getMessage());
+                    } else {
+                        System.err.printf("Restored %d cache entries in %.1f ms%n", restored,
+                                (System.nanoTime() - start) / 1e6);
+                    }
+                });
+                snapshot.saveEvery(SNAPSHOT_PERIOD_SECONDS, TimeUnit.SECONDS);
+                // the server runs until the process is stopped; save on the way out
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    try {
+                        snapshot.close();
+                    } catch (IOException e) {
+                        System.err.println("Cache snapshot not saved: " + e.getMessage());
+                    }
+                }));
+            }
+            try (DNSServer server = new DNSServer(resolver, new InetSocketAddress(port), threads)) {
+                System.err.println("Serving on " + server.getLocalAddress() + " with " + threads + " threads");
+                server.join();
+            }
+        } catch (IOException e) {
+            System.err.println("Server failed: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     private static void usage() {
-        System.out.println("Usage: java -jar DNSlookup.jar rootDNS name [-6|-t|t6]");
+        System.out.println("Usage: java -jar DNSlookup.jar rootDNS name [-6|-t|t6|-46|-t46]");
+        System.out.println("       java -jar DNSlookup.jar rootDNS -b file [-6|-46] [-n6] [-q] [-v] [-p maxInFlight]");
+        System.out.println("                                   [-r shards]");
+        System.out.println("       java -jar DNSlookup.jar rootDNS -s port [-w threads] [-c snapshotFile] [-q] [-n6]");
+        System.out.println("                                   [-x maxStaleSeconds] [-m metricsPort] [-T sampleEvery]");
+        System.out.println("                                   [-r shards]");
         System.out.println("   where");
         System.out.println("       rootDNS - the IP address (in dotted form) of the root");
         System.out.println("                 DNS server you are to start your search at");
@@ -213,38 +302,68 @@ public class DNSlookup {
         System.out.println("       -6      - return an IPV6 address");
         System.out.println("       -t      - trace the queries made and responses received");
         System.out.println("       -t6     - trace the queries made, responses received and return an IPV6 address");
+        System.out.println("       -46     - return both the IPV4 and IPV6 addresses in one walk (-t46 to trace)");
+        System.out.println("       -n6     - also query nameservers at their IPV6 addresses");
+        System.out.println("       -b      - resolve every name in file (- for stdin), one per line");
+        System.out.println("       -p      - the most batch lookups in flight at once (default "
+                + BatchLookup.DEFAULT_MAX_IN_FLIGHT + ")");
+        System.out.println("       -v      - resolve each batch name with blocking code on its own thread, virtual"
+                + " where the JVM has them" + (VirtualThreads.isAvailable() ? "" : " (not this one)"));
+        System.out.println("       -s      - serve stub clients over UDP and TCP on port");
+        System.out.println("       -w      - the number of UDP receive threads (default: one per CPU)");
+        System.out.println("       -c      - restore the caches from snapshotFile at start and save them to it every "
+                + SNAPSHOT_PERIOD_SECONDS + " s");
+        System.out.println("       -x      - serve expired answers for up to maxStaleSeconds while they are refreshed");
+        System.out.println("       -m      - serve metrics as text over HTTP on metricsPort (also exported via JMX)");
+        System.out.println("       -T      - print a structured trace of one in every sampleEvery lookups to stderr");
+        System.out.println("       -r      - split the resolver into shards by name, each with its own socket and event"
+                + " loop (default 1)");
+        System.out.println("       -q      - QNAME minimisation: ask each zone only for the next label of a name");
     }
 
     /**
-     * A function that prints the answer records.
+     * A function that prints the answer records of a lookup, or its error code.
      *
-     * @param fqdn   - the full qualified domain name being looked up.
-     * @param isIPv6 - a flag for whether this is a query for ipv6.
+     * @param result - the result of the lookup.
      */
-    public static void printAnswers(String fqdn, boolean isIPv6, List<ResponseRecord> answerList) {
-        boolean hasIPAnswer = false;
-        for (ResponseRecord answer : answerList) {
-
-            if (isIPv6) {
-                if (answer.isIPV6()) {
-                    hasIPAnswer = true;
-                    String result = fqdn + " " + answer.getTtl() + "   " + answer.getRecordType()
-                            + " " + answer.getValue();
-                    System.out.println(result);
-                }
-            } else if (answer.isIPAddress() && !answer.isIPV6()) {
-                hasIPAnswer = true;
-                String result = fqdn + " " + answer.getTtl() + "   " + answer.getRecordType()
-                        + " " + answer.getValue();
-                System.out.println(result);
-            }
-        }
+    public static void printResult(ResolveResult result) {
+        System.out.print(formatResult(result));
+    }
 
-        if (!hasIPAnswer) {
-            System.out.println(fqdn + " -6   A 0.0.0.0");
+    /**
+     * Format a dual-stack result: the IPv4 addresses, then the IPv6 ones. If neither family
+     * has an address, a single error line is printed as for an A lookup.
+     *
+     * @param result - the result of the lookups.
+     * @return the lines, each ending in a newline.
+     */
+    public static String formatResult(DualStackResult result) {
+        if (!result.isSuccess()) {
+            return result.getName() + " " + result.getStatus().getCode() + "   A 0.0.0.0\n";
         }
-        System.exit(0);
+        return formatRecords(result.getName(), result.getRecords());
     }
-}
 
+    /**
+     * Format a lookup result as printed by the CLI, one line per answer record.
+     *
+     * @param result - the result of the lookup.
+     * @return the lines, each ending in a newline.
+     */
+    public static String formatResult(ResolveResult result) {
+        if (!result.isSuccess()) {
+            return result.getName() + " " + result.getStatus().getCode() + "   A 0.0.0.0\n";
+        }
+
+        return formatRecords(result.getName(), result.getRecords());
+    }
 
+    private static String formatRecords(String name, List<ResponseRecord> records) {
+        StringBuilder builder = new StringBuilder();
+        for (ResponseRecord answer : records) {
+            builder.append(name).append(' ').append(answer.getTtl()).append("   ")
+                    .append(answer.getRecordType()).append(' ').append(answer.getValue()).append('\n');
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,424 @@
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers zone cuts learned from referrals: the zone, its nameservers and their glue addresses.
+ * A new resolution starts at the deepest cached ancestor of the name instead of the root.
+ */
+public class DelegationCache {
+    private static final int DEFAULT_MAX_ZONES = 10000;
+    private static final int MAX_TTL = 86400;
+
+    private final int maxZones;
+    private final Map<String, Delegation> delegations = new ConcurrentHashMap<>();
+
+    public DelegationCache() {
+        this(DEFAULT_MAX_ZONES);
+    }
+
+    /**
+     * Create a delegation cache.
+     *
+     * @param maxZones - the number of zone cuts kept before expired ones are purged.
+     */
+    public DelegationCache(int maxZones) {
+        if (maxZones < 1) {
+            throw new IllegalArgumentException("maxZones must be positive: " + maxZones);
+        }
+        this.maxZones = maxZones;
+    }
+
+    /**
+     * Remember the zone cut described by a referral from the servers of a zone. Only NS
+     * records for a zone strictly below the one asked and at or above the name asked about
+     * are taken, and only glue for those nameservers within the zone that sent it (its
+     * bailiwick), so a server cannot hand out cuts or addresses for names it does not
+     * serve. A live cut learned from servers closer to it is not replaced; a cut from servers
+     * as close replaces it, keeping the addresses already resolved for nameservers that come
+     * without glue.
+     *
+     * @param zone       - the zone whose servers sent the referral; "" for the root.
+     * @param fqdn       - the name that was asked about.
+     * @param nsList     - the authority section of the referral.
+     * @param additional - the additional section, searched for glue.
+     * @return the cut to continue at, which may be one already cached; null if the referral
+     * holds no acceptable cut.
+     */
+    public Delegation putReferral(String zone, String fqdn, List<ResponseRecord> nsList,
+                                  List<ResponseRecord> additional) {
+        String parent = AnswerCache.canonicalName(zone);
+        String name = AnswerCache.canonicalName(fqdn);
+        Delegation delegation = null;
+
+        for (ResponseRecord ns : nsList) {
+            if (ns.getType() != 2) {
+                continue;
+            }
+            String owner = AnswerCache.canonicalName(ns.getName());
+            if (owner.equals(parent) || !isAncestor(parent, owner) || !isAncestor(owner, name)) {
+                continue;
+            }
+            if (delegation == null) {
+                delegation = new Delegation(owner, labelCount(parent));
+            } else if (!delegation.zone.equals(owner)) {
+                continue;
+            }
+            delegation.addNameserver(AnswerCache.canonicalName(ns.getValue()), ns.getTtl());
+        }
+
+        if (delegation == null) {
+            return null;
+        }
+
+        for (ResponseRecord glue : additional) {
+            String glueName = AnswerCache.canonicalName(glue.getName());
+            if (glue.isIPAddress() && isAncestor(parent, glueName)) {
+                delegation.addAddress(glueName, glue.getValue(), glue.getTtl());
+            }
+        }
+
+        if (delegations.size() >= maxZones) {
+            purge();
+        }
+        final Delegation referral = delegation;
+        final long now = System.currentTimeMillis();
+        return delegations.compute(referral.zone, (cut, cached) -> {
+            if (cached == null || cached.isExpired(now)) {
+                return referral;
+            }
+            if (cached.source > referral.source) {
+                return cached;
+            }
+            referral.keepAddresses(cached);
+            return referral;
+        });
+    }
+
+    /**
+     * Record the address of a nameserver that was resolved separately because the referral had no glue.
+     *
+     * @param zone    - the zone the nameserver serves.
+     * @param nsName  - the nameserver's name.
+     * @param address - its address in dotted form.
+     * @param ttl     - the TTL of the address record.
+     */
+    public void putAddress(String zone, String nsName, String address, int ttl) {
+        Delegation delegation = delegations.get(AnswerCache.canonicalName(zone));
+        if (delegation != null) {
+            delegation.addAddress(AnswerCache.canonicalName(nsName), address, ttl);
+        }
+    }
+
+    /**
+     * Find the deepest live zone cut above a name that has a usable nameserver address.
+     *
+     * @param fqdn - the name about to be resolved.
+     * @return the delegation, or null if resolution has to start at the root.
+     */
+    public Delegation findClosest(String fqdn) {
+        return findClosest(fqdn, false);
+    }
+
+    /**
+     * Find the deepest live zone cut above a name that has a usable nameserver address.
+     *
+     * @param fqdn - the name about to be resolved.
+     * @param ipv6 - whether IPv6 nameserver addresses are usable.
+     * @return the delegation, or null if resolution has to start at the root.
+     */
+    public Delegation findClosest(String fqdn, boolean ipv6) {
+        String zone = AnswerCache.canonicalName(fqdn);
+        long now = System.currentTimeMillis();
+
+        while (!zone.isEmpty()) {
+            Delegation delegation = delegations.get(zone);
+            if (delegation != null) {
+                if (delegation.isExpired(now)) {
+                    delegations.remove(zone, delegation);
+                } else if (!delegation.getAddresses(ipv6).isEmpty()) {
+                    return delegation;
+                }
+            }
+            int dot = zone.indexOf('.');
+            zone = dot < 0 ? "" : zone.substring(dot + 1);
+        }
+        return null;
+    }
+
+    public int size() {
+        return delegations.size();
+    }
+
+    /**
+     * Write the live zone cuts to a file as [count] then, for each, the zone, its absolute
+     * expiry time, and its nameservers with their addresses.
+     *
+     * @param channel  - the file, open for reading and writing.
+     * @param position - where in the file to start.
+     * @return the position just past what was written.
+     * @throws IOException if the file cannot be mapped.
+     */
+    long snapshot(FileChannel channel, long position) throws IOException {
+        long now = System.currentTimeMillis();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        List<Delegation> live = new ArrayList<>();
+        for (Delegation delegation : delegations.values()) {
+            if (!delegation.isExpired(now)) {
+                live.add(delegation);
+            }
+        }
+        out.writeInt(live.size());
+        for (Delegation delegation : live) {
+            delegation.writeTo(out);
+        }
+        out.flush();
+
+        MappedByteBuffer target = channel.map(FileChannel.MapMode.READ_WRITE, position, bytes.size());
+        target.put(bytes.toByteArray());
+        return position + bytes.size();
+    }
+
+    /**
+     * Read back zone cuts written by {@link #snapshot}, skipping those that have expired
+     * since and zones already cached, which are newer.
+     *
+     * @param source - the snapshot, at the position {@link #snapshot} started at; it is
+     *               left just past the zone cuts.
+     * @return the number of zone cuts restored.
+     * @throws IOException if the zone cuts are malformed.
+     */
+    int restore(ByteBuffer source) throws IOException {
+        int restored = 0;
+        long now = System.currentTimeMillis();
+        int count = source.getInt();
+        for (int i = 0; i < count; i++) {
+            Delegation delegation = Delegation.readFrom(source);
+            if (delegation.isExpired(now)) {
+                continue;
+            }
+            if (delegations.size() >= maxZones) {
+                purge();
+            }
+            if (delegations.putIfAbsent(delegation.zone, delegation) == null) {
+                restored++;
+            }
+        }
+        return restored;
+    }
+
+    public void clear() {
+        delegations.clear();
+    }
+
+    private void purge() {
+        long now = System.currentTimeMillis();
+        Iterator<Delegation> iterator = delegations.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().isExpired(now)) {
+                iterator.remove();
+            }
+        }
+        // still full of live zones: make room by dropping an arbitrary one
+        iterator = delegations.values().iterator();
+        while (delegations.size() >= maxZones && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * @return the number of labels in a canonical name; 0 for the root.
+     */
+    private static int labelCount(String name) {
+        if (name.isEmpty()) {
+            return 0;
+        }
+        int count = 1;
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) == '.') {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return true if zone is name itself or one of its parent domains.
+     */
+    static boolean isAncestor(String zone, String name) {
+        return zone.isEmpty() || name.equals(zone) || name.endsWith("." + zone);
+    }
+
+    /**
+     * A zone cut: the zone, its nameservers and whatever addresses are known for them.
+     */
+    public static class Delegation {
+        private final String zone;
+        private final int source;  // labels of the zone whose servers sent it; -1 if restored
+        private final Map<String, List<InetAddress>> nameservers = new LinkedHashMap<>();
+        private volatile long expiresAt = Long.MAX_VALUE;
+
+        Delegation(String zone, int source) {
+            this.zone = zone;
+            this.source = source;
+        }
+
+        private synchronized void addNameserver(String nsName, int ttl) {
+            if (!nameservers.containsKey(nsName)) {
+                nameservers.put(nsName, new ArrayList<InetAddress>());
+            }
+            shortenTtl(ttl);
+        }
+
+        private synchronized void addAddress(String nsName, String address, int ttl) {
+            List<InetAddress> addresses = nameservers.get(nsName);
+            if (addresses == null) {
+                return;  // not glue for this zone
+            }
+            try {
+                InetAddress inetAddress = InetAddress.getByName(address);
+                if (!addresses.contains(inetAddress)) {
+                    addresses.add(inetAddress);
+                }
+                shortenTtl(ttl);
+            } catch (UnknownHostException e) {
+                // value was not a literal address; nothing to remember
+            }
+        }
+
+        /**
+         * Take the addresses a replaced cut had for nameservers that are still listed but came
+         * without glue; they last no longer than the replaced cut.
+         */
+        private void keepAddresses(Delegation replaced) {
+            boolean kept = false;
+            synchronized (replaced) {
+                for (Map.Entry<String, List<InetAddress>> nameserver : replaced.nameservers.entrySet()) {
+                    List<InetAddress> addresses = nameservers.get(nameserver.getKey());
+                    if (addresses != null && addresses.isEmpty() && !nameserver.getValue().isEmpty()) {
+                        addresses.addAll(nameserver.getValue());
+                        kept = true;
+                    }
+                }
+            }
+            if (kept && replaced.expiresAt < expiresAt) {
+                expiresAt = replaced.expiresAt;
+            }
+        }
+
+        private void shortenTtl(int ttl) {
+            long expiry = System.currentTimeMillis() + Math.min(Math.max(ttl, 0), MAX_TTL) * 1000L;
+            if (expiry < expiresAt) {
+                expiresAt = expiry;
+            }
+        }
+
+        private synchronized void writeTo(DataOutputStream out) throws IOException {
+            writeString(out, zone);
+            out.writeLong(expiresAt);
+            out.writeShort(nameservers.size());
+            for (Map.Entry<String, List<InetAddress>> nameserver : nameservers.entrySet()) {
+                writeString(out, nameserver.getKey());
+                out.writeByte(nameserver.getValue().size());
+                for (InetAddress address : nameserver.getValue()) {
+                    byte[] raw = address.getAddress();
+                    out.writeByte(raw.length);
+                    out.write(raw);
+                }
+            }
+        }
+
+        private static Delegation readFrom(ByteBuffer in) throws IOException {
+            Delegation delegation = new Delegation(readString(in), -1);
+            delegation.expiresAt = in.getLong();
+            int nameserverCount = in.getShort() & 0xFFFF;
+            for (int i = 0; i < nameserverCount; i++) {
+                List<InetAddress> addresses = new ArrayList<>();
+                delegation.nameservers.put(readString(in), addresses);
+                int addressCount = in.get() & 0xFF;
+                for (int j = 0; j < addressCount; j++) {
+                    byte[] raw = new byte[in.get() & 0xFF];
+                    in.get(raw);
+                    try {
+                        addresses.add(InetAddress.getByAddress(raw));
+                    } catch (UnknownHostException e) {
+                        throw new IOException("Bad nameserver address in snapshot for " + delegation.zone, e);
+                    }
+                }
+            }
+            return delegation;
+        }
+
+        private static void writeString(DataOutputStream out, String value) throws IOException {
+            out.writeShort(value.length());
+            out.write(value.getBytes(StandardCharsets.ISO_8859_1));
+        }
+
+        private static String readString(ByteBuffer in) {
+            byte[] raw = new byte[in.getShort() & 0xFFFF];
+            in.get(raw);
+            return new String(raw, StandardCharsets.ISO_8859_1);
+        }
+
+        boolean isExpired(long now) {
+            return now >= expiresAt;
+        }
+
+        public String getZone() {
+            return zone;
+        }
+
+        public synchronized List<String> getNameservers() {
+            return new ArrayList<>(nameservers.keySet());
+        }
+
+        /**
+         * @return the IPv4 addresses of this zone's nameservers, in referral order.
+         */
+        public List<InetAddress> getAddresses() {
+            return getAddresses(false);
+        }
+
+        /**
+         * @param ipv6 - whether to include IPv6 addresses.
+         * @return the addresses of this zone's nameservers in referral order, IPv4 ones first.
+         */
+        public synchronized List<InetAddress> getAddresses(boolean ipv6) {
+            List<InetAddress> result = new ArrayList<>();
+            for (List<InetAddress> addresses : nameservers.values()) {
+                for (InetAddress address : addresses) {
+                    if (address instanceof Inet4Address) {
+                        result.add(address);
+                    }
+                }
+            }
+            if (ipv6) {
+                for (List<InetAddress> addresses : nameservers.values()) {
+                    for (InetAddress address : addresses) {
+                        if (!(address instanceof Inet4Address)) {
+                            result.add(address);
+                        }
+                    }
+                }
+            }
+            return Collections.unmodifiableList(result);
+        }
+    }
+}
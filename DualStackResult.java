@@ -0,0 +1,69 @@
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The result of looking up both the IPv4 and IPv6 addresses of a name in one call (see
+ * {@link Resolver#resolveDualStack}). It succeeds if either family has an address.
+ */
+public class DualStackResult {
+    private final ResolveResult ipv4;
+    private final ResolveResult ipv6;
+
+    DualStackResult(ResolveResult ipv4, ResolveResult ipv6) {
+        this.ipv4 = ipv4;
+        this.ipv6 = ipv6;
+    }
+
+    public String getName() {
+        return ipv4.getName();
+    }
+
+    /**
+     * @return the result of the A lookup.
+     */
+    public ResolveResult getIPv4() {
+        return ipv4;
+    }
+
+    /**
+     * @return the result of the AAAA lookup.
+     */
+    public ResolveResult getIPv6() {
+        return ipv6;
+    }
+
+    /**
+     * @return SUCCESS if either family has an address; otherwise NO_ANSWER if either lookup
+     * found the name, otherwise the status of the A lookup.
+     */
+    public ResolveStatus getStatus() {
+        if (isSuccess()) {
+            return ResolveStatus.SUCCESS;
+        }
+        if (ipv4.getStatus() == ResolveStatus.NO_ANSWER || ipv6.getStatus() == ResolveStatus.NO_ANSWER) {
+            return ResolveStatus.NO_ANSWER;
+        }
+        return ipv4.getStatus();
+    }
+
+    public boolean isSuccess() {
+        return ipv4.isSuccess() || ipv6.isSuccess();
+    }
+
+    /**
+     * @return the A records followed by the AAAA records.
+     */
+    public List<ResponseRecord> getRecords() {
+        List<ResponseRecord> records = new ArrayList<>(ipv4.getRecords());
+        records.addAll(ipv6.getRecords());
+        return records;
+    }
+
+    /**
+     * @return the number of queries both lookups sent.
+     */
+    public int getQueryCount() {
+        return ipv4.getQueryCount() + ipv6.getQueryCount();
+    }
+}
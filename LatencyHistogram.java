@@ -0,0 +1,117 @@
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * A histogram of latencies in the style of HdrHistogram: values are counted in buckets
+ * that double in width every power of two, each split into 32 linear sub-buckets, so any
+ * value is reported within about 3% of itself from a fixed array of counters. Recording
+ * is lock-free and allocation-free; reads are a consistent-enough walk of the counters.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_VALUE_BITS = 40;       // about 12 days in microseconds
+    private static final long MAX_VALUE = (1L << MAX_VALUE_BITS) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray((MAX_VALUE_BITS - SUB_BUCKET_BITS + 1) * SUB_BUCKETS);
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Count one value; negative values count as 0 and huge ones as the largest trackable.
+     *
+     * @param value - the value, e.g. microseconds.
+     */
+    public void record(long value) {
+        long clamped = Math.max(0, Math.min(MAX_VALUE, value));
+        counts.incrementAndGet(index(clamped));
+        max.accumulate(clamped);
+    }
+
+    public long getCount() {
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long total = 0;
+        double sum = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            long count = counts.get(i);
+            if (count != 0) {
+                total += count;
+                sum += count * (double) midpoint(i);
+            }
+        }
+        return total == 0 ? 0 : sum / total;
+    }
+
+    /**
+     * @param percentile - e.g. 99.9.
+     * @return the largest value that falls in the same bucket as the value at the
+     * percentile, or 0 if nothing was recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = getCount();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(Math.min(100, percentile) / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestEquivalent(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        max.reset();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count %d mean %.0f p50 %d p99 %d p99.9 %d max %d", getCount(), getMean(),
+                getValueAtPercentile(50), getValueAtPercentile(99), getValueAtPercentile(99.9), getMax());
+    }
+
+    /**
+     * Values below 2 * SUB_BUCKETS have a bucket each; above that, a value whose top bit
+     * is bit n lands in sub-bucket (value >>> (n - SUB_BUCKET_BITS)) of its power of two.
+     */
+    private static int index(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    private static long lowestEquivalent(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        return (long) (index % SUB_BUCKETS + SUB_BUCKETS) << shift;
+    }
+
+    private static long highestEquivalent(int index) {
+        return index + 1 < 2 * SUB_BUCKETS ? index : lowestEquivalent(index + 1) - 1;
+    }
+
+    private static long midpoint(int index) {
+        return (lowestEquivalent(index) + highestEquivalent(index)) / 2;
+    }
+}
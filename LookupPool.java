@@ -0,0 +1,135 @@
+
+import java.io.Closeable;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs blocking lookup code on a thread per task, so it can be written sequentially:
+ * resolve a name, look at the result, resolve the next. Threads are virtual where the JVM
+ * has them (see {@link VirtualThreads}). A lookup waiting in {@link Resolver#resolve} parks
+ * its thread on a future completed by the resolver's event loop, which owns the one shared
+ * channel, so tens of thousands of lookups can wait at once without a socket or a platform
+ * thread each.
+ *
+ * At most maxConcurrent tasks run at once. A task submitted beyond that waits for a slot
+ * for up to maxWait, holding up the submitting thread, and is then rejected.
+ */
+public class LookupPool implements Closeable {
+    private final Resolver resolver;
+    private final int maxConcurrent;
+    private final long maxWaitMillis;
+    private final Semaphore slots;
+    private final ThreadFactory threads = VirtualThreads.factory("dns-lookup");
+    private final AtomicLong completedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private volatile boolean closed = false;
+
+    /**
+     * @param resolver      - the resolver {@link #resolve} uses; tasks may use it too.
+     * @param maxConcurrent - the most tasks running at once.
+     * @param maxWaitMillis - how long a submitter waits for a slot before its task is
+     *                      rejected; 0 rejects at once when every slot is taken.
+     */
+    public LookupPool(Resolver resolver, int maxConcurrent, long maxWaitMillis) {
+        if (maxConcurrent < 1) {
+            throw new IllegalArgumentException("maxConcurrent must be positive: " + maxConcurrent);
+        }
+        this.resolver = resolver;
+        this.maxConcurrent = maxConcurrent;
+        this.maxWaitMillis = maxWaitMillis;
+        this.slots = new Semaphore(maxConcurrent);
+    }
+
+    /**
+     * Run a task on its own thread once a slot is free.
+     *
+     * @param task - blocking code, e.g. calls to {@link Resolver#resolve}.
+     * @return a future for the task's result; it fails with a
+     * {@link RejectedExecutionException} if no slot came free in time.
+     * @throws InterruptedException if interrupted while waiting for a slot.
+     */
+    public <T> CompletableFuture<T> submit(final Callable<T> task) throws InterruptedException {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        if (closed) {
+            future.completeExceptionally(new RejectedExecutionException("lookup pool closed"));
+            return future;
+        }
+        if (!slots.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS)) {
+            rejectedCount.incrementAndGet();
+            future.completeExceptionally(new RejectedExecutionException(
+                    "all " + maxConcurrent + " lookup slots busy for " + maxWaitMillis + " ms"));
+            return future;
+        }
+        try {
+            threads.newThread(() -> {
+                try {
+                    future.complete(task.call());
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                } finally {
+                    completedCount.incrementAndGet();
+                    slots.release();
+                }
+            }).start();
+        } catch (RuntimeException | OutOfMemoryError e) {
+            slots.release();
+            throw e;
+        }
+        return future;
+    }
+
+    /**
+     * Look up a name on a thread of the pool. Like {@link Resolver#resolveAsync}, the future
+     * never completes exceptionally; a rejected lookup fails with OTHER_ERROR.
+     *
+     * @param name  - the name to look up.
+     * @param qtype - the query type.
+     * @return a future for the result.
+     * @throws InterruptedException if interrupted while waiting for a slot.
+     */
+    public CompletableFuture<ResolveResult> resolve(String name, int qtype) throws InterruptedException {
+        final ResolutionContext context = new ResolutionContext(name, qtype);
+        return submit(() -> resolver.resolve(context))
+                .exceptionally(error -> ResolveResult.failed(context, ResolveStatus.OTHER_ERROR));
+    }
+
+    /**
+     * @return the number of tasks running now.
+     */
+    public int getActiveCount() {
+        return maxConcurrent - slots.availablePermits();
+    }
+
+    public long getCompletedCount() {
+        return completedCount.get();
+    }
+
+    /**
+     * @return the number of tasks rejected because no slot came free in time.
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * @return true if tasks run on virtual threads.
+     */
+    public boolean isVirtual() {
+        return VirtualThreads.isAvailable();
+    }
+
+    /**
+     * Stop taking tasks and wait for the running ones to finish.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        slots.acquireUninterruptibly(maxConcurrent);
+        slots.release(maxConcurrent);
+    }
+}
@@ -0,0 +1,43 @@
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Serves a resolver's metrics as text over HTTP at /metrics, for scraping.
+ */
+public class MetricsEndpoint implements Closeable {
+    private final HttpServer server;
+
+    /**
+     * Start serving.
+     *
+     * @param metrics - the metrics to serve.
+     * @param address - the address to listen on.
+     * @throws IOException if the address cannot be bound.
+     */
+    public MetricsEndpoint(final ResolverMetrics metrics, InetSocketAddress address) throws IOException {
+        server = HttpServer.create(address, 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = metrics.getText().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+    }
+
+    public InetSocketAddress getLocalAddress() {
+        return server.getAddress();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
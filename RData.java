@@ -0,0 +1,495 @@
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The typed data of a resource record. Each type keeps its fields in their wire form
+ * (addresses as an int or 16 bytes, names as {@link DNSName}) and can write itself back
+ * into a packet. Types without a class of their own are kept as opaque bytes.
+ */
+public abstract class RData {
+    public static final int TYPE_A = 1;
+    public static final int TYPE_NS = 2;
+    public static final int TYPE_CNAME = 5;
+    public static final int TYPE_SOA = 6;
+    public static final int TYPE_PTR = 12;
+    public static final int TYPE_MX = 15;
+    public static final int TYPE_TXT = 16;
+    public static final int TYPE_AAAA = 28;
+    public static final int TYPE_SRV = 33;
+    public static final int TYPE_DNAME = 39;
+
+    /**
+     * Writes names that may be compressed, e.g. against names earlier in the packet.
+     */
+    public interface NameWriter {
+        void writeName(DNSName name);
+    }
+
+    /**
+     * Write the RDATA, without its length. Names may go through the name writer only where
+     * RFC 3597 allows compression: in NS, CNAME, PTR, MX and SOA records.
+     *
+     * @param buffer - where to write.
+     * @param names  - compresses names, or null to write them uncompressed.
+     */
+    public abstract void writeTo(ByteBuffer buffer, NameWriter names);
+
+    /**
+     * Decode the RDATA of a record in a message.
+     *
+     * @param message - the message holding the record.
+     * @param type    - the record type.
+     * @param offset  - where the RDATA starts.
+     * @param length  - the RDATA length.
+     * @return the typed data.
+     * @throws IOException if the data is malformed for its type.
+     */
+    public static RData decode(DNSMessage message, int type, int offset, int length) throws IOException {
+        int end = offset + length;
+        switch (type) {
+            case TYPE_A:
+                checkLength(type, length, 4);
+                return new A(message.readInt(offset));
+            case TYPE_AAAA:
+                checkLength(type, length, 16);
+                return new AAAA(message.copyRange(offset, 16));
+            case TYPE_NS:
+            case TYPE_CNAME:
+            case TYPE_PTR:
+            case TYPE_DNAME:
+                return new Name(type, message.readWireName(offset, end));
+            case TYPE_MX:
+                checkMinimum(type, length, 3);
+                return new MX(message.readUnsignedShort(offset), message.readWireName(offset + 2, end));
+            case TYPE_SRV:
+                checkMinimum(type, length, 7);
+                return new SRV(message.readUnsignedShort(offset), message.readUnsignedShort(offset + 2),
+                        message.readUnsignedShort(offset + 4), message.readWireName(offset + 6, end));
+            case TYPE_SOA: {
+                int rnameOffset = message.skipName(offset);
+                int fixed = message.skipName(rnameOffset);
+                checkLength(type, end - fixed, 20);
+                return new SOA(message.readWireName(offset, end), message.readWireName(rnameOffset, end),
+                        message.readInt(fixed), message.readInt(fixed + 4), message.readInt(fixed + 8),
+                        message.readInt(fixed + 12), message.readInt(fixed + 16));
+            }
+            case TYPE_TXT:
+                return new TXT(message.copyRange(offset, length));
+            default:
+                return new Opaque(message.copyRange(offset, length));
+        }
+    }
+
+    private static void checkLength(int type, int length, int expected) throws IOException {
+        if (length != expected) {
+            throw new IOException("Bad RDATA length " + length + " for type " + type);
+        }
+    }
+
+    private static void checkMinimum(int type, int length, int minimum) throws IOException {
+        if (length < minimum) {
+            throw new IOException("Bad RDATA length " + length + " for type " + type);
+        }
+    }
+
+    private static void writeName(ByteBuffer buffer, NameWriter names, DNSName name) {
+        if (names != null) {
+            names.writeName(name);
+        } else {
+            name.writeTo(buffer);
+        }
+    }
+
+    /**
+     * An IPv4 address.
+     */
+    public static final class A extends RData {
+        private final int address;
+
+        public A(int address) {
+            this.address = address;
+        }
+
+        public int getAddress() {
+            return address;
+        }
+
+        public byte[] getAddressBytes() {
+            return new byte[]{(byte) (address >>> 24), (byte) (address >>> 16), (byte) (address >>> 8),
+                    (byte) address};
+        }
+
+        @Override
+        public void writeTo(ByteBuffer buffer, NameWriter names) {
+            buffer.putInt(address);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof A && ((A) o).address == address;
+        }
+
+        @Override
+        public int hashCode() {
+            return address;
+        }
+
+        @Override
+        public String toString() {
+            return (address >>> 24) + "." + ((address >>> 16) & 0xFF) + "." + ((address >>> 8) & 0xFF) + "."
+                    + (address & 0xFF);
+        }
+    }
+
+    /**
+     * An IPv6 address.
+     */
+    public static final class AAAA extends RData {
+        private final byte[] address;
+
+        public AAAA(byte[] address) {
+            if (address.length != 16) {
+                throw new IllegalArgumentException("IPv6 address must be 16 bytes: " + address.length);
+            }
+            this.address = address;
+        }
+
+        public byte[] getAddressBytes() {
+            return address.clone();
+        }
+
+        @Override
+        public void writeTo(ByteBuffer buffer, NameWriter names) {
+            buffer.put(address);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof AAAA && Arrays.equals(((AAAA) o).address, address);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(address);
+        }
+
+        /**
+         * @return eight uncompressed hex groups, as InetAddress.getHostAddress prints them.
+         */
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder(39);
+            for (int i = 0; i < 16; i += 2) {
+                if (i > 0) {
+                    builder.append(':');
+                }
+                builder.append(Integer.toHexString(((address[i] & 0xFF) << 8) | (address[i + 1] & 0xFF)));
+            }
+            return builder.toString();
+        }
+    }
+
+    /**
+     * A single name: the target of NS, CNAME, PTR and DNAME records.
+     */
+    public static final class Name extends RData {
+        private final int type;
+        private final DNSName target;
+
+        public Name(int type, DNSName target) {
+            this.type = type;
+            this.target = target;
+        }
+
+        public DNSName getTarget() {
+            return target;
+        }
+
+        @Override
+        public void writeTo(ByteBuffer buffer, NameWriter names) {
+            writeName(buffer, type == TYPE_DNAME ? null : names, target);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Name && ((Name) o).type == type && ((Name) o).target.equals(target);
+        }
+
+        @Override
+        public int hashCode() {
+            return target.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return target.toString();
+        }
+    }
+
+    public static final class MX extends RData {
+        private final int preference;
+        private final DNSName exchange;
+
+        public MX(int preference, DNSName exchange) {
+            this.preference = preference;
+            this.exchange = exchange;
+        }
+
+        public int getPreference() {
+            return preference;
+        }
+
+        public DNSName getExchange() {
+            return exchange;
+        }
+
+        @Override
+        public void writeTo(ByteBuffer buffer, NameWriter names) {
+            buffer.putShort((short) preference);
+            writeName(buffer, names, exchange);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof MX && ((MX) o).preference == preference && ((MX) o).exchange.equals(exchange);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * preference + exchange.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return preference + " " + exchange;
+        }
+    }
+
+    public static final class SRV extends RData {
+        private final int priority;
+        private final int weight;
+        private final int port;
+        private final DNSName target;
+
+        public SRV(int priority, int weight, int port, DNSName target) {
+            this.priority = priority;
+            this.weight = weight;
+            this.port = port;
+            this.target = target;
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+
+        public int getWeight() {
+            return weight;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public DNSName getTarget() {
+            return target;
+        }
+
+        @Override
+        public void writeTo(ByteBuffer buffer, NameWriter names) {
+            buffer.putShort((short) priority);
+            buffer.putShort((short) weight);
+            buffer.putShort((short) port);
+            target.writeTo(buffer);  // RFC 2782: never compressed
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof SRV)) {
+                return false;
+            }
+            SRV other = (SRV) o;
+            return other.priority == priority && other.weight == weight && other.port == port
+                    && other.target.equals(target);
+        }
+
+        @Override
+        public int hashCode() {
+            return ((31 * priority + weight) * 31 + port) * 31 + target.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return priority + " " + weight + " " + port + " " + target;
+        }
+    }
+
+    public static final class SOA extends RData {
+        private final DNSName mname;
+        private final DNSName rname;
+        private final int serial;
+        private final int refresh;
+        private final int retry;
+        private final int expire;
+        private final int minimum;
+
+        public SOA(DNSName mname, DNSName rname, int serial, int refresh, int retry, int expire, int minimum) {
+            this.mname = mname;
+            this.rname = rname;
+            this.serial = serial;
+            this.refresh = refresh;
+            this.retry = retry;
+            this.expire = expire;
+            this.minimum = minimum;
+        }
+
+        public DNSName getMname() {
+            return mname;
+        }
+
+        public DNSName getRname() {
+            return rname;
+        }
+
+        public long getSerial() {
+            return serial & 0xFFFFFFFFL;
+        }
+
+        /**
+         * @return the MINIMUM field, which RFC 2308 makes the TTL of negative answers.
+         */
+        public int getMinimum() {
+            return minimum;
+        }
+
+        @Override
+        public void writeTo(ByteBuffer buffer, NameWriter names) {
+            writeName(buffer, names, mname);
+            writeName(buffer, names, rname);
+            buffer.putInt(serial).putInt(refresh).putInt(retry).putInt(expire).putInt(minimum);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof SOA)) {
+                return false;
+            }
+            SOA other = (SOA) o;
+            return other.mname.equals(mname) && other.rname.equals(rname) && other.serial == serial
+                    && other.refresh == refresh && other.retry == retry && other.expire == expire
+                    && other.minimum == minimum;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * mname.hashCode() + serial;
+        }
+
+        @Override
+        public String toString() {
+            return mname + " " + rname + " " + getSerial() + " " + refresh + " " + retry + " " + expire + " "
+                    + minimum;
+        }
+    }
+
+    /**
+     * Text: one or more length-prefixed character strings, kept as they appear on the wire.
+     */
+    public static final class TXT extends RData {
+        private final byte[] data;
+
+        public TXT(byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public void writeTo(ByteBuffer buffer, NameWriter names) {
+            buffer.put(data);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TXT && Arrays.equals(((TXT) o).data, data);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(data);
+        }
+
+        /**
+         * @return each string in double quotes, with quotes, backslashes and unprintable bytes escaped.
+         */
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            int pos = 0;
+            while (pos < data.length) {
+                int length = Math.min(data[pos] & 0xFF, data.length - pos - 1);
+                if (builder.length() > 0) {
+                    builder.append(' ');
+                }
+                builder.append('"');
+                for (int i = pos + 1; i <= pos + length; i++) {
+                    int c = data[i] & 0xFF;
+                    if (c == '"' || c == '\\') {
+                        builder.append('\\').append((char) c);
+                    } else if (c < 0x20 || c > 0x7E) {
+                        builder.append(String.format("\\%03d", c));
+                    } else {
+                        builder.append((char) c);
+                    }
+                }
+                builder.append('"');
+                pos += length + 1;
+            }
+            return builder.toString();
+        }
+    }
+
+    /**
+     * The data of a type without a class of its own, kept byte for byte.
+     */
+    public static final class Opaque extends RData {
+        private final byte[] data;
+
+        public Opaque(byte[] data) {
+            this.data = data;
+        }
+
+        public byte[] getData() {
+            return data.clone();
+        }
+
+        @Override
+        public void writeTo(ByteBuffer buffer, NameWriter names) {
+            buffer.put(data);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Opaque && Arrays.equals(((Opaque) o).data, data);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(data);
+        }
+
+        /**
+         * @return the RFC 3597 generic form: \# length hex.
+         */
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder("\\# ").append(data.length);
+            if (data.length > 0) {
+                builder.append(' ');
+            }
+            for (byte b : data) {
+                builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return builder.toString();
+        }
+    }
+}
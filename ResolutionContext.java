@@ -0,0 +1,112 @@
+
+import java.io.PrintStream;
+
+/**
+ * The state of one top-level lookup: what is being looked up, how many queries it has
+ * sent so far, including those for CNAME targets and glueless nameservers, and where to
+ * trace it to. A context belongs to a single lookup and must not be reused.
+ */
+public class ResolutionContext {
+    private static final int MAX_QUERIES = 30;
+    private static final int MAX_ALIASES = 16;
+
+    private final String name;
+    private final int qtype;
+    private final long startTime = System.nanoTime();
+    private int queryCount = 0;
+    private int referralCount = 0;
+    private int aliasCount = 0;
+    private PrintStream trace;
+    private ResolutionTrace sampledTrace;
+
+    /**
+     * @param name  - the name to look up.
+     * @param qtype - the query type (1 for A, 28 for AAAA).
+     */
+    public ResolutionContext(String name, int qtype) {
+        this.name = name;
+        this.qtype = qtype;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getQtype() {
+        return qtype;
+    }
+
+    /**
+     * Count a query against this lookup.
+     *
+     * @return false if the lookup has used up its query budget.
+     */
+    boolean spendQuery() {
+        return ++queryCount <= MAX_QUERIES;
+    }
+
+    public int getQueryCount() {
+        return queryCount;
+    }
+
+    /**
+     * Count a CNAME or DNAME followed by this lookup, whether its target came in the same
+     * response or had to be looked up.
+     *
+     * @return false if the chain has grown too long, e.g. because it loops.
+     */
+    boolean spendAlias() {
+        return ++aliasCount <= MAX_ALIASES;
+    }
+
+    public int getAliasCount() {
+        return aliasCount;
+    }
+
+    void countReferral() {
+        referralCount++;
+    }
+
+    /**
+     * @return how many referrals the lookup followed, including those for CNAME targets and
+     * glueless nameservers.
+     */
+    public int getReferralCount() {
+        return referralCount;
+    }
+
+    /**
+     * @return the nanoseconds since the lookup started.
+     */
+    public long getElapsedNanos() {
+        return System.nanoTime() - startTime;
+    }
+
+    /**
+     * Print every query sent and response received for this lookup.
+     *
+     * @param trace - where to print, or null to stop tracing.
+     */
+    public void setTrace(PrintStream trace) {
+        this.trace = trace;
+    }
+
+    public boolean isTracing() {
+        return trace != null;
+    }
+
+    PrintStream getTrace() {
+        return trace;
+    }
+
+    /**
+     * @return the structured trace being built for this lookup, or null if it was not sampled.
+     */
+    ResolutionTrace getSampledTrace() {
+        return sampledTrace;
+    }
+
+    void setSampledTrace(ResolutionTrace sampledTrace) {
+        this.sampledTrace = sampledTrace;
+    }
+}
@@ -0,0 +1,23 @@
+
+/**
+ * Signals that a lookup failed, with the status that describes why.
+ */
+public class ResolutionException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    private final ResolveStatus status;
+
+    public ResolutionException(ResolveStatus status, String message) {
+        super(message);
+        this.status = status;
+    }
+
+    public ResolutionException(ResolveStatus status, String message, Throwable cause) {
+        super(message, cause);
+        this.status = status;
+    }
+
+    public ResolveStatus getStatus() {
+        return status;
+    }
+}
@@ -0,0 +1,152 @@
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The structured record of one sampled lookup: what happened, to which server, and when,
+ * relative to the start of the lookup. Only sampled lookups build one, so tracing can stay
+ * on in production; see {@link AsyncResolver#setTraceSampling(int, Sink)}.
+ */
+public class ResolutionTrace {
+    private final String name;
+    private final int qtype;
+    private final long startTime = System.nanoTime();
+    private final List<Event> events = new ArrayList<>();
+    private ResolveStatus status;
+    private long durationMicros;
+
+    public enum Kind {
+        CACHE_HIT, JOINED, DELEGATION, QUERY, RETRANSMIT, RESPONSE, TIMEOUT, TCP_RETRY, EDNS_FALLBACK,
+        REFERRAL, ALIAS, NAMESERVER_LOOKUP
+    }
+
+    ResolutionTrace(String name, int qtype) {
+        this.name = name;
+        this.qtype = qtype;
+    }
+
+    /**
+     * Add an event. Called on the resolver's event loop only.
+     *
+     * @param kind   - what happened.
+     * @param name   - the name being resolved at that step, which may be a CNAME target or
+     *               a nameserver rather than the name of the lookup.
+     * @param server - the server involved, or null.
+     * @param value  - a number that goes with the event: the query id or the rcode; -1 if none.
+     * @param detail - a zone or name that goes with the event, or null.
+     */
+    void add(Kind kind, String name, InetAddress server, long value, String detail) {
+        events.add(new Event(kind, (System.nanoTime() - startTime) / 1000, name, server, value, detail));
+    }
+
+    void finish(ResolveStatus status) {
+        this.status = status;
+        this.durationMicros = (System.nanoTime() - startTime) / 1000;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getQtype() {
+        return qtype;
+    }
+
+    public ResolveStatus getStatus() {
+        return status;
+    }
+
+    public long getDurationMicros() {
+        return durationMicros;
+    }
+
+    public List<Event> getEvents() {
+        return Collections.unmodifiableList(events);
+    }
+
+    /**
+     * @return the trace as one line of space separated key=value pairs per event, after a
+     * summary line.
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("trace name=").append(name).append(" type=").append(ResponseRecord.typeName(qtype))
+                .append(" status=").append(status).append(" us=").append(durationMicros)
+                .append(" events=").append(events.size()).append('\n');
+        for (Event event : events) {
+            builder.append("  ").append(event).append('\n');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * One step of a lookup.
+     */
+    public static class Event {
+        private final Kind kind;
+        private final long atMicros;
+        private final String name;
+        private final InetAddress server;
+        private final long value;
+        private final String detail;
+
+        Event(Kind kind, long atMicros, String name, InetAddress server, long value, String detail) {
+            this.kind = kind;
+            this.atMicros = atMicros;
+            this.name = name;
+            this.server = server;
+            this.value = value;
+            this.detail = detail;
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        public long getAtMicros() {
+            return atMicros;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public InetAddress getServer() {
+            return server;
+        }
+
+        public long getValue() {
+            return value;
+        }
+
+        public String getDetail() {
+            return detail;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            builder.append("at=").append(atMicros).append(" event=").append(kind).append(" name=").append(name);
+            if (server != null) {
+                builder.append(" server=").append(server.getHostAddress());
+            }
+            if (value >= 0) {
+                builder.append(" value=").append(value);
+            }
+            if (detail != null) {
+                builder.append(" detail=").append(detail);
+            }
+            return builder.toString();
+        }
+    }
+
+    /**
+     * Receives the traces of sampled lookups, on the resolver's event loop; it must not block.
+     */
+    public interface Sink {
+        void accept(ResolutionTrace trace);
+    }
+}
@@ -0,0 +1,90 @@
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The result of a lookup: its status and, on success, the answer records.
+ */
+public class ResolveResult {
+    private final String name;
+    private final int qtype;
+    private final ResolveStatus status;
+    private final List<ResponseRecord> answers;
+    private final int queryCount;
+
+    ResolveResult(ResolutionContext context, ResolveStatus status, List<ResponseRecord> answers) {
+        this.name = context.getName();
+        this.qtype = context.getQtype();
+        this.status = status;
+        this.answers = Collections.unmodifiableList(new ArrayList<>(answers));
+        this.queryCount = context.getQueryCount();
+    }
+
+    /**
+     * Build the result of a lookup that produced answers. It is NO_ANSWER unless one of
+     * them has the requested type.
+     */
+    static ResolveResult answered(ResolutionContext context, List<ResponseRecord> answers) {
+        return new ResolveResult(context, answeredStatus(context.getQtype(), answers), answers);
+    }
+
+    /**
+     * @return SUCCESS if one of the answers has the requested type, otherwise NO_ANSWER.
+     */
+    static ResolveStatus answeredStatus(int qtype, List<ResponseRecord> answers) {
+        for (ResponseRecord answer : answers) {
+            if (answer.getType() == qtype) {
+                return ResolveStatus.SUCCESS;
+            }
+        }
+        return ResolveStatus.NO_ANSWER;
+    }
+
+    static ResolveResult failed(ResolutionContext context, ResolveStatus status) {
+        return new ResolveResult(context, status, Collections.<ResponseRecord>emptyList());
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getQtype() {
+        return qtype;
+    }
+
+    public ResolveStatus getStatus() {
+        return status;
+    }
+
+    public boolean isSuccess() {
+        return status == ResolveStatus.SUCCESS;
+    }
+
+    /**
+     * @return every answer record, including CNAMEs that led to the address records.
+     */
+    public List<ResponseRecord> getAnswers() {
+        return answers;
+    }
+
+    /**
+     * @return only the answer records of the requested type.
+     */
+    public List<ResponseRecord> getRecords() {
+        List<ResponseRecord> records = new ArrayList<>();
+        for (ResponseRecord answer : answers) {
+            if (answer.getType() == qtype) {
+                records.add(answer);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * @return the number of queries sent to produce this result; 0 if it came from the cache.
+     */
+    public int getQueryCount() {
+        return queryCount;
+    }
+}
@@ -0,0 +1,22 @@
+
+/**
+ * The outcome of a lookup. Each status carries the code the CLI prints in place of a TTL.
+ */
+public enum ResolveStatus {
+    SUCCESS(0),             // at least one record of the requested type was found
+    NAME_ERROR(-1),         // the name does not exist
+    TIMEOUT(-2),            // a server did not answer after retrying
+    TOO_MANY_QUERIES(-3),   // the lookup needed more than 30 queries
+    OTHER_ERROR(-4),        // any other failure
+    NO_ANSWER(-6);          // the name exists but has no record of the requested type
+
+    private final int code;
+
+    ResolveStatus(int code) {
+        this.code = code;
+    }
+
+    public int getCode() {
+        return code;
+    }
+}
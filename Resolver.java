@@ -0,0 +1,302 @@
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * An iterative DNS resolver that can be kept for the life of a process and shared between
+ * threads. Each lookup gets its own {@link ResolutionContext}; caches are shared by all
+ * lookups of the resolver. Failures are reported as a {@link ResolveResult} status, never
+ * by printing or exiting.
+ *
+ * A resolver may be split into shards, each an {@link AsyncResolver} with its own socket,
+ * event loop, table of pending queries and query id generator. A lookup runs on the shard
+ * its name hashes to, so lookups of the same name still share one resolution. The shards
+ * share the caches: the answer cache is split into stripes the same way,
+ * and the zone cut cache, server statistics and metrics are concurrent maps and adders.
+ */
+public class Resolver implements Closeable {
+    public static final int DEFAULT_PORT = 53;
+
+    private final AsyncResolver[] shards;
+
+    public Resolver(InetAddress rootServer) throws IOException {
+        this(rootServer, DEFAULT_PORT);
+    }
+
+    public Resolver(InetAddress rootServer, int port) throws IOException {
+        this(rootServer, port, new AnswerCache(), new DelegationCache());
+    }
+
+    /**
+     * Create a resolver.
+     *
+     * @param rootServer      - the server every uncached lookup starts at.
+     * @param port            - the port nameservers listen on.
+     * @param answerCache     - the answer cache, which may be shared with other resolvers.
+     * @param delegationCache - the zone cut cache, which may be shared with other resolvers.
+     * @throws IOException if the resolver's socket cannot be opened.
+     */
+    public Resolver(InetAddress rootServer, int port, AnswerCache answerCache,
+                    DelegationCache delegationCache) throws IOException {
+        this(rootServer, port, answerCache, delegationCache, 1);
+    }
+
+    /**
+     * Create a resolver split into shards, with an answer cache striped the same way.
+     *
+     * @param rootServer - the server every uncached lookup starts at.
+     * @param port       - the port nameservers listen on.
+     * @param shards     - the number of shards, e.g. one per core.
+     * @throws IOException if a shard's socket cannot be opened.
+     */
+    public Resolver(InetAddress rootServer, int port, int shards) throws IOException {
+        this(rootServer, port, new AnswerCache(shards, AnswerCache.DEFAULT_MAX_ENTRIES, AnswerCache.DEFAULT_MAX_BYTES),
+                new DelegationCache(), shards);
+    }
+
+    /**
+     * Create a resolver split into shards that share the given caches.
+     *
+     * @param rootServer      - the server every uncached lookup starts at.
+     * @param port            - the port nameservers listen on.
+     * @param answerCache     - the answer cache; with several shards, best one with as many stripes.
+     * @param delegationCache - the zone cut cache.
+     * @param shards          - the number of shards.
+     * @throws IOException if a shard's socket cannot be opened.
+     */
+    public Resolver(InetAddress rootServer, int port, AnswerCache answerCache, DelegationCache delegationCache,
+                    int shards) throws IOException {
+        if (shards < 1) {
+            throw new IllegalArgumentException("shards must be positive: " + shards);
+        }
+        this.shards = new AsyncResolver[shards];
+        ServerStats serverStats = new ServerStats();
+        ResolverMetrics metrics = new ResolverMetrics();
+        try {
+            for (int i = 0; i < shards; i++) {
+                this.shards[i] = new AsyncResolver(rootServer, port, answerCache, delegationCache, serverStats,
+                        metrics);
+            }
+        } catch (IOException e) {
+            try {
+                close();
+            } catch (IOException closeFailure) {
+                e.addSuppressed(closeFailure);
+            }
+            throw e;
+        }
+        if (shards > 1) {
+            // each shard took the refresher over; refresh a name on the shard that owns it
+            answerCache.setRefresher((name, qtype) -> shardFor(name).refresh(name, qtype));
+        }
+    }
+
+    /**
+     * @return the shard that runs lookups of a name.
+     */
+    private AsyncResolver shardFor(String name) {
+        return shards.length == 1 ? shards[0] : shards[(AnswerCache.nameHash(name) & 0x7FFFFFFF) % shards.length];
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Look up a name, waiting for the result.
+     *
+     * @param name  - the name to look up.
+     * @param qtype - the query type (1 for A, 28 for AAAA).
+     * @return the result.
+     */
+    public ResolveResult resolve(String name, int qtype) {
+        return resolve(new ResolutionContext(name, qtype));
+    }
+
+    public ResolveResult resolve(ResolutionContext context) {
+        return resolveAsync(context).join();
+    }
+
+    public CompletableFuture<ResolveResult> resolveAsync(String name, int qtype) {
+        return resolveAsync(new ResolutionContext(name, qtype));
+    }
+
+    /**
+     * Look up a name without waiting. The future never completes exceptionally; failures
+     * are reported through the result's status.
+     *
+     * @param context - the lookup to run; it must not have been used before.
+     * @return a future for the result.
+     */
+    public CompletableFuture<ResolveResult> resolveAsync(final ResolutionContext context) {
+        return toResult(context, shardFor(context.getName()).resolve(context));
+    }
+
+    /**
+     * Look up the IPv4 and IPv6 addresses of a name, waiting for both.
+     *
+     * @param name - the name to look up.
+     * @return both results.
+     */
+    public DualStackResult resolveDualStack(String name) {
+        return resolveDualStackAsync(name).join();
+    }
+
+    /**
+     * Look up the A and AAAA records of a name at once. The two lookups share the walk down
+     * the delegation tree (see {@link AsyncResolver#resolveTogether}), so a cold name costs
+     * one more query than an A lookup alone rather than a second walk. The future never
+     * completes exceptionally.
+     *
+     * @param name - the name to look up.
+     * @return a future for both results.
+     */
+    public CompletableFuture<DualStackResult> resolveDualStackAsync(String name) {
+        return resolveDualStackAsync(new ResolutionContext(name, 1), new ResolutionContext(name, 28));
+    }
+
+    /**
+     * Like {@link #resolveDualStackAsync(String)}, with contexts of the caller's, e.g. to trace.
+     *
+     * @param ipv4 - an A lookup; it must not have been used before.
+     * @param ipv6 - an AAAA lookup of the same name.
+     * @return a future for both results.
+     */
+    public CompletableFuture<DualStackResult> resolveDualStackAsync(ResolutionContext ipv4, ResolutionContext ipv6) {
+        List<CompletableFuture<List<ResponseRecord>>> answers = shardFor(ipv4.getName()).resolveTogether(ipv4, ipv6);
+        return toResult(ipv4, answers.get(0)).thenCombine(toResult(ipv6, answers.get(1)), DualStackResult::new);
+    }
+
+    private static CompletableFuture<ResolveResult> toResult(final ResolutionContext context,
+                                                             CompletableFuture<List<ResponseRecord>> answers) {
+        return answers.handle((List<ResponseRecord> records, Throwable error) -> {
+            if (error == null) {
+                return ResolveResult.answered(context, records);
+            }
+            if (error instanceof CompletionException && error.getCause() != null) {
+                error = error.getCause();
+            }
+            if (error instanceof ResolutionException) {
+                return ResolveResult.failed(context, ((ResolutionException) error).getStatus());
+            }
+            return ResolveResult.failed(context, ResolveStatus.OTHER_ERROR);
+        });
+    }
+
+    /**
+     * Set how many of a zone's servers may be asked the same question at once; see
+     * {@link AsyncResolver#setMaxParallelQueries(int)}.
+     */
+    public void setMaxParallelQueries(int maxParallelQueries) {
+        for (AsyncResolver shard : shards) {
+            shard.setMaxParallelQueries(maxParallelQueries);
+        }
+    }
+
+    /**
+     * Set how long to wait for a server before also asking the next one, in milliseconds.
+     */
+    public void setStaggerDelay(long staggerDelay) {
+        for (AsyncResolver shard : shards) {
+            shard.setStaggerDelay(staggerDelay);
+        }
+    }
+
+    /**
+     * Set the UDP payload size advertised with EDNS(0); see {@link AsyncResolver#setEdnsPayloadSize(int)}.
+     */
+    public void setEdnsPayloadSize(int ednsPayloadSize) {
+        for (AsyncResolver shard : shards) {
+            shard.setEdnsPayloadSize(ednsPayloadSize);
+        }
+    }
+
+    /**
+     * Ask each zone's servers only for the labels they need; see
+     * {@link AsyncResolver#setQnameMinimisation(boolean)}.
+     */
+    public void setQnameMinimisation(boolean qnameMinimisation) {
+        for (AsyncResolver shard : shards) {
+            shard.setQnameMinimisation(qnameMinimisation);
+        }
+    }
+
+    /**
+     * Also query nameservers over IPv6; see {@link AsyncResolver#setIpv6Nameservers(boolean)}.
+     */
+    public void setIpv6Nameservers(boolean ipv6Nameservers) {
+        for (AsyncResolver shard : shards) {
+            shard.setIpv6Nameservers(ipv6Nameservers);
+        }
+    }
+
+    public AnswerCache getAnswerCache() {
+        return shards[0].getAnswerCache();
+    }
+
+    public DelegationCache getDelegationCache() {
+        return shards[0].getDelegationCache();
+    }
+
+    public ServerStats getServerStats() {
+        return shards[0].getServerStats();
+    }
+
+    public ResolverMetrics getMetrics() {
+        return shards[0].getMetrics();
+    }
+
+    /**
+     * Trace a sample of lookups; see {@link AsyncResolver#setTraceSampling(int, ResolutionTrace.Sink)}.
+     */
+    public void setTraceSampling(int sampleEvery, ResolutionTrace.Sink sink) {
+        for (AsyncResolver shard : shards) {
+            shard.setTraceSampling(sampleEvery, sink);
+        }
+    }
+
+    /**
+     * @return how many lookups shared the work of an identical lookup already in flight.
+     */
+    public long getCoalescedCount() {
+        long count = 0;
+        for (AsyncResolver shard : shards) {
+            count += shard.getCoalescedCount();
+        }
+        return count;
+    }
+
+    /**
+     * @return how many lookups were started to refresh cached answers before or after expiry.
+     */
+    public long getRefreshCount() {
+        long count = 0;
+        for (AsyncResolver shard : shards) {
+            count += shard.getRefreshCount();
+        }
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (AsyncResolver shard : shards) {
+            try {
+                if (shard != null) {
+                    shard.close();
+                }
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
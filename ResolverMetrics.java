@@ -0,0 +1,332 @@
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms for a resolver: whole lookups, the queries they send
+ * upstream, and how each upstream server performs. Recording is a few lock-free
+ * increments, so metrics are always on.
+ *
+ * They can be read through JMX (see {@link #register}) or rendered as text in the
+ * Prometheus exposition format (see {@link #getText}).
+ */
+public class ResolverMetrics implements ResolverMetricsMBean {
+    private static final int RCODES = 16;
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+    private static final String[] QUANTILES = {"0.5", "0.9", "0.99", "0.999"};
+
+    private final LatencyHistogram lookupLatency = new LatencyHistogram();
+    private final LatencyHistogram queryLatency = new LatencyHistogram();
+    private final LatencyHistogram referralDepth = new LatencyHistogram();
+    private final Map<InetAddress, LatencyHistogram> serverLatency = new ConcurrentHashMap<>();
+    private final LongAdder[] lookupsByStatus = newCounters(ResolveStatus.values().length);
+    private final LongAdder[] responsesByRcode = newCounters(RCODES);
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+    private final LongAdder queries = new LongAdder();
+    private final LongAdder retransmits = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder tcpRetries = new LongAdder();
+    private final LongAdder ednsFallbacks = new LongAdder();
+    private final LongAdder droppedResponses = new LongAdder();
+    private final LongAdder internalErrors = new LongAdder();
+
+    /**
+     * Record a finished top-level lookup.
+     *
+     * @param status    - how it ended.
+     * @param micros    - how long it took.
+     * @param referrals - how many referrals it followed, counting CNAME targets and nameservers.
+     */
+    void recordLookup(ResolveStatus status, long micros, int referrals) {
+        lookupsByStatus[status.ordinal()].increment();
+        lookupLatency.record(micros);
+        referralDepth.record(referrals);
+    }
+
+    void recordCacheHit() {
+        cacheHits.increment();
+    }
+
+    void recordCacheMiss() {
+        cacheMisses.increment();
+    }
+
+    void recordQuery(boolean retransmit) {
+        queries.increment();
+        if (retransmit) {
+            retransmits.increment();
+        }
+    }
+
+    /**
+     * Record a response from a server.
+     *
+     * @param server - the server.
+     * @param rCode  - the response code.
+     * @param micros - the round trip time, or -1 if the query had been retransmitted and
+     *               cannot be timed.
+     */
+    void recordResponse(InetAddress server, int rCode, long micros) {
+        responsesByRcode[rCode & (RCODES - 1)].increment();
+        if (micros >= 0) {
+            queryLatency.record(micros);
+            LatencyHistogram histogram = serverLatency.get(server);
+            if (histogram == null) {
+                serverLatency.putIfAbsent(server, new LatencyHistogram());
+                histogram = serverLatency.get(server);
+            }
+            histogram.record(micros);
+        }
+    }
+
+    void recordTimeout() {
+        timeouts.increment();
+    }
+
+    void recordTcpRetry() {
+        tcpRetries.increment();
+    }
+
+    void recordEdnsFallback() {
+        ednsFallbacks.increment();
+    }
+
+    /**
+     * Record a packet that answered no outstanding query: late, duplicated, spoofed or malformed.
+     */
+    void recordDroppedResponse() {
+        droppedResponses.increment();
+    }
+
+    /**
+     * Record a bug caught on the event loop; the lookup it hit, if any, failed with OTHER_ERROR.
+     */
+    void recordInternalError() {
+        internalErrors.increment();
+    }
+
+    /**
+     * Register these metrics with the platform MBean server.
+     *
+     * @param name - the object name, e.g. "dnslookup:type=Resolver".
+     * @throws JMException if the name is malformed or already taken.
+     */
+    public void register(String name) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(name));
+    }
+
+    public LatencyHistogram getLookupLatency() {
+        return lookupLatency;
+    }
+
+    public LatencyHistogram getQueryLatency() {
+        return queryLatency;
+    }
+
+    /**
+     * @return the round trip time histogram of a server, or null if it never answered.
+     */
+    public LatencyHistogram getServerLatency(InetAddress server) {
+        return serverLatency.get(server);
+    }
+
+    public long getLookupCount(ResolveStatus status) {
+        return lookupsByStatus[status.ordinal()].sum();
+    }
+
+    @Override
+    public long getLookupCount() {
+        return lookupLatency.getCount();
+    }
+
+    @Override
+    public long getFailedLookupCount() {
+        return getLookupCount() - getLookupCount(ResolveStatus.SUCCESS) - getLookupCount(ResolveStatus.NO_ANSWER);
+    }
+
+    @Override
+    public long getLookupLatencyP50() {
+        return lookupLatency.getValueAtPercentile(50);
+    }
+
+    @Override
+    public long getLookupLatencyP99() {
+        return lookupLatency.getValueAtPercentile(99);
+    }
+
+    @Override
+    public long getLookupLatencyP999() {
+        return lookupLatency.getValueAtPercentile(99.9);
+    }
+
+    @Override
+    public long getCacheHitCount() {
+        return cacheHits.sum();
+    }
+
+    @Override
+    public long getCacheMissCount() {
+        return cacheMisses.sum();
+    }
+
+    @Override
+    public long getQueryCount() {
+        return queries.sum();
+    }
+
+    @Override
+    public long getQueryLatencyP50() {
+        return queryLatency.getValueAtPercentile(50);
+    }
+
+    @Override
+    public long getQueryLatencyP99() {
+        return queryLatency.getValueAtPercentile(99);
+    }
+
+    @Override
+    public long getRetransmitCount() {
+        return retransmits.sum();
+    }
+
+    @Override
+    public long getTimeoutCount() {
+        return timeouts.sum();
+    }
+
+    @Override
+    public long getTcpRetryCount() {
+        return tcpRetries.sum();
+    }
+
+    @Override
+    public long getEdnsFallbackCount() {
+        return ednsFallbacks.sum();
+    }
+
+    @Override
+    public long getDroppedResponseCount() {
+        return droppedResponses.sum();
+    }
+
+    @Override
+    public long getInternalErrorCount() {
+        return internalErrors.sum();
+    }
+
+    @Override
+    public double getMeanReferralDepth() {
+        return referralDepth.getMean();
+    }
+
+    @Override
+    public long[] getResponseRcodeCounts() {
+        long[] counts = new long[RCODES];
+        for (int i = 0; i < RCODES; i++) {
+            counts[i] = responsesByRcode[i].sum();
+        }
+        return counts;
+    }
+
+    @Override
+    public String getText() {
+        StringBuilder text = new StringBuilder();
+        for (ResolveStatus status : ResolveStatus.values()) {
+            line(text, "dns_lookups_total", "status=\"" + status + "\"", getLookupCount(status));
+        }
+        histogram(text, "dns_lookup_latency_microseconds", "", lookupLatency);
+        histogram(text, "dns_lookup_referrals", "", referralDepth);
+        line(text, "dns_cache_hits_total", "", getCacheHitCount());
+        line(text, "dns_cache_misses_total", "", getCacheMissCount());
+        line(text, "dns_upstream_queries_total", "", getQueryCount());
+        line(text, "dns_upstream_retransmits_total", "", getRetransmitCount());
+        line(text, "dns_upstream_timeouts_total", "", getTimeoutCount());
+        line(text, "dns_upstream_tcp_retries_total", "", getTcpRetryCount());
+        line(text, "dns_upstream_edns_fallbacks_total", "", getEdnsFallbackCount());
+        line(text, "dns_upstream_dropped_responses_total", "", getDroppedResponseCount());
+        line(text, "dns_resolver_internal_errors_total", "", getInternalErrorCount());
+        long[] rcodes = getResponseRcodeCounts();
+        for (int i = 0; i < RCODES; i++) {
+            if (rcodes[i] != 0) {
+                line(text, "dns_upstream_responses_total", "rcode=\"" + i + "\"", rcodes[i]);
+            }
+        }
+        histogram(text, "dns_upstream_latency_microseconds", "", queryLatency);
+        Map<String, LatencyHistogram> servers = new TreeMap<>();
+        for (Map.Entry<InetAddress, LatencyHistogram> entry : serverLatency.entrySet()) {
+            servers.put(entry.getKey().getHostAddress(), entry.getValue());
+        }
+        for (Map.Entry<String, LatencyHistogram> entry : servers.entrySet()) {
+            histogram(text, "dns_server_latency_microseconds", "server=\"" + entry.getKey() + "\",",
+                    entry.getValue());
+        }
+        return text.toString();
+    }
+
+    @Override
+    public void reset() {
+        lookupLatency.reset();
+        queryLatency.reset();
+        referralDepth.reset();
+        serverLatency.clear();
+        for (LongAdder counter : lookupsByStatus) {
+            counter.reset();
+        }
+        for (LongAdder counter : responsesByRcode) {
+            counter.reset();
+        }
+        cacheHits.reset();
+        cacheMisses.reset();
+        queries.reset();
+        retransmits.reset();
+        timeouts.reset();
+        tcpRetries.reset();
+        ednsFallbacks.reset();
+        droppedResponses.reset();
+        internalErrors.reset();
+    }
+
+    @Override
+    public String toString() {
+        return getText();
+    }
+
+    private static void line(StringBuilder text, String metric, String labels, long value) {
+        text.append(metric);
+        if (!labels.isEmpty()) {
+            text.append('{').append(labels).append('}');
+        }
+        text.append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Write a histogram as a summary: its quantiles, count and sum.
+     *
+     * @param labels - labels to put before the quantile, each followed by a comma.
+     */
+    private static void histogram(StringBuilder text, String metric, String labels, LatencyHistogram histogram) {
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            line(text, metric, labels + "quantile=\"" + QUANTILES[i] + "\"",
+                    histogram.getValueAtPercentile(PERCENTILES[i]));
+        }
+        String plain = labels.isEmpty() ? "" : labels.substring(0, labels.length() - 1);
+        long count = histogram.getCount();
+        line(text, metric + "_count", plain, count);
+        line(text, metric + "_sum", plain, Math.round(histogram.getMean() * count));
+    }
+
+    private static LongAdder[] newCounters(int count) {
+        LongAdder[] counters = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            counters[i] = new LongAdder();
+        }
+        return counters;
+    }
+}
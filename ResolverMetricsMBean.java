@@ -0,0 +1,47 @@
+/**
+ * The JMX view of {@link ResolverMetrics}. Latencies are in microseconds.
+ */
+public interface ResolverMetricsMBean {
+    long getLookupCount();
+
+    long getFailedLookupCount();
+
+    long getLookupLatencyP50();
+
+    long getLookupLatencyP99();
+
+    long getLookupLatencyP999();
+
+    long getCacheHitCount();
+
+    long getCacheMissCount();
+
+    long getQueryCount();
+
+    long getQueryLatencyP50();
+
+    long getQueryLatencyP99();
+
+    long getRetransmitCount();
+
+    long getTimeoutCount();
+
+    long getTcpRetryCount();
+
+    long getEdnsFallbackCount();
+
+    long getDroppedResponseCount();
+
+    long getInternalErrorCount();
+
+    double getMeanReferralDepth();
+
+    long[] getResponseRcodeCounts();
+
+    /**
+     * @return every metric in the text exposition format.
+     */
+    String getText();
+
+    void reset();
+}
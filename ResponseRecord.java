@@ -1,73 +1,121 @@
 /**
  * Created by Dalvir on 2017-03-06.
  * A class to store record data from a dns response.
+ *
+ * The owner is kept as a wire-form {@link DNSName} and the data as typed {@link RData}, so
+ * a record is compact and can be written back into a packet. The String getters render
+ * them on demand.
  */
 public class ResponseRecord {
 
-    private String name;
-    private int ttl;
-    private int type;
-    private String value;
+    private final DNSName name;
+    private final int type;
+    private final int recordClass;
+    private final int ttl;
+    private final RData rdata;
 
-    public ResponseRecord() {
-    }
-
-    public void setName(String name) {
+    public ResponseRecord(DNSName name, int type, int recordClass, int ttl, RData rdata) {
         this.name = name;
+        this.type = type;
+        this.recordClass = recordClass;
+        this.ttl = ttl;
+        this.rdata = rdata;
     }
 
+    /**
+     * @return the owner name in dotted form, without a trailing dot.
+     */
     public String getName() {
-        return name;
+        return name.toString();
     }
 
-    public void setTtl(int ttl) {
-        this.ttl = ttl;
+    public DNSName getOwner() {
+        return name;
     }
 
     public int getTtl() {
         return ttl;
     }
 
-    public void setType(int type) {
-        this.type = type;
-    }
-
     public int getType() {
         return type;
     }
 
-    public void setValue(String value) {
-        this.value = value;
+    public int getRecordClass() {
+        return recordClass;
+    }
+
+    public RData getRData() {
+        return rdata;
     }
 
+    /**
+     * @return the data in presentation form: a dotted or colon address, a name, or the
+     * type's fields separated by spaces.
+     */
     public String getValue() {
-        return value;
+        return rdata.toString();
+    }
+
+    /**
+     * Copy this record with a different TTL, e.g. the time left on a cached record.
+     *
+     * @param ttl - the TTL of the copy.
+     * @return the copied record.
+     */
+    public ResponseRecord withTtl(int ttl) {
+        return new ResponseRecord(name, type, recordClass, ttl, rdata);
     }
 
     public boolean isIPAddress() {
-        return type == 1 || type == 28;
+        return type == RData.TYPE_A || type == RData.TYPE_AAAA;
     }
 
     public boolean isIPV6() {
-        return type == 28;
+        return type == RData.TYPE_AAAA;
     }
 
     public String getRecordType() {
-        String recordType = "";
+        return typeName(type);
+    }
 
+    /**
+     * @param type - a record or query type number.
+     * @return the name the resolver prints for it.
+     */
+    public static String typeName(int type) {
+        String recordType = "";
         switch (type) {
-            case 1:
+            case RData.TYPE_A:
                 recordType = "A";
                 break;
-            case 2:
+            case RData.TYPE_NS:
                 recordType = "NS";
                 break;
-            case 5:
+            case RData.TYPE_CNAME:
                 recordType = "CN";
                 break;
-            case 28:
+            case RData.TYPE_SOA:
+                recordType = "SOA";
+                break;
+            case RData.TYPE_PTR:
+                recordType = "PTR";
+                break;
+            case RData.TYPE_MX:
+                recordType = "MX";
+                break;
+            case RData.TYPE_TXT:
+                recordType = "TXT";
+                break;
+            case RData.TYPE_AAAA:
                 recordType = "AAAA";
                 break;
+            case RData.TYPE_SRV:
+                recordType = "SRV";
+                break;
+            case RData.TYPE_DNAME:
+                recordType = "DNAME";
+                break;
             default:
                 recordType = String.valueOf(type);
         }
@@ -77,7 +125,7 @@ public class ResponseRecord {
 
     @Override
     public String toString() {
-        return String.format("       %-30s %-10d %-4s %s\n", name, ttl, getRecordType(), value);
+        return String.format("       %-30s %-10d %-4s %s\n", name, ttl, getRecordType(), rdata);
     }
 
 }
@@ -0,0 +1,289 @@
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Encodes responses to client queries, compressing names. A writer owns one buffer that
+ * every response is written into, so it must not be shared between threads; the buffer
+ * returned by each write is only valid until the next. Names are compressed against the
+ * labels already in the buffer, found through a table of their offsets, so writing a
+ * response allocates nothing.
+ */
+public class ResponseWriter {
+    public static final int RCODE_FORMAT_ERROR = 1;
+    public static final int RCODE_SERVER_FAILURE = 2;
+    public static final int RCODE_NOT_IMPLEMENTED = 4;
+    public static final int RCODE_REFUSED = 5;
+
+    private static final int FLAG_RESPONSE = 0x8000;
+    private static final int FLAG_TRUNCATED = 0x0200;
+    private static final int FLAG_RECURSION_DESIRED = 0x0100;
+    private static final int FLAG_RECURSION_AVAILABLE = 0x0080;
+    private static final int OPCODE_MASK = 0x7800;
+    private static final int OPT_RECORD_SIZE = 11;
+    private static final int SOA_RDATA_LENGTH = 22;       // two root names and five 32 bit fields
+    private static final int MAX_COMPRESSION_OFFSET = 0x3FFF;
+    private static final int MAX_COMPRESSION_LABELS = 256;  // later labels are written but not pointed at
+
+    private final ByteBuffer buffer;
+    private final int[] labelOffsets = new int[MAX_COMPRESSION_LABELS];
+    private int labelCount = 0;
+    private final RData.NameWriter compressor = this::name;
+
+    /**
+     * @param capacity - the largest response this writer can produce.
+     */
+    public ResponseWriter(int capacity) {
+        buffer = ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * Answer a query. If the records do not fit in maxSize the response is marked truncated,
+     * with no records at all, so the client asks again over TCP.
+     *
+     * @param query          - the client's query; its first question is echoed.
+     * @param rCode          - the response code.
+     * @param answers        - the answer records.
+     * @param negativeTtl    - for a negative answer, the TTL of the SOA to put in the authority
+     *                       section; -1 to put none.
+     * @param maxSize        - the largest response the client accepts.
+     * @param udpPayloadSize - the payload size to advertise in an OPT record, or 0 to send none.
+     * @return the response, from position 0 to its limit.
+     */
+    public ByteBuffer answer(DNSMessage query, int rCode, List<ResponseRecord> answers, int negativeTtl,
+                             int maxSize, int udpPayloadSize) throws IOException {
+        question(query, rCode);
+        int questionEnd = buffer.position();
+        int answerCount = 0;
+        boolean overflow = false;
+        try {
+            for (int i = 0; i < answers.size(); i++) {  // indexed, so no iterator is allocated
+                record(answers.get(i));
+                answerCount++;
+            }
+            if (negativeTtl >= 0) {
+                negativeSoa(negativeTtl);
+            }
+        } catch (BufferOverflowException e) {
+            overflow = true;
+        }
+        return finish(questionEnd, answerCount, overflow, maxSize, udpPayloadSize);
+    }
+
+    /**
+     * Start a response with the header and the query's question, copied as it was sent.
+     *
+     * @throws IOException if the question is compressed or runs past the end of the query.
+     */
+    private void question(DNSMessage query, int rCode) throws IOException {
+        header(query, rCode);
+        byte[] data = query.getData();
+        int pos = DNSMessage.HEADER_SIZE;
+        while (pos < query.getLength() && data[pos] != 0) {
+            if ((data[pos] & 0xC0) != 0) {
+                throw new IOException("Unsupported label type in the question at offset " + pos);
+            }
+            remember(pos);
+            pos += data[pos] + 1;
+        }
+        int end = pos + 5;  // the root label, type and class
+        if (end > query.getLength()) {
+            throw new IOException("Question runs past the end of the query");
+        }
+        buffer.putShort(4, (short) 1);
+        buffer.put(data, DNSMessage.HEADER_SIZE, end - DNSMessage.HEADER_SIZE);
+    }
+
+    /**
+     * Set the answer count, truncate if the answers do not fit, and add the OPT record.
+     */
+    private ByteBuffer finish(int questionEnd, int answerCount, boolean overflow, int maxSize, int udpPayloadSize) {
+        int reserved = udpPayloadSize > 0 ? OPT_RECORD_SIZE : 0;
+        if (overflow || buffer.position() + reserved > maxSize) {
+            buffer.position(questionEnd);
+            buffer.putShort(2, (short) (buffer.getShort(2) | FLAG_TRUNCATED));
+            buffer.putShort(8, (short) 0);
+            answerCount = 0;
+        }
+        buffer.putShort(6, (short) answerCount);
+
+        if (udpPayloadSize > 0) {
+            buffer.put((byte) 0);
+            buffer.putShort((short) DNSQuery.TYPE_OPT);
+            buffer.putShort((short) udpPayloadSize);
+            buffer.putInt(0);
+            buffer.putShort((short) 0);
+            buffer.putShort(10, (short) 1);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Answer a query straight from the answer cache, copying the cached records without
+     * decoding them. A cached empty answer or NXDOMAIN gets the SOA of a negative answer.
+     *
+     * @param query          - the client's query; its first question is echoed.
+     * @param cache          - the cache to answer from.
+     * @param name           - the question name.
+     * @param qtype          - the question type.
+     * @param maxSize        - the largest response the client accepts.
+     * @param udpPayloadSize - the payload size to advertise in an OPT record, or 0 to send none.
+     * @return the response, or null if the cache holds no live entry for the question.
+     */
+    public ByteBuffer cachedAnswer(DNSMessage query, AnswerCache cache, String name, int qtype, int maxSize,
+                                   int udpPayloadSize) throws IOException {
+        question(query, 0);
+        int questionEnd = buffer.position();
+        int count = cache.copyAnswers(name, qtype, buffer);
+        if (count == AnswerCache.MISS) {
+            return null;
+        }
+        if (count == AnswerCache.NAME_ERROR) {
+            buffer.putShort(2, (short) (buffer.getShort(2) | AnswerCache.RCODE_NAME_ERROR));
+            count = 0;
+        }
+        boolean overflow = false;
+        if (count == 0) {
+            int negativeTtl = cache.getNegativeTtl(name, qtype);
+            try {
+                if (negativeTtl >= 0) {
+                    negativeSoa(negativeTtl);
+                }
+            } catch (BufferOverflowException e) {
+                overflow = true;
+            }
+        }
+        return finish(questionEnd, count, overflow, maxSize, udpPayloadSize);
+    }
+
+    /**
+     * A response with no question or records, for queries too malformed to echo.
+     *
+     * @param query - the query; only its header is used.
+     * @param rCode - the response code.
+     * @return the response, from position 0 to its limit.
+     */
+    public ByteBuffer error(DNSMessage query, int rCode) {
+        header(query, rCode);
+        buffer.flip();
+        return buffer;
+    }
+
+    private void header(DNSMessage query, int rCode) {
+        buffer.clear();
+        labelCount = 0;
+        int flags = FLAG_RESPONSE | FLAG_RECURSION_AVAILABLE
+                | (query.getFlags() & (OPCODE_MASK | FLAG_RECURSION_DESIRED)) | (rCode & 0xF);
+        buffer.putShort((short) query.getId());
+        buffer.putShort((short) flags);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0);
+    }
+
+    private void record(ResponseRecord record) {
+        name(record.getOwner());
+        buffer.putShort((short) record.getType());
+        buffer.putShort((short) record.getRecordClass());
+        buffer.putInt(Math.max(0, record.getTtl()));
+        int lengthOffset = buffer.position();
+        buffer.putShort((short) 0);
+        record.getRData().writeTo(buffer, compressor);
+        buffer.putShort(lengthOffset, (short) (buffer.position() - lengthOffset - 2));
+    }
+
+    /**
+     * Add the SOA of a negative answer to the authority section. A client caches the answer
+     * for the smaller of the SOA's TTL and its MINIMUM field (RFC 2308 section 5), so both
+     * carry the negative TTL left. The zone's own SOA is not kept, so this one is owned by
+     * the root, which encloses every name, with root names and zero timers for the rest.
+     */
+    private void negativeSoa(int ttl) {
+        buffer.put((byte) 0);
+        buffer.putShort((short) RData.TYPE_SOA);
+        buffer.putShort((short) 1);
+        buffer.putInt(ttl);
+        buffer.putShort((short) SOA_RDATA_LENGTH);
+        buffer.put((byte) 0);
+        buffer.put((byte) 0);
+        buffer.putInt(0);
+        buffer.putInt(0);
+        buffer.putInt(0);
+        buffer.putInt(0);
+        buffer.putInt(ttl);
+        buffer.putShort(8, (short) 1);
+    }
+
+    /**
+     * Write a name, pointing at an earlier copy of its longest suffix already in the packet.
+     */
+    private void name(DNSName name) {
+        byte[] wire = name.wire();
+        int pos = 0;
+        while (wire[pos] != 0) {
+            int offset = findSuffix(wire, pos);
+            if (offset >= 0) {
+                buffer.putShort((short) (0xC000 | offset));
+                return;
+            }
+            remember(buffer.position());
+            int length = wire[pos];
+            buffer.put(wire, pos, length + 1);
+            pos += length + 1;
+        }
+        buffer.put((byte) 0);
+    }
+
+    /**
+     * Note a label written at an offset, so later names can point at it.
+     */
+    private void remember(int offset) {
+        if (offset <= MAX_COMPRESSION_OFFSET && labelCount < labelOffsets.length) {
+            labelOffsets[labelCount++] = offset;
+        }
+    }
+
+    /**
+     * @return the offset of a name in the packet equal, ignoring case, to a wire name from a
+     * label on, or -1 if there is none.
+     */
+    private int findSuffix(byte[] wire, int from) {
+        for (int i = 0; i < labelCount; i++) {
+            if (sameName(labelOffsets[i], wire, from)) {
+                return labelOffsets[i];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Compare a name in the packet, following its pointers, with a wire name from a label on.
+     * The pointers were all written by this writer, to earlier labels, so they cannot loop.
+     */
+    private boolean sameName(int offset, byte[] wire, int pos) {
+        while (true) {
+            int length = buffer.get(offset) & 0xFF;
+            if ((length & 0xC0) == 0xC0) {
+                offset = ((length & 0x3F) << 8) | (buffer.get(offset + 1) & 0xFF);
+                continue;
+            }
+            if (length != wire[pos]) {
+                return false;
+            }
+            if (length == 0) {
+                return true;
+            }
+            for (int i = 1; i <= length; i++) {
+                if (DNSName.toLowerCase(buffer.get(offset + i)) != DNSName.toLowerCase(wire[pos + i])) {
+                    return false;
+                }
+            }
+            offset += length + 1;
+            pos += length + 1;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Measured round trip times per nameserver address.
+ *
+ * Selection follows BIND: each server keeps a smoothed RTT; servers that are passed over
+ * have theirs decay so they get probed again, and servers never seen before start with a
+ * small random RTT so they are tried early.
+ *
+ * Retransmission follows RFC 6298: SRTT and RTTVAR give each server its own timeout,
+ * which doubles on every timeout. A server that times out several times in a row is
+ * marked lame and only used when nothing else is left, for a back-off period that grows
+ * each time it goes lame again.
+ */
+public class ServerStats {
+    private static final double SMOOTHING = 0.3;         // weight of a new sample in the selection RTT
+    private static final double DECAY = 0.98;            // applied to servers that were not chosen
+    private static final int MAX_UNKNOWN_SRTT_MICROS = 32000;
+    private static final int MAX_SRTT_MICROS = 10000000;
+
+    private static final double ALPHA = 1.0 / 8;         // RFC 6298 gains
+    private static final double BETA = 1.0 / 4;
+    private static final int K = 4;
+    private static final long CLOCK_GRANULARITY_MICROS = 1000;
+    private static final long INITIAL_RTO_MILLIS = 1000;
+    private static final long MIN_RTO_MILLIS = 50;       // RFC 6298 says 1 s, which is meant for TCP
+    private static final long MAX_RTO_MILLIS = 5000;
+
+    private static final int LAME_TIMEOUTS = 3;          // consecutive timeouts before a server is lame
+    private static final long INITIAL_LAME_MILLIS = 30000;
+    private static final long MAX_LAME_MILLIS = 900000;
+
+    private final Map<InetAddress, Server> servers = new ConcurrentHashMap<>();
+
+    /**
+     * Record a round trip to a server. Per Karn's algorithm only queries that were not
+     * retransmitted should be sampled.
+     *
+     * @param address - the server that answered.
+     * @param micros  - the time from sending the query to receiving the answer.
+     */
+    public void recordRtt(InetAddress address, long micros) {
+        Server server = get(address);
+        synchronized (server) {
+            server.selectionRtt = (1 - SMOOTHING) * server.selectionRtt + SMOOTHING * micros;
+
+            if (server.srtt < 0) {
+                server.srtt = micros;
+                server.rttvar = micros / 2.0;
+            } else {
+                server.rttvar = (1 - BETA) * server.rttvar + BETA * Math.abs(server.srtt - micros);
+                server.srtt = (1 - ALPHA) * server.srtt + ALPHA * micros;
+            }
+            long rtoMicros = (long) (server.srtt + Math.max(CLOCK_GRANULARITY_MICROS, K * server.rttvar));
+            server.rto = clampRto(rtoMicros / 1000);
+            server.consecutiveTimeouts = 0;
+            server.lameUntil = 0;
+        }
+    }
+
+    /**
+     * Record that a server did not answer in time: back its timeout off and push it behind
+     * its peers, marking it lame if it keeps failing.
+     *
+     * @param address - the server that timed out.
+     */
+    public void recordTimeout(InetAddress address) {
+        Server server = get(address);
+        synchronized (server) {
+            server.rto = clampRto(server.rto * 2);
+            server.selectionRtt = Math.min(MAX_SRTT_MICROS,
+                    Math.max(server.selectionRtt * 2, server.rto * 1000.0));
+
+            if (++server.consecutiveTimeouts >= LAME_TIMEOUTS) {
+                long now = System.currentTimeMillis();
+                if (server.lameUntil <= now) {
+                    server.lameUntil = now + server.lamePeriod;
+                    server.lamePeriod = Math.min(MAX_LAME_MILLIS, server.lamePeriod * 2);
+                }
+                server.consecutiveTimeouts = 0;
+            }
+        }
+    }
+
+    /**
+     * Order candidate servers: servers that are not lame first, fastest first. Every server
+     * but the first has its selection RTT decayed, so a server that was slow once is
+     * eventually retried.
+     *
+     * @param addresses - the candidates, e.g. the glue of a referral.
+     * @return a new list with the same addresses.
+     */
+    public List<InetAddress> order(List<InetAddress> addresses) {
+        List<InetAddress> ordered = new ArrayList<>(addresses);
+        if (ordered.size() < 2) {
+            return ordered;
+        }
+
+        long now = System.currentTimeMillis();
+        final Map<InetAddress, Double> score = new HashMap<>();
+        for (InetAddress address : ordered) {
+            Server server = get(address);
+            synchronized (server) {
+                // lame servers sort after every live one
+                score.put(address, server.selectionRtt + (server.lameUntil > now ? MAX_SRTT_MICROS : 0));
+            }
+        }
+        Collections.sort(ordered, Comparator.comparingDouble(score::get));
+
+        for (int i = 1; i < ordered.size(); i++) {
+            Server server = get(ordered.get(i));
+            synchronized (server) {
+                server.selectionRtt *= DECAY;
+            }
+        }
+        return ordered;
+    }
+
+    /**
+     * @return how long to wait for a server before retransmitting, in milliseconds.
+     */
+    public long getTimeoutMillis(InetAddress address) {
+        Server server = get(address);
+        synchronized (server) {
+            return server.rto;
+        }
+    }
+
+    /**
+     * @return the smoothed RTT used to pick a server, in microseconds.
+     */
+    public double getSrttMicros(InetAddress address) {
+        Server server = get(address);
+        synchronized (server) {
+            return server.selectionRtt;
+        }
+    }
+
+    public boolean isLame(InetAddress address) {
+        Server server = get(address);
+        synchronized (server) {
+            return server.lameUntil > System.currentTimeMillis();
+        }
+    }
+
+    public int size() {
+        return servers.size();
+    }
+
+    private static long clampRto(long rto) {
+        return Math.max(MIN_RTO_MILLIS, Math.min(MAX_RTO_MILLIS, rto));
+    }
+
+    private Server get(InetAddress address) {
+        Server server = servers.get(address);
+        if (server == null) {
+            Server created = new Server(ThreadLocalRandom.current().nextInt(1, MAX_UNKNOWN_SRTT_MICROS));
+            server = servers.putIfAbsent(address, created);
+            if (server == null) {
+                server = created;
+            }
+        }
+        return server;
+    }
+
+    private static class Server {
+        private double selectionRtt;
+        private double srtt = -1;           // no sample yet
+        private double rttvar;
+        private long rto = INITIAL_RTO_MILLIS;
+        private int consecutiveTimeouts = 0;
+        private long lameUntil = 0;
+        private long lamePeriod = INITIAL_LAME_MILLIS;
+
+        Server(double selectionRtt) {
+            this.selectionRtt = selectionRtt;
+        }
+    }
+}
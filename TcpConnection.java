@@ -0,0 +1,221 @@
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Queue;
+import java.util.Set;
+
+/**
+ * A persistent, non-blocking DNS-over-TCP connection to one server (RFC 7766). Any number
+ * of queries may be written without waiting for earlier answers; responses arrive in any
+ * order and are handed to the listener whole, to be matched by query id.
+ *
+ * Every method must be called from the thread that owns the selector.
+ */
+public class TcpConnection {
+    private static final int LENGTH_PREFIX_SIZE = 2;
+    private static final int MAX_MESSAGE_SIZE = 65535;
+
+    /**
+     * Receives what happens on a connection.
+     */
+    public interface Listener {
+        void onMessage(TcpConnection connection, byte[] message);
+
+        /**
+         * The connection is gone, closed by either side or broken. Queries written to it
+         * that have not been answered never will be.
+         */
+        void onClosed(TcpConnection connection, IOException cause);
+    }
+
+    private final InetSocketAddress server;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final Listener listener;
+    private final Queue<ByteBuffer> writeQueue = new ArrayDeque<>();
+    private final ByteBuffer lengthBuffer = ByteBuffer.allocate(LENGTH_PREFIX_SIZE);
+    private ByteBuffer messageBuffer;      // the body of the message being read, once its length is known
+    private boolean connected = false;
+    private boolean closed = false;
+    private final Set<Integer> outstanding = new HashSet<>();  // ids of queries sent and not yet answered
+    private long lastUsed = System.currentTimeMillis();
+
+    /**
+     * Start connecting to a server. Queries may be sent right away; they are written once
+     * the connection is up.
+     *
+     * @param server   - the server's address and port.
+     * @param selector - the selector of the event loop driving the connection.
+     * @param listener - told about responses and about the connection closing.
+     * @throws IOException if the socket cannot be opened.
+     */
+    public TcpConnection(InetSocketAddress server, Selector selector, Listener listener) throws IOException {
+        this.server = server;
+        this.listener = listener;
+        channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            connected = channel.connect(server);
+            key = channel.register(selector, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public InetSocketAddress getServer() {
+        return server;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return the number of queries sent on this connection that have not been answered.
+     */
+    public int getOutstanding() {
+        return outstanding.size();
+    }
+
+    /**
+     * @return when a query was last sent or answered on this connection, in epoch milliseconds.
+     */
+    public long getLastUsed() {
+        return lastUsed;
+    }
+
+    /**
+     * Queue a query, prefixed with its length, behind any not yet written.
+     *
+     * @param message - the query message, from its position to its limit; it is copied, so
+     *                the buffer can be reused once this returns. Its id must not be that of
+     *                another query outstanding here.
+     */
+    public void send(ByteBuffer message) {
+        if (closed) {
+            return;
+        }
+        outstanding.add(message.getShort(message.position()) & 0xFFFF);
+        ByteBuffer framed = ByteBuffer.allocate(LENGTH_PREFIX_SIZE + message.remaining());
+        framed.putShort((short) message.remaining()).put(message).flip();
+        writeQueue.add(framed);
+        lastUsed = System.currentTimeMillis();
+        if (connected) {
+            flush();
+        }
+    }
+
+    /**
+     * A query will not be waited for here after all, e.g. it timed out. A response that
+     * still comes for it is handed to the listener but no longer counts.
+     *
+     * @param queryId - the id of the query.
+     */
+    public void abandon(int queryId) {
+        outstanding.remove(queryId);
+    }
+
+    /**
+     * Act on the channel being ready: finish connecting, write queued queries, read responses.
+     */
+    public void handle() {
+        if (!key.isValid()) {
+            return;
+        }
+        try {
+            if (key.isConnectable() && channel.finishConnect()) {
+                connected = true;
+                key.interestOps(SelectionKey.OP_READ);
+                flush();
+            }
+            if (key.isValid() && key.isWritable()) {
+                flush();
+            }
+            if (key.isValid() && key.isReadable()) {
+                read();
+            }
+        } catch (IOException e) {
+            close(e);
+        }
+    }
+
+    public void close() {
+        close(null);
+    }
+
+    private void close(IOException cause) {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // already broken
+        }
+        writeQueue.clear();
+        listener.onClosed(this, cause);
+    }
+
+    private void flush() {
+        try {
+            ByteBuffer head;
+            while ((head = writeQueue.peek()) != null) {
+                channel.write(head);
+                if (head.hasRemaining()) {
+                    break;  // socket buffer full: wait for OP_WRITE
+                }
+                writeQueue.poll();
+            }
+            key.interestOps(writeQueue.isEmpty()
+                    ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        } catch (IOException e) {
+            close(e);
+        }
+    }
+
+    /**
+     * Read whatever has arrived, handing each complete message to the listener.
+     */
+    private void read() throws IOException {
+        while (!closed) {
+            if (messageBuffer == null) {
+                if (channel.read(lengthBuffer) < 0) {
+                    throw new EOFException("connection closed by " + server);
+                }
+                if (lengthBuffer.hasRemaining()) {
+                    return;
+                }
+                lengthBuffer.flip();
+                int length = lengthBuffer.getShort() & MAX_MESSAGE_SIZE;
+                lengthBuffer.clear();
+                messageBuffer = ByteBuffer.allocate(length);
+            }
+
+            if (channel.read(messageBuffer) < 0) {
+                throw new EOFException("connection closed by " + server);
+            }
+            if (messageBuffer.hasRemaining()) {
+                return;
+            }
+            byte[] message = messageBuffer.array();
+            messageBuffer = null;
+            if (message.length >= 2) {
+                abandon(((message[0] & 0xFF) << 8) | (message[1] & 0xFF));
+            }
+            lastUsed = System.currentTimeMillis();
+            listener.onMessage(this, message);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Makes threads for blocking work: virtual threads where the JVM has them (Java 21 and
+ * later), daemon platform threads otherwise. Virtual threads are found by reflection so the
+ * code still builds and runs on older JVMs.
+ */
+public final class VirtualThreads {
+    private static final Method OF_VIRTUAL = findOfVirtual();
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * @return true if {@link #factory} makes virtual threads.
+     */
+    public static boolean isAvailable() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * A factory for threads named prefix-0, prefix-1, ...
+     *
+     * @param prefix - the start of each thread's name.
+     * @return a factory of virtual threads if the JVM has them, of daemon platform threads if not.
+     */
+    public static ThreadFactory factory(final String prefix) {
+        if (OF_VIRTUAL != null) {
+            try {
+                Object builder = OF_VIRTUAL.invoke(null);
+                Class<?> builderClass = OF_VIRTUAL.getReturnType();
+                builder = builderClass.getMethod("name", String.class, long.class)
+                        .invoke(builder, prefix + "-", 0L);
+                return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            } catch (ReflectiveOperationException e) {
+                // fall through to platform threads
+            }
+        }
+        final AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + "-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private static Method findOfVirtual() {
+        try {
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            ofVirtual.invoke(null);  // throws on Java 19 and 20 unless preview features are on
+            return ofVirtual;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-process stand-in for the DNS hierarchy, listening on loopback. 127.0.0.1 plays the
+ * root and refers "test" to 127.0.0.2, which plays the TLD and refers every zone under it
+ * to 127.0.0.3, which answers authoritatively: an A/AAAA record derived from the name, or
+ * NXDOMAIN for names starting with "nx". All three listen on the same port.
+ */
+public class FakeNameServer implements Closeable {
+    private static final String[] ROLES = {"127.0.0.1", "127.0.0.2", "127.0.0.3"};
+    private static final int ROOT = 0;
+    private static final int TLD = 1;
+    private static final int MAX_PACKET_SIZE = 512;
+
+    private final DatagramChannel[] channels = new DatagramChannel[ROLES.length];
+    private final Selector selector;
+    private final Thread thread;
+    private final int port;
+    private final AtomicLong queryCount = new AtomicLong();
+    private volatile boolean running = true;
+
+    public FakeNameServer() throws IOException {
+        selector = Selector.open();
+        port = bindAll();
+        thread = new Thread(this::serve, "fake-name-server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public InetAddress getRootAddress() throws IOException {
+        return InetAddress.getByName(ROLES[ROOT]);
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * @return the number of queries answered so far, across all roles.
+     */
+    public long getQueryCount() {
+        return queryCount.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (DatagramChannel channel : channels) {
+            channel.close();
+        }
+        selector.close();
+    }
+
+    /**
+     * Bind every role to the same port, trying again if another process holds it on one of the addresses.
+     */
+    private int bindAll() throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            int boundPort = 0;
+            try {
+                for (int i = 0; i < ROLES.length; i++) {
+                    channels[i] = DatagramChannel.open();
+                    channels[i].bind(new InetSocketAddress(ROLES[i], boundPort));
+                    boundPort = ((InetSocketAddress) channels[i].getLocalAddress()).getPort();
+                }
+                for (int i = 0; i < ROLES.length; i++) {
+                    channels[i].configureBlocking(false);
+                    channels[i].register(selector, SelectionKey.OP_READ, i);
+                }
+                return boundPort;
+            } catch (IOException e) {
+                for (DatagramChannel channel : channels) {
+                    if (channel != null) {
+                        channel.close();
+                    }
+                }
+                if (attempt == 10) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private void serve() {
+        ByteBuffer request = ByteBuffer.allocate(MAX_PACKET_SIZE);
+        PacketWriter writer = new PacketWriter(MAX_PACKET_SIZE);
+        DNSMessage query = new DNSMessage();
+
+        while (running) {
+            try {
+                selector.select();
+                for (SelectionKey key : selector.selectedKeys()) {
+                    DatagramChannel channel = (DatagramChannel) key.channel();
+                    int role = (Integer) key.attachment();
+                    SocketAddress client;
+                    while ((client = channel.receive(request)) != null) {
+                        request.flip();
+                        query.wrap(request.array(), request.limit());
+                        byte[] response = respond(role, query, writer);
+                        queryCount.incrementAndGet();
+                        channel.send(ByteBuffer.wrap(response), client);
+                        request.clear();
+                    }
+                }
+                selector.selectedKeys().clear();
+            } catch (Exception e) {
+                // drop the packet, keep serving
+            }
+        }
+    }
+
+    /**
+     * Build the response one role gives to a query.
+     */
+    static byte[] respond(int role, DNSMessage query, PacketWriter writer) throws Exception {
+        String qname = query.getQuestionName().toLowerCase();
+        int qtype = query.getQuestionType();
+        int id = query.getId();
+
+        if (role == ROOT) {
+            writer.header(id, false, 0, qname, qtype);
+            for (char c = 'a'; c <= 'd'; c++) {
+                writer.authority("test", 2, 172800, c + ".nic.test");
+            }
+            for (char c = 'a'; c <= 'd'; c++) {
+                writer.additional(c + ".nic.test", 1, 172800, ROLES[TLD]);
+            }
+            return writer.toByteArray();
+        }
+
+        String[] labels = qname.split("\\.");
+        String zone = labels.length >= 2
+                ? labels[labels.length - 2] + "." + labels[labels.length - 1] : qname;
+
+        if (role == TLD) {
+            writer.header(id, false, 0, qname, qtype)
+                    .authority(zone, 2, 86400, "ns1." + zone)
+                    .authority(zone, 2, 86400, "ns2." + zone)
+                    .additional("ns1." + zone, 1, 86400, ROLES[2])
+                    .additional("ns2." + zone, 1, 86400, ROLES[2]);
+            return writer.toByteArray();
+        }
+
+        if (qname.startsWith("nx")) {
+            return writer.header(id, true, 3, qname, qtype)
+                    .authority(zone, 6, 60, "ns1." + zone)
+                    .toByteArray();
+        }
+
+        int hash = qname.hashCode();
+        writer.header(id, true, 0, qname, qtype);
+        if (qtype == 28) {
+            writer.answer(qname, 28, 300, "2001:db8::" + Integer.toHexString(hash & 0xFFFF));
+        } else {
+            writer.answer(qname, 1, 300, "10." + ((hash >> 16) & 0xFF) + "." + ((hash >> 8) & 0xFF)
+                    + "." + (hash & 0xFF));
+        }
+        return writer.toByteArray();
+    }
+}
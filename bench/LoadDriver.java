@@ -0,0 +1,352 @@
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Drives a resolver with a synthetic workload against an in-process {@link ZoneSimulator}
+ * and reports throughput, lookup latency and how many upstream queries each lookup cost,
+ * so caches and timeouts can be tuned offline and reproducibly.
+ *
+ * Arguments are key=value, or @file with one per line. Besides the simulator's settings:
+ * lookups (the total), names (distinct names), concurrency (lookups in flight), zipf (the
+ * popularity skew of names; 0 for uniform), nx and alias (the shares of names that do not
+ * exist or are CNAMEs), aaaa (the share of AAAA lookups), qmin (true for QNAME
+ * minimisation), parallel (servers asked at once), stagger (milliseconds), edns (the
+ * UDP payload size, 0 for none) and shards (resolver shards).
+ *
+ * With senders above 0 the lookups are sent as UDP queries by that many threads, sharing
+ * the concurrency between them, to a {@link DNSServer}: one started in front of the
+ * resolver with workers receive threads (default: one per CPU), or, given server (a port,
+ * or host:port), one already running, e.g. started with -s port -w threads against a
+ * simulator run on its own with the same settings. Queries per second and response
+ * latency are then measured at the client.
+ *
+ *     java LoadDriver lookups=200000 names=20000 latency=2 jitter=3 loss=0.01 lame=0.1
+ *     java LoadDriver lookups=1000000 senders=4 workers=2
+ */
+public class LoadDriver {
+    private static final int CLIENT_PAYLOAD_SIZE = 1232;
+    private static final int CLIENT_TIMEOUT_MILLIS = 2000;  // a query unanswered this long counts as lost
+    private static final int FLAG_RECURSION_DESIRED = 0x0100;
+    private static final int FLAG_TRUNCATED = 0x0200;
+    private static final String[] RCODE_NAMES = {"NOERROR", "FORMERR", "SERVFAIL", "NXDOMAIN", "NOTIMP", "REFUSED"};
+    private static final Map<String, String> DEFAULTS = new LinkedHashMap<>();
+
+    static {
+        DEFAULTS.put("lookups", "100000");
+        DEFAULTS.put("names", "10000");
+        DEFAULTS.put("concurrency", "256");
+        DEFAULTS.put("zipf", "1.0");
+        DEFAULTS.put("nx", "0.05");
+        DEFAULTS.put("alias", "0.05");
+        DEFAULTS.put("aaaa", "0.0");
+        DEFAULTS.put("qmin", "false");
+        DEFAULTS.put("parallel", "");
+        DEFAULTS.put("stagger", "");
+        DEFAULTS.put("edns", "");
+        DEFAULTS.put("shards", "1");
+        DEFAULTS.put("senders", "0");
+        DEFAULTS.put("workers", "");
+        DEFAULTS.put("server", "");
+    }
+
+    public static void main(String[] args) throws Exception {
+        ZoneSimulator.Settings settings = new ZoneSimulator.Settings();
+        Map<String, String> options = new LinkedHashMap<>(DEFAULTS);
+        try {
+            for (String option : settings.apply(args)) {
+                int equals = option.indexOf('=');
+                String key = option.substring(0, equals).trim();
+                if (!options.containsKey(key)) {
+                    throw new IllegalArgumentException("unknown setting " + key + "; the load settings are "
+                            + DEFAULTS.keySet());
+                }
+                options.put(key, option.substring(equals + 1).trim());
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+        int lookups = Integer.parseInt(options.get("lookups"));
+        int concurrency = Integer.parseInt(options.get("concurrency"));
+        double aaaa = Double.parseDouble(options.get("aaaa"));
+        String[] names = names(settings, Integer.parseInt(options.get("names")),
+                Double.parseDouble(options.get("nx")), Double.parseDouble(options.get("alias")));
+        double[] popularity = zipf(names.length, Double.parseDouble(options.get("zipf")));
+        int senders = Integer.parseInt(options.get("senders"));
+
+        if (senders > 0 && !options.get("server").isEmpty()) {
+            System.out.println("Load: " + options);
+            sendQueries(serverAddress(options.get("server")), senders, lookups, concurrency, names, popularity,
+                    aaaa, settings.getSeed());
+            return;
+        }
+        try (ZoneSimulator simulator = new ZoneSimulator(settings);
+             Resolver resolver = new Resolver(simulator.getRootAddress(), simulator.getPort(),
+                     Integer.parseInt(options.get("shards")))) {
+            resolver.setQnameMinimisation(Boolean.parseBoolean(options.get("qmin")));
+            if (!options.get("parallel").isEmpty()) {
+                resolver.setMaxParallelQueries(Integer.parseInt(options.get("parallel")));
+            }
+            if (!options.get("stagger").isEmpty()) {
+                resolver.setStaggerDelay(Long.parseLong(options.get("stagger")));
+            }
+            if (!options.get("edns").isEmpty()) {
+                resolver.setEdnsPayloadSize(Integer.parseInt(options.get("edns")));
+            }
+            System.out.println("Simulator: " + settings);
+            System.out.println("Load: " + options);
+
+            if (senders > 0) {
+                int workers = options.get("workers").isEmpty() ? Runtime.getRuntime().availableProcessors()
+                        : Integer.parseInt(options.get("workers"));
+                try (DNSServer server = new DNSServer(resolver,
+                        new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), workers)) {
+                    sendQueries(server.getLocalAddress(), senders, lookups, concurrency, names, popularity, aaaa,
+                            settings.getSeed());
+                    System.out.printf("Server queries %d, answered from the cache %d, receive threads %d%n",
+                            server.getQueryCount(), server.getCacheAnswerCount(), workers);
+                }
+                report(simulator, resolver, lookups);
+                return;
+            }
+
+            final Semaphore inFlight = new Semaphore(concurrency);
+            final LatencyHistogram latency = new LatencyHistogram();
+            final LatencyHistogram queries = new LatencyHistogram();
+            final LongAdder[] statuses = new LongAdder[ResolveStatus.values().length];
+            for (int i = 0; i < statuses.length; i++) {
+                statuses[i] = new LongAdder();
+            }
+            Random random = new Random(settings.getSeed());
+            long start = System.nanoTime();
+            for (int i = 0; i < lookups; i++) {
+                int rank = Arrays.binarySearch(popularity, random.nextDouble());
+                String name = names[Math.min(rank < 0 ? -rank - 1 : rank, names.length - 1)];
+                int qtype = random.nextDouble() < aaaa ? 28 : 1;
+                inFlight.acquire();
+                final long began = System.nanoTime();
+                resolver.resolveAsync(name, qtype).thenAccept(result -> {
+                    latency.record((System.nanoTime() - began) / 1000);
+                    queries.record(result.getQueryCount());
+                    statuses[result.getStatus().ordinal()].increment();
+                    inFlight.release();
+                });
+            }
+            inFlight.acquire(concurrency);  // wait for the stragglers
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            System.out.printf("%d lookups of %d names in %.3f s: %.1f lookups/sec%n", lookups, names.length,
+                    seconds, lookups / Math.max(seconds, 1e-9));
+            StringBuilder line = new StringBuilder("Status");
+            for (ResolveStatus status : ResolveStatus.values()) {
+                if (statuses[status.ordinal()].sum() != 0) {
+                    line.append(' ').append(status).append(' ').append(statuses[status.ordinal()].sum());
+                }
+            }
+            System.out.println(line);
+            System.out.println("Lookup latency (us) " + latency);
+            System.out.printf("Upstream queries per lookup mean %.3f p50 %d p99 %d p99.9 %d max %d%n",
+                    queries.getMean(), queries.getValueAtPercentile(50), queries.getValueAtPercentile(99),
+                    queries.getValueAtPercentile(99.9), queries.getMax());
+            report(simulator, resolver, lookups);
+        }
+    }
+
+    /**
+     * Print the resolver's upstream counts, the simulator's and the answer cache's.
+     */
+    private static void report(ZoneSimulator simulator, Resolver resolver, int lookups) {
+        ResolverMetrics metrics = resolver.getMetrics();
+        System.out.printf("Upstream queries %d (%.3f per lookup), retransmits %d, timeouts %d, TCP retries %d,"
+                        + " coalesced lookups %d%n", metrics.getQueryCount(),
+                metrics.getQueryCount() / (double) lookups, metrics.getRetransmitCount(),
+                metrics.getTimeoutCount(), metrics.getTcpRetryCount(), resolver.getCoalescedCount());
+        System.out.printf("Simulator queries %d, dropped %d, truncated %d, refused %d, over TCP %d%n",
+                simulator.getQueryCount(), simulator.getDroppedCount(), simulator.getTruncatedCount(),
+                simulator.getRefusedCount(), simulator.getTcpQueryCount());
+        System.out.println(resolver.getAnswerCache());
+    }
+
+    /**
+     * Send the lookups as UDP queries to a server from several threads, each keeping its share
+     * of the concurrency in flight, and report queries/sec, response codes and latency.
+     */
+    private static void sendQueries(InetSocketAddress server, int senders, int lookups, int concurrency,
+                                    String[] names, double[] popularity, double aaaa, long seed) throws Exception {
+        byte[][] ipv4 = new byte[names.length][];
+        byte[][] ipv6 = new byte[names.length][];
+        for (int i = 0; i < names.length; i++) {
+            ipv4[i] = recursiveQuery(names[i], 1);
+            ipv6[i] = recursiveQuery(names[i], 28);
+        }
+
+        LatencyHistogram latency = new LatencyHistogram();
+        LongAdder[] rCodes = new LongAdder[16];
+        for (int i = 0; i < rCodes.length; i++) {
+            rCodes[i] = new LongAdder();
+        }
+        LongAdder truncated = new LongAdder();
+        LongAdder lost = new LongAdder();
+        Thread[] threads = new Thread[senders];
+        Throwable[] failure = new Throwable[1];
+        long start = System.nanoTime();
+        for (int t = 0; t < senders; t++) {
+            final int quota = lookups / senders + (t < lookups % senders ? 1 : 0);
+            final int window = Math.max(1, concurrency / senders);
+            final Random random = new Random(seed + t);
+            threads[t] = new Thread(() -> {
+                try (DatagramSocket socket = new DatagramSocket()) {
+                    socket.connect(server);
+                    socket.setSoTimeout(CLIENT_TIMEOUT_MILLIS);
+                    long[] sentAt = new long[65536];  // by query ID; 0 when not in flight
+                    byte[] out = new byte[DNSQuery.MAX_QUERY_SIZE];  // the queries are shared; their IDs are not
+                    DatagramPacket request = new DatagramPacket(out, out.length);
+                    DatagramPacket response = new DatagramPacket(new byte[CLIENT_PAYLOAD_SIZE], CLIENT_PAYLOAD_SIZE);
+                    int sent = 0;
+                    int inFlight = 0;
+                    int id = 0;
+                    while (sent < quota || inFlight > 0) {
+                        while (inFlight < window && sent < quota) {
+                            int rank = Arrays.binarySearch(popularity, random.nextDouble());
+                            rank = Math.min(rank < 0 ? -rank - 1 : rank, names.length - 1);
+                            byte[] query = random.nextDouble() < aaaa ? ipv6[rank] : ipv4[rank];
+                            id = (id + 1) & 0xFFFF;
+                            while (sentAt[id] != 0) {
+                                id = (id + 1) & 0xFFFF;
+                            }
+                            System.arraycopy(query, 0, out, 0, query.length);
+                            out[0] = (byte) (id >> 8);
+                            out[1] = (byte) id;
+                            request.setLength(query.length);
+                            sentAt[id] = System.nanoTime();
+                            socket.send(request);
+                            sent++;
+                            inFlight++;
+                        }
+                        try {
+                            socket.receive(response);
+                        } catch (SocketTimeoutException e) {
+                            inFlight -= expire(sentAt, System.nanoTime() - CLIENT_TIMEOUT_MILLIS * 1_000_000L, lost);
+                            continue;
+                        }
+                        byte[] data = response.getData();
+                        int answered = ((data[0] & 0xFF) << 8) | (data[1] & 0xFF);
+                        if (response.getLength() < DNSMessage.HEADER_SIZE || sentAt[answered] == 0) {
+                            continue;  // runt, or the answer to a query already counted lost
+                        }
+                        latency.record((System.nanoTime() - sentAt[answered]) / 1000);
+                        sentAt[answered] = 0;
+                        inFlight--;
+                        rCodes[data[3] & 0xF].increment();
+                        if ((((data[2] & 0xFF) << 8) & FLAG_TRUNCATED) != 0) {
+                            truncated.increment();
+                        }
+                    }
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            }, "sender-" + t);
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        if (failure[0] != null) {
+            System.err.println("Sending failed: " + failure[0]);
+        }
+
+        System.out.printf("%d queries of %d names from %d senders to %s in %.3f s: %.1f queries/sec%n", lookups,
+                names.length, senders, server, seconds, latency.getCount() / Math.max(seconds, 1e-9));
+        StringBuilder line = new StringBuilder("Rcode");
+        for (int i = 0; i < rCodes.length; i++) {
+            if (rCodes[i].sum() != 0) {
+                line.append(' ').append(i < RCODE_NAMES.length ? RCODE_NAMES[i] : "RCODE" + i)
+                        .append(' ').append(rCodes[i].sum());
+            }
+        }
+        System.out.println(line + ", truncated " + truncated.sum() + ", lost " + lost.sum());
+        System.out.println("Response latency (us) " + latency);
+    }
+
+    /**
+     * Give up on the queries sent before a time.
+     *
+     * @return the number given up on.
+     */
+    private static int expire(long[] sentAt, long before, LongAdder lost) {
+        int expired = 0;
+        for (int id = 0; id < sentAt.length; id++) {
+            if (sentAt[id] != 0 && sentAt[id] - before < 0) {
+                sentAt[id] = 0;
+                expired++;
+            }
+        }
+        lost.add(expired);
+        return expired;
+    }
+
+    /**
+     * Encode a query as a stub resolver sends it: recursion desired, with EDNS.
+     */
+    private static byte[] recursiveQuery(String name, int qtype) throws IOException {
+        byte[] query = DNSQuery.encode(0, name, qtype, CLIENT_PAYLOAD_SIZE);
+        query[2] |= (byte) (FLAG_RECURSION_DESIRED >> 8);
+        return query;
+    }
+
+    /**
+     * @param server - a port on this host, or host:port.
+     */
+    private static InetSocketAddress serverAddress(String server) {
+        int colon = server.lastIndexOf(':');
+        if (colon < 0) {
+            return new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(server));
+        }
+        return new InetSocketAddress(server.substring(0, colon), Integer.parseInt(server.substring(colon + 1)));
+    }
+
+    /**
+     * Make distinct names spread over the simulator's zones: a share that does not exist, a
+     * share of CNAMEs, and hosts.
+     */
+    private static String[] names(ZoneSimulator.Settings settings, int count, double nx, double alias) {
+        Random random = new Random(settings.getSeed());
+        String[] names = new String[count];
+        for (int i = 0; i < count; i++) {
+            double kind = random.nextDouble();
+            String host = kind < nx ? "nx" + i : kind < nx + alias ? "alias" + i : "host" + i;
+            names[i] = host + ".zone" + random.nextInt(settings.getZones()) + ".tld"
+                    + random.nextInt(settings.getTlds());
+        }
+        return names;
+    }
+
+    /**
+     * @return the cumulative probability of picking each rank, where rank k is picked in
+     * proportion to 1 / (k + 1)^skew.
+     */
+    private static double[] zipf(int count, double skew) {
+        double[] cumulative = new double[count];
+        double total = 0;
+        for (int k = 0; k < count; k++) {
+            total += 1 / Math.pow(k + 1, skew);
+            cumulative[k] = total;
+        }
+        for (int k = 0; k < count; k++) {
+            cumulative[k] /= total;
+        }
+        return cumulative;
+    }
+}
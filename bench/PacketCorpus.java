@@ -0,0 +1,54 @@
+
+/**
+ * Response packets shaped like ones captured from real servers, for the parser benchmarks.
+ */
+public class PacketCorpus {
+    private static final int MAX_PACKET_SIZE = 4096;
+
+    private PacketCorpus() {
+    }
+
+    /**
+     * An authoritative answer with a single A record.
+     */
+    public static byte[] plainAnswer() throws Exception {
+        return new PacketWriter(MAX_PACKET_SIZE)
+                .header(0x1234, true, 0, "www.cs.ubc.ca", 1)
+                .answer("www.cs.ubc.ca", 1, 300, "142.103.6.5")
+                .toByteArray();
+    }
+
+    /**
+     * A root-style referral: 13 nameservers in one zone with A and AAAA glue for each,
+     * where nearly every name is a compression pointer.
+     */
+    public static byte[] compressedReferral() throws Exception {
+        PacketWriter writer = new PacketWriter(MAX_PACKET_SIZE).header(0x1234, false, 0, "www.cs.ubc.ca", 1);
+        for (char c = 'a'; c <= 'm'; c++) {
+            writer.authority("ca", 2, 172800, c + ".ca-servers.ca");
+        }
+        for (char c = 'a'; c <= 'm'; c++) {
+            writer.additional(c + ".ca-servers.ca", 1, 172800, "199.4.144." + (c - 'a' + 1));
+            writer.additional(c + ".ca-servers.ca", 28, 172800, "2001:500:a7::" + (c - 'a' + 1));
+        }
+        return writer.toByteArray();
+    }
+
+    /**
+     * An answer carrying a large record set plus nameservers and a big additional section.
+     */
+    public static byte[] largeAdditional() throws Exception {
+        PacketWriter writer = new PacketWriter(MAX_PACKET_SIZE).header(0x1234, true, 0, "cdn.example.com", 1);
+        for (int i = 1; i <= 16; i++) {
+            writer.answer("cdn.example.com", 1, 60, "203.0.113." + i);
+        }
+        for (int i = 1; i <= 8; i++) {
+            writer.authority("example.com", 2, 3600, "ns" + i + ".dns.example.net");
+        }
+        for (int i = 1; i <= 8; i++) {
+            writer.additional("ns" + i + ".dns.example.net", 1, 3600, "198.51.100." + i);
+            writer.additional("ns" + i + ".dns.example.net", 28, 3600, "2001:db8:53::" + i);
+        }
+        return writer.toByteArray();
+    }
+}
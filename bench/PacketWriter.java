@@ -0,0 +1,112 @@
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes DNS response packets for the benchmarks, compressing names the way real servers do.
+ */
+public class PacketWriter {
+    private final ByteBuffer buffer;
+    private final Map<String, Integer> suffixOffsets = new HashMap<>();
+    private int answerCount = 0;
+    private int nsCount = 0;
+    private int additionalCount = 0;
+
+    public PacketWriter(int capacity) {
+        buffer = ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * Start a response: header with no records yet, followed by the question.
+     */
+    public PacketWriter header(int id, boolean authoritative, int rCode, String qname, int qtype) {
+        buffer.clear();
+        suffixOffsets.clear();
+        answerCount = 0;
+        nsCount = 0;
+        additionalCount = 0;
+
+        buffer.putShort((short) id);
+        buffer.putShort((short) (0x8000 | (authoritative ? 0x0400 : 0) | rCode));
+        buffer.putShort((short) 1);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0);
+        name(qname);
+        buffer.putShort((short) qtype);
+        buffer.putShort((short) 1);
+        return this;
+    }
+
+    public PacketWriter answer(String owner, int type, int ttl, String value) throws Exception {
+        answerCount++;
+        return record(owner, type, ttl, value);
+    }
+
+    public PacketWriter authority(String owner, int type, int ttl, String value) throws Exception {
+        nsCount++;
+        return record(owner, type, ttl, value);
+    }
+
+    public PacketWriter additional(String owner, int type, int ttl, String value) throws Exception {
+        additionalCount++;
+        return record(owner, type, ttl, value);
+    }
+
+    /**
+     * @return a copy of the finished packet.
+     */
+    public byte[] toByteArray() {
+        buffer.putShort(6, (short) answerCount);
+        buffer.putShort(8, (short) nsCount);
+        buffer.putShort(10, (short) additionalCount);
+        byte[] packet = new byte[buffer.position()];
+        System.arraycopy(buffer.array(), 0, packet, 0, packet.length);
+        return packet;
+    }
+
+    private PacketWriter record(String owner, int type, int ttl, String value) throws Exception {
+        name(owner);
+        buffer.putShort((short) type);
+        buffer.putShort((short) 1);
+        buffer.putInt(ttl);
+        int lengthOffset = buffer.position();
+        buffer.putShort((short) 0);
+
+        if (type == 1 || type == 28) {
+            buffer.put(InetAddress.getByName(value).getAddress());
+        } else if (type == 6) {
+            name(value);
+            name("hostmaster." + owner);
+            buffer.putInt(1).putInt(7200).putInt(900).putInt(86400).putInt(60);
+        } else {
+            name(value);
+        }
+        buffer.putShort(lengthOffset, (short) (buffer.position() - lengthOffset - 2));
+        return this;
+    }
+
+    private void name(String name) {
+        String rest = name.endsWith(".") ? name.substring(0, name.length() - 1) : name;
+        while (!rest.isEmpty()) {
+            Integer offset = suffixOffsets.get(rest.toLowerCase());
+            if (offset != null) {
+                buffer.putShort((short) (0xC000 | offset));
+                return;
+            }
+            if (buffer.position() < 0x3FFF) {
+                suffixOffsets.put(rest.toLowerCase(), buffer.position());
+            }
+            int dot = rest.indexOf('.');
+            String label = dot < 0 ? rest : rest.substring(0, dot);
+            buffer.put((byte) label.length());
+            for (int i = 0; i < label.length(); i++) {
+                buffer.put((byte) label.charAt(i));
+            }
+            rest = dot < 0 ? "" : rest.substring(dot + 1);
+        }
+        buffer.put((byte) 0);
+    }
+}
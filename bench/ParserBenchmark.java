@@ -0,0 +1,74 @@
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Cost of turning a response packet into records, over the packet corpus.
+ * Run with -prof gc to see allocation per parse.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+    @Param({"plain", "referral", "large"})
+    public String packet;
+
+    private byte[] data;
+    private final DNSMessage message = new DNSMessage();
+
+    @Setup
+    public void setUp() throws Exception {
+        if (packet.equals("plain")) {
+            data = PacketCorpus.plainAnswer();
+        } else if (packet.equals("referral")) {
+            data = PacketCorpus.compressedReferral();
+        } else {
+            data = PacketCorpus.largeAdditional();
+        }
+    }
+
+    /**
+     * Full decode into ResponseRecords, as the resolver does for a matched response.
+     */
+    @Benchmark
+    public DNSResponse decodeResponse() throws Exception {
+        DNSResponse response = new DNSResponse(data, data.length);
+        response.decodeRecords();
+        return response;
+    }
+
+    /**
+     * Header only, as for a stray packet that fails the query id check.
+     */
+    @Benchmark
+    public int readHeader() throws Exception {
+        return new DNSResponse(data, data.length).getQueryID();
+    }
+
+    /**
+     * Walk every record with the flyweight without materialising anything.
+     */
+    @Benchmark
+    public void walkRecords(Blackhole blackhole) throws Exception {
+        message.wrap(data, data.length);
+        while (message.nextRecord()) {
+            blackhole.consume(message.getRecordType());
+            blackhole.consume(message.nameEquals(message.getRecordNameOffset(), "www.cs.ubc.ca"));
+        }
+    }
+}
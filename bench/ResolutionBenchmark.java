@@ -0,0 +1,70 @@
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end iterative resolution against {@link FakeNameServer} on loopback.
+ * "cold" walks root, TLD and authoritative server every time; "delegated" starts at the
+ * cached zone cut; "cached" is served from the answer cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResolutionBenchmark {
+    private FakeNameServer server;
+    private Resolver resolver;
+    private int counter = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        server = new FakeNameServer();
+        resolver = new Resolver(server.getRootAddress(), server.getPort());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        resolver.close();
+        server.close();
+    }
+
+    @Benchmark
+    public ResolveResult cold() {
+        resolver.getAnswerCache().clear();
+        resolver.getDelegationCache().clear();
+        return resolve("www.example.test");
+    }
+
+    @Benchmark
+    public ResolveResult delegated() {
+        // a fresh name each time misses the answer cache but reuses the zone cut
+        return resolve("host" + (counter++) + ".example.test");
+    }
+
+    @Benchmark
+    public ResolveResult cached() {
+        return resolve("www.example.test");
+    }
+
+    private ResolveResult resolve(String name) {
+        ResolveResult result = resolver.resolve(name, 1);
+        if (!result.isSuccess()) {
+            throw new IllegalStateException(name + " failed: " + result.getStatus());
+        }
+        return result;
+    }
+}
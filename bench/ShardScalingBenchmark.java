@@ -0,0 +1,98 @@
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Lookup throughput as the resolver is split into more shards, with one caller thread per
+ * core; the scores across the shards parameter are the scaling curve. Each caller keeps a
+ * batch of lookups in flight. "cached" looks up names already in the answer cache, so it
+ * measures only the event loops and the cache. "delegated" looks up a fresh name each time,
+ * one query to the authoritative server; its curve flattens once the single-threaded
+ * {@link FakeNameServer} is saturated.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(Threads.MAX)
+@Fork(1)
+public class ShardScalingBenchmark {
+    private static final int NAMES = 4096;
+    private static final int BATCH = 64;
+
+    @Param({"1", "2", "4", "8", "16"})
+    public int shards;
+
+    private FakeNameServer server;
+    private Resolver resolver;
+    private final String[] names = new String[NAMES];
+
+    /**
+     * Where a caller thread is in the name list, and its fresh names.
+     */
+    @State(Scope.Thread)
+    public static class Caller {
+        private static final AtomicInteger CALLERS = new AtomicInteger();
+        private final int id = CALLERS.getAndIncrement();
+        private int next = 0;
+        private long fresh = 0;
+        private final CompletableFuture<?>[] batch = new CompletableFuture<?>[BATCH];
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        server = new FakeNameServer();
+        resolver = new Resolver(server.getRootAddress(), server.getPort(), shards);
+        CompletableFuture<?>[] warmUp = new CompletableFuture<?>[NAMES];
+        for (int i = 0; i < NAMES; i++) {
+            names[i] = "host" + i + ".example" + (i % 16) + ".test";
+            warmUp[i] = resolver.resolveAsync(names[i], 1);
+        }
+        CompletableFuture.allOf(warmUp).join();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        resolver.close();
+        server.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void cached(Caller caller) {
+        for (int i = 0; i < BATCH; i++) {
+            caller.batch[i] = resolver.resolveAsync(names[caller.next], 1);
+            caller.next = (caller.next + 1) % NAMES;
+        }
+        CompletableFuture.allOf(caller.batch).join();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void delegated(Caller caller) {
+        for (int i = 0; i < BATCH; i++) {
+            // a fresh name misses the answer cache but reuses the zone cut
+            String name = "fresh" + caller.id + "-" + (caller.fresh++) + ".example" + (i % 16) + ".test";
+            caller.batch[i] = resolver.resolveAsync(name, 1);
+        }
+        CompletableFuture.allOf(caller.batch).join();
+    }
+}
@@ -0,0 +1,691 @@
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A synthetic DNS hierarchy on loopback, for load tests without the real root servers.
+ * 127.0.0.1 plays the root and refers tld0, tld1, ... to 127.0.1.1, 127.0.1.2, ...; each
+ * TLD refers zone0.tldN, zone1.tldN, ... to two of a pool of authoritative servers at
+ * 127.0.2.1, 127.0.2.2, .... As with com and gtld-servers.net, every TLD server is named
+ * under tld0 (tldN.nic.tld0), and the root sends its address as glue. In a zone, a name
+ * whose first label below the zone starts with "nx" does not exist, aliasN.zone is a CNAME
+ * for www.zone, extN.zone is a CNAME for www of the next zone, sent with a forged address
+ * the zone cannot speak for, old.zone is a DNAME for the zone, srvN.zone is the address of
+ * the Nth server of the pool, and every other name has an A and a AAAA record derived from
+ * it. Every server listens on the same port, over UDP and TCP.
+ *
+ * A share of zones, never zone0 of a TLD, is delegated out of zone: their nameservers are
+ * named srvN.zone0 of the next TLD, and come without glue, so a resolver has to look them
+ * up before it can ask the zone.
+ *
+ * The servers misbehave as the {@link Settings} say: each response is delayed by a latency
+ * plus random jitter, a share of UDP queries is dropped, a share of UDP responses is
+ * truncated (the full answer is served over TCP), for a share of zones the first listed
+ * server is lame and refuses them, the first servers of the pool can be down, never
+ * answering over UDP, and a share of all servers predates EDNS and answers FORMERR to
+ * queries with an OPT record. Random choices come from a seeded generator, so a run can
+ * be repeated.
+ *
+ * Run on its own it serves until stopped, e.g. with port=53 for
+ * {@code java DNSlookup 127.0.0.1 www.zone0.tld0}.
+ */
+public class ZoneSimulator implements Closeable {
+    private static final String ROOT_ADDRESS = "127.0.0.1";
+    private static final String TLD_NETWORK = "127.0.1.";
+    private static final String SERVER_NETWORK = "127.0.2.";
+    private static final int MAX_PACKET_SIZE = 512;
+    private static final String FORGED_ADDRESS = "192.0.2.66";
+    private static final int RCODE_FORMAT_ERROR = 1;
+    private static final int RCODE_NAME_ERROR = 3;
+    private static final int RCODE_REFUSED = 5;
+
+    /**
+     * The shape of the hierarchy and how its servers misbehave. Each setting is given as
+     * key=value: tlds, zones (per TLD), servers (authoritative), ttl (seconds), latency and
+     * jitter (milliseconds), loss, truncate, lame, outofzone and noedns (shares from 0 to 1), down
+     * (authoritative servers that never answer, from the first), seed and port.
+     */
+    public static class Settings {
+        private int tlds = 4;
+        private int zones = 250;
+        private int servers = 8;
+        private int ttl = 300;
+        private double latency = 0;
+        private double jitter = 0;
+        private double loss = 0;
+        private double truncate = 0;
+        private double lame = 0;
+        private double outOfZone = 0;
+        private int down = 0;
+        private double noEdns = 0;
+        private long seed = 1;
+        private int port = 0;
+
+        /**
+         * Apply settings. An argument @file applies the lines of a file as arguments,
+         * skipping blank lines and lines starting with '#'.
+         *
+         * @param args - settings as key=value, or @file.
+         * @return the key=value arguments with keys that are not simulator settings, in order,
+         * for the caller to interpret.
+         * @throws IOException              if a file cannot be read.
+         * @throws IllegalArgumentException if an argument is not key=value or a value is out of range.
+         */
+        public List<String> apply(String... args) throws IOException {
+            List<String> others = new ArrayList<>();
+            for (String arg : args) {
+                if (arg.startsWith("@")) {
+                    List<String> lines = new ArrayList<>();
+                    for (String line : Files.readAllLines(Paths.get(arg.substring(1)))) {
+                        line = line.trim();
+                        if (!line.isEmpty() && !line.startsWith("#")) {
+                            lines.add(line);
+                        }
+                    }
+                    others.addAll(apply(lines.toArray(new String[0])));
+                } else if (!set(arg)) {
+                    others.add(arg);
+                }
+            }
+            return others;
+        }
+
+        private boolean set(String setting) {
+            int equals = setting.indexOf('=');
+            if (equals <= 0) {
+                throw new IllegalArgumentException("not key=value: " + setting);
+            }
+            String key = setting.substring(0, equals).trim();
+            String value = setting.substring(equals + 1).trim();
+            switch (key) {
+                case "tlds":
+                    tlds = (int) range(key, Integer.parseInt(value), 1, 254);
+                    break;
+                case "zones":
+                    zones = (int) range(key, Integer.parseInt(value), 1, Integer.MAX_VALUE);
+                    break;
+                case "servers":
+                    servers = (int) range(key, Integer.parseInt(value), 1, 254);
+                    break;
+                case "ttl":
+                    ttl = (int) range(key, Integer.parseInt(value), 0, Integer.MAX_VALUE);
+                    break;
+                case "latency":
+                    latency = range(key, Double.parseDouble(value), 0, Double.MAX_VALUE);
+                    break;
+                case "jitter":
+                    jitter = range(key, Double.parseDouble(value), 0, Double.MAX_VALUE);
+                    break;
+                case "loss":
+                    loss = range(key, Double.parseDouble(value), 0, 1);
+                    break;
+                case "truncate":
+                    truncate = range(key, Double.parseDouble(value), 0, 1);
+                    break;
+                case "lame":
+                    lame = range(key, Double.parseDouble(value), 0, 1);
+                    break;
+                case "outofzone":
+                    outOfZone = range(key, Double.parseDouble(value), 0, 1);
+                    break;
+                case "noedns":
+                    noEdns = range(key, Double.parseDouble(value), 0, 1);
+                    break;
+                case "down":
+                    down = (int) range(key, Integer.parseInt(value), 0, 254);
+                    break;
+                case "seed":
+                    seed = Long.parseLong(value);
+                    break;
+                case "port":
+                    port = (int) range(key, Integer.parseInt(value), 0, 65535);
+                    break;
+                default:
+                    return false;
+            }
+            return true;
+        }
+
+        private static double range(String key, double value, double min, double max) {
+            if (value < min || value > max) {
+                throw new IllegalArgumentException(key + " must be from " + min + " to " + max + ": " + value);
+            }
+            return value;
+        }
+
+        public int getTlds() {
+            return tlds;
+        }
+
+        public int getZones() {
+            return zones;
+        }
+
+        public long getSeed() {
+            return seed;
+        }
+
+        @Override
+        public String toString() {
+            return "tlds=" + tlds + " zones=" + zones + " servers=" + servers + " ttl=" + ttl + " latency=" + latency
+                    + " jitter=" + jitter + " loss=" + loss + " truncate=" + truncate + " lame=" + lame
+                    + " outofzone=" + outOfZone + " noedns=" + noEdns + " down=" + down
+                    + " seed=" + seed;
+        }
+    }
+
+    /**
+     * A UDP response waiting out its latency.
+     */
+    private static class DelayedResponse {
+        final DatagramChannel channel;
+        final SocketAddress client;
+        final byte[] response;
+        final long due;
+
+        DelayedResponse(DatagramChannel channel, SocketAddress client, byte[] response, long due) {
+            this.channel = channel;
+            this.client = client;
+            this.response = response;
+            this.due = due;
+        }
+    }
+
+    private final Settings settings;
+    private final String[] addresses;
+    private final DatagramChannel[] udpChannels;
+    private final ServerSocketChannel[] tcpChannels;
+    private final BitSet lameZones;
+    private final BitSet outOfZoneZones;
+    private final BitSet noEdnsServers;
+    private final Selector selector;
+    private final Random random;
+    private final PriorityQueue<DelayedResponse> delayed =
+            new PriorityQueue<>((a, b) -> Long.compare(a.due, b.due));
+    private final ExecutorService tcpThreads = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "zone-simulator-tcp");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Thread thread;
+    private final int port;
+    private final AtomicLong queryCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong truncatedCount = new AtomicLong();
+    private final AtomicLong refusedCount = new AtomicLong();
+    private final AtomicLong tcpQueryCount = new AtomicLong();
+    private volatile boolean running = true;
+
+    public ZoneSimulator(Settings settings) throws IOException {
+        this.settings = settings;
+        random = new Random(settings.seed);
+        addresses = new String[1 + settings.tlds + settings.servers];
+        addresses[0] = ROOT_ADDRESS;
+        for (int i = 0; i < settings.tlds; i++) {
+            addresses[1 + i] = TLD_NETWORK + (i + 1);
+        }
+        for (int i = 0; i < settings.servers; i++) {
+            addresses[1 + settings.tlds + i] = SERVER_NETWORK + (i + 1);
+        }
+        udpChannels = new DatagramChannel[addresses.length];
+        tcpChannels = new ServerSocketChannel[addresses.length];
+
+        // a lame first server needs a second one to fall back to
+        lameZones = new BitSet(settings.tlds * settings.zones);
+        Random lameChoice = new Random(settings.seed);
+        for (int i = 0; settings.servers > 1 && i < settings.tlds * settings.zones; i++) {
+            lameZones.set(i, lameChoice.nextDouble() < settings.lame);
+        }
+        // zone0 of each TLD holds the names of the out of zone servers, so it is never one of them
+        outOfZoneZones = new BitSet(settings.tlds * settings.zones);
+        Random outOfZoneChoice = new Random(settings.seed + 1);
+        for (int i = 0; i < settings.tlds * settings.zones; i++) {
+            outOfZoneZones.set(i, i % settings.zones != 0 && outOfZoneChoice.nextDouble() < settings.outOfZone);
+        }
+        noEdnsServers = new BitSet(addresses.length);
+        Random noEdnsChoice = new Random(settings.seed + 2);
+        for (int i = 0; i < addresses.length; i++) {
+            noEdnsServers.set(i, noEdnsChoice.nextDouble() < settings.noEdns);
+        }
+
+        selector = Selector.open();
+        port = bindAll();
+        thread = new Thread(this::serve, "zone-simulator");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public InetAddress getRootAddress() throws IOException {
+        return InetAddress.getByName(ROOT_ADDRESS);
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * @return the number of queries received by all servers, over UDP and TCP.
+     */
+    public long getQueryCount() {
+        return queryCount.get();
+    }
+
+    /**
+     * @return the number of UDP queries dropped as lost or sent to a server that is down.
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public long getTruncatedCount() {
+        return truncatedCount.get();
+    }
+
+    /**
+     * @return the number of queries refused by lame servers or servers asked about zones they do not serve.
+     */
+    public long getRefusedCount() {
+        return refusedCount.get();
+    }
+
+    public long getTcpQueryCount() {
+        return tcpQueryCount.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        tcpThreads.shutdownNow();
+        for (int i = 0; i < addresses.length; i++) {
+            udpChannels[i].close();
+            tcpChannels[i].close();
+        }
+        selector.close();
+    }
+
+    /**
+     * Bind every server to the same port over UDP and TCP, trying again if another process
+     * holds it on one of the addresses.
+     */
+    private int bindAll() throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            int boundPort = settings.port;
+            try {
+                for (int i = 0; i < addresses.length; i++) {
+                    udpChannels[i] = DatagramChannel.open();
+                    udpChannels[i].bind(new InetSocketAddress(addresses[i], boundPort));
+                    boundPort = ((InetSocketAddress) udpChannels[i].getLocalAddress()).getPort();
+                    tcpChannels[i] = ServerSocketChannel.open();
+                    tcpChannels[i].bind(new InetSocketAddress(addresses[i], boundPort));
+                }
+                for (int i = 0; i < addresses.length; i++) {
+                    udpChannels[i].configureBlocking(false);
+                    udpChannels[i].register(selector, SelectionKey.OP_READ, i);
+                    tcpChannels[i].configureBlocking(false);
+                    tcpChannels[i].register(selector, SelectionKey.OP_ACCEPT, i);
+                }
+                return boundPort;
+            } catch (IOException e) {
+                for (int i = 0; i < addresses.length; i++) {
+                    if (udpChannels[i] != null) {
+                        udpChannels[i].close();
+                    }
+                    if (tcpChannels[i] != null) {
+                        tcpChannels[i].close();
+                    }
+                }
+                if (attempt == 10 || settings.port != 0) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private void serve() {
+        ByteBuffer request = ByteBuffer.allocate(MAX_PACKET_SIZE);
+        PacketWriter writer = new PacketWriter(MAX_PACKET_SIZE);
+        DNSMessage query = new DNSMessage();
+
+        while (running) {
+            try {
+                DelayedResponse next = delayed.peek();
+                if (next == null) {
+                    selector.select();
+                } else {
+                    long wait = (next.due - System.nanoTime()) / 1000000;
+                    if (wait > 0) {
+                        selector.select(wait);
+                    } else {
+                        selector.selectNow();
+                    }
+                }
+                for (SelectionKey key : selector.selectedKeys()) {
+                    final int server = (Integer) key.attachment();
+                    if (key.isAcceptable()) {
+                        final SocketChannel connection = ((ServerSocketChannel) key.channel()).accept();
+                        if (connection != null) {
+                            tcpThreads.execute(() -> serveTcp(server, connection));
+                        }
+                        continue;
+                    }
+                    DatagramChannel channel = (DatagramChannel) key.channel();
+                    SocketAddress client;
+                    while ((client = channel.receive(request)) != null) {
+                        request.flip();
+                        queryCount.incrementAndGet();
+                        try {
+                            if (server > settings.tlds && server <= settings.tlds + settings.down
+                                    || random.nextDouble() < settings.loss) {
+                                droppedCount.incrementAndGet();
+                            } else {
+                                query.wrap(request.array(), request.limit());
+                                byte[] response = random.nextDouble() < settings.truncate
+                                        ? truncated(query, writer) : respond(server, query, writer);
+                                reply(channel, client, response, delay(random));
+                            }
+                        } catch (Exception e) {
+                            // a malformed query: ignore it
+                        }
+                        request.clear();
+                    }
+                }
+                selector.selectedKeys().clear();
+
+                long now = System.nanoTime();
+                while (!delayed.isEmpty() && delayed.peek().due - now <= 0) {
+                    DelayedResponse due = delayed.poll();
+                    due.channel.send(ByteBuffer.wrap(due.response), due.client);
+                }
+            } catch (IOException e) {
+                // drop the packet, keep serving
+            }
+        }
+    }
+
+    private void reply(DatagramChannel channel, SocketAddress client, byte[] response, long delay)
+            throws IOException {
+        if (delay == 0) {
+            channel.send(ByteBuffer.wrap(response), client);
+        } else {
+            delayed.add(new DelayedResponse(channel, client, response, System.nanoTime() + delay));
+        }
+    }
+
+    /**
+     * @return how long to hold a response back, in nanoseconds.
+     */
+    private long delay(Random random) {
+        double millis = settings.latency + (settings.jitter > 0 ? random.nextDouble() * settings.jitter : 0);
+        return (long) (millis * 1000000);
+    }
+
+    /**
+     * Answer length-prefixed queries on a TCP connection until the client closes it.
+     */
+    private void serveTcp(int server, SocketChannel connection) {
+        PacketWriter writer = new PacketWriter(MAX_PACKET_SIZE);
+        DNSMessage query = new DNSMessage();
+        Random jitter = new Random(settings.seed + tcpQueryCount.get());
+        ByteBuffer length = ByteBuffer.allocate(2);
+        try {
+            connection.configureBlocking(true);
+            while (running) {
+                length.clear();
+                if (!readFully(connection, length)) {
+                    break;
+                }
+                ByteBuffer request = ByteBuffer.allocate(length.getShort(0) & 0xFFFF);
+                if (!readFully(connection, request)) {
+                    break;
+                }
+                queryCount.incrementAndGet();
+                tcpQueryCount.incrementAndGet();
+                query.wrap(request.array(), request.limit());
+                byte[] response = respond(server, query, writer);
+                long delay = delay(jitter);
+                if (delay > 0) {
+                    Thread.sleep(delay / 1000000, (int) (delay % 1000000));
+                }
+                ByteBuffer framed = ByteBuffer.allocate(2 + response.length);
+                framed.putShort((short) response.length).put(response).flip();
+                while (framed.hasRemaining()) {
+                    connection.write(framed);
+                }
+            }
+        } catch (Exception e) {
+            // the connection is closed below
+        } finally {
+            try {
+                connection.close();
+            } catch (IOException e) {
+                // already gone
+            }
+        }
+    }
+
+    private static boolean readFully(SocketChannel connection, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (connection.read(buffer) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A response with no records and TC set, telling the client to ask again over TCP.
+     */
+    private byte[] truncated(DNSMessage query, PacketWriter writer) throws Exception {
+        truncatedCount.incrementAndGet();
+        byte[] response = writer.header(query.getId(), false, 0, query.getQuestionName(), query.getQuestionType())
+                .toByteArray();
+        response[2] |= 0x02;
+        return response;
+    }
+
+    /**
+     * Build the response one server gives to a query.
+     *
+     * @param server - the index of the server: 0 for the root, then the TLDs, then the authoritative pool.
+     */
+    private byte[] respond(int server, DNSMessage query, PacketWriter writer) throws Exception {
+        String qname = query.getQuestionName().toLowerCase();
+        int qtype = query.getQuestionType();
+        int id = query.getId();
+        int ttl = settings.ttl;
+        if (noEdnsServers.get(server) && query.getAdditionalCount() > 0) {
+            return writer.header(id, false, RCODE_FORMAT_ERROR, qname, qtype).toByteArray();
+        }
+        String[] labels = qname.isEmpty() ? new String[0] : qname.split("\\.");
+        int tld = labels.length == 0 ? -1 : index(labels[labels.length - 1], "tld", settings.tlds);
+
+        if (server == 0) {
+            if (labels.length == 0) {
+                return writer.header(id, true, 0, qname, qtype).authority("", 6, ttl, "root.sim").toByteArray();
+            }
+            if (tld < 0) {
+                return writer.header(id, true, RCODE_NAME_ERROR, qname, qtype)
+                        .authority("", 6, ttl, "root.sim").toByteArray();
+            }
+            String tldName = "tld" + tld;
+            return writer.header(id, false, 0, qname, qtype)
+                    .authority(tldName, 2, 172800, tldServerName(tld))
+                    .additional(tldServerName(tld), 1, 172800, addresses[1 + tld])
+                    .toByteArray();
+        }
+
+        if (server <= settings.tlds) {
+            if (tld != server - 1) {
+                return refused(id, qname, qtype, writer);
+            }
+            String tldName = "tld" + tld;
+            String soa = tldServerName(tld);
+            if (labels.length == 1) {
+                return writer.header(id, true, 0, qname, qtype).authority(tldName, 6, ttl, soa).toByteArray();
+            }
+            int named = labels.length == 3 && tld == 0 && labels[1].equals("nic")
+                    ? index(labels[0], "tld", settings.tlds) : -1;
+            if (named >= 0) {
+                writer.header(id, true, 0, qname, qtype);
+                return (qtype == 1 ? writer.answer(qname, 1, 172800, addresses[1 + named])
+                        : writer.authority(tldName, 6, ttl, soa)).toByteArray();
+            }
+            int zone = index(labels[labels.length - 2], "zone", settings.zones);
+            if (zone < 0) {
+                return writer.header(id, true, RCODE_NAME_ERROR, qname, qtype)
+                        .authority(tldName, 6, ttl, soa).toByteArray();
+            }
+            String zoneName = "zone" + zone + "." + tldName;
+            int global = tld * settings.zones + zone;
+            if (outOfZoneZones.get(global)) {
+                String host = ".zone0.tld" + (tld + 1) % settings.tlds;
+                return writer.header(id, false, 0, qname, qtype)
+                        .authority(zoneName, 2, 86400, "srv" + (serverFor(global, 0) - 1 - settings.tlds) + host)
+                        .authority(zoneName, 2, 86400, "srv" + (serverFor(global, 1) - 1 - settings.tlds) + host)
+                        .toByteArray();
+            }
+            return writer.header(id, false, 0, qname, qtype)
+                    .authority(zoneName, 2, 86400, "ns1." + zoneName)
+                    .authority(zoneName, 2, 86400, "ns2." + zoneName)
+                    .additional("ns1." + zoneName, 1, 86400, addresses[serverFor(global, 0)])
+                    .additional("ns2." + zoneName, 1, 86400, addresses[serverFor(global, 1)])
+                    .toByteArray();
+        }
+
+        int zone = labels.length < 2 ? -1 : index(labels[labels.length - 2], "zone", settings.zones);
+        if (tld < 0 || zone < 0) {
+            return refused(id, qname, qtype, writer);
+        }
+        int global = tld * settings.zones + zone;
+        boolean first = server == serverFor(global, 0);
+        if (!first && server != serverFor(global, 1) || first && lameZones.get(global)) {
+            return refused(id, qname, qtype, writer);
+        }
+
+        String zoneName = "zone" + zone + ".tld" + tld;
+        String host = labels.length > 2 ? labels[labels.length - 3] : "";
+        if (host.startsWith("nx")) {
+            return writer.header(id, true, RCODE_NAME_ERROR, qname, qtype)
+                    .authority(zoneName, 6, ttl, "ns1." + zoneName).toByteArray();
+        }
+        writer.header(id, true, 0, qname, qtype);
+        int pooled = labels.length == 3 ? index(host, "srv", settings.servers) : -1;
+        if (pooled >= 0) {
+            return (qtype == 1 ? writer.answer(qname, 1, ttl, addresses[1 + settings.tlds + pooled])
+                    : writer.authority(zoneName, 6, ttl, "ns1." + zoneName)).toByteArray();
+        }
+        String owner = qname;
+        if (labels.length == 3 && host.startsWith("ext")) {
+            String target = "www.zone" + (zone + 1) % settings.zones + ".tld" + tld;
+            writer.answer(qname, 5, ttl, target);
+            return (qtype == 1 ? writer.answer(target, 1, ttl, FORGED_ADDRESS) : writer).toByteArray();
+        }
+        if (labels.length > 3 && host.equals("old")) {
+            String dname = "old." + zoneName;
+            owner = qname.substring(0, qname.length() - dname.length()) + zoneName;
+            writer.answer(dname, 39, ttl, zoneName);
+        } else if (labels.length == 3 && host.startsWith("alias")) {
+            owner = "www." + zoneName;
+            writer.answer(qname, 5, ttl, owner);
+            if (qtype == 5) {
+                return writer.toByteArray();
+            }
+        }
+        int hash = owner.hashCode();
+        if (qtype == 1) {
+            writer.answer(owner, 1, ttl, "10." + ((hash >> 16) & 0xFF) + "." + ((hash >> 8) & 0xFF) + "."
+                    + (hash & 0xFF));
+        } else if (qtype == 28) {
+            writer.answer(owner, 28, ttl, "2001:db8::" + Integer.toHexString(hash & 0xFFFF));
+        } else {
+            writer.authority(zoneName, 6, ttl, "ns1." + zoneName);
+        }
+        return writer.toByteArray();
+    }
+
+    private byte[] refused(int id, String qname, int qtype, PacketWriter writer) {
+        refusedCount.incrementAndGet();
+        return writer.header(id, false, RCODE_REFUSED, qname, qtype).toByteArray();
+    }
+
+    /**
+     * @return the name of a TLD's server, which is under tld0 whatever the TLD.
+     */
+    private static String tldServerName(int tld) {
+        return "tld" + tld + ".nic.tld0";
+    }
+
+    /**
+     * @param nameserver - 0 for ns1 of the zone, 1 for ns2.
+     * @return the index of the server a zone's nameserver is on.
+     */
+    private int serverFor(int zone, int nameserver) {
+        return 1 + settings.tlds + (zone + nameserver) % settings.servers;
+    }
+
+    /**
+     * @return n if the label is prefix followed by n, with n below count; otherwise -1.
+     */
+    private static int index(String label, String prefix, int count) {
+        if (!label.startsWith(prefix) || label.length() == prefix.length() || label.length() > prefix.length() + 9) {
+            return -1;
+        }
+        for (int i = prefix.length(); i < label.length(); i++) {
+            if (!Character.isDigit(label.charAt(i))) {
+                return -1;
+            }
+        }
+        int n = Integer.parseInt(label.substring(prefix.length()));
+        return n < count ? n : -1;
+    }
+
+    /**
+     * Serve until stopped.
+     *
+     * @param args - settings as key=value or @file; see {@link Settings}.
+     */
+    public static void main(String[] args) throws Exception {
+        Settings settings = new Settings();
+        List<String> others;
+        try {
+            others = settings.apply(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+        if (!others.isEmpty()) {
+            System.err.println("Unknown settings " + others);
+            System.err.println("Usage: java ZoneSimulator [key=value|@file]... with keys tlds, zones, servers, ttl,"
+                    + " latency, jitter, loss, truncate, lame, outofzone, noedns, down, seed, port");
+            return;
+        }
+        ZoneSimulator simulator = new ZoneSimulator(settings);
+        System.err.println("Root " + ROOT_ADDRESS + " port " + simulator.getPort() + ": " + settings);
+        simulator.thread.join();
+    }
+}
@@ -0,0 +1,68 @@
+
+import java.util.List;
+
+/**
+ * Alias chains through {@link ZoneSimulator}: a CNAME answered with its target in one
+ * response, a DNAME followed by the CNAME synthesised from it, and a CNAME into another
+ * zone sent with a forged address for the target, which is looked up instead of trusted.
+ * A chain whose target is cached is answered with one query.
+ */
+public class AliasChainTest {
+    private static final String FORGED_ADDRESS = "192.0.2.66";
+
+    public static void main(String[] args) throws Exception {
+        ZoneSimulator.Settings settings = new ZoneSimulator.Settings();
+        settings.apply("tlds=1", "zones=4", "servers=4");
+        try (ZoneSimulator simulator = new ZoneSimulator(settings);
+             Resolver resolver = new Resolver(simulator.getRootAddress(), simulator.getPort())) {
+            cnameInOneResponse(resolver);
+            dnameRewritesTheName(resolver);
+            cnameOutOfBailiwick(resolver);
+        }
+        System.out.println("AliasChainTest passed");
+    }
+
+    private static void cnameInOneResponse(Resolver resolver) {
+        ResolveResult result = resolver.resolve("alias1.zone1.tld0", 1);
+        Check.isTrue(result.isSuccess(), "alias resolved: " + result.getStatus());
+        Check.equal(3, result.getQueryCount(), "target taken from the same response");
+        List<ResponseRecord> records = result.getAnswers();
+        Check.equal(2, records.size(), "CNAME and address");
+        Check.equal(5, records.get(0).getType(), "chain starts with the CNAME");
+        Check.equal("www.zone1.tld0", records.get(0).getValue(), "CNAME target");
+        Check.equal(address(resolver, "www.zone1.tld0"), records.get(1).getValue(), "address of the target");
+    }
+
+    private static void dnameRewritesTheName(Resolver resolver) {
+        ResolveResult result = resolver.resolve("mail.old.zone3.tld0", 1);
+        Check.isTrue(result.isSuccess(), "name under a DNAME resolved: " + result.getStatus());
+        Check.equal(2, result.getQueryCount(), "TLD and zone, target taken from the same response");
+        List<ResponseRecord> records = result.getAnswers();
+        Check.equal(3, records.size(), "DNAME, synthesised CNAME and address");
+        Check.equal(39, records.get(0).getType(), "chain starts with the DNAME");
+        Check.equal(5, records.get(1).getType(), "then the CNAME synthesised from it");
+        Check.equal("mail.zone3.tld0", records.get(1).getValue(), "name rewritten under the DNAME target");
+        Check.equal(address(resolver, "mail.zone3.tld0"), records.get(2).getValue(), "address of the target");
+    }
+
+    private static void cnameOutOfBailiwick(Resolver resolver) {
+        ResolveResult result = resolver.resolve("ext1.zone1.tld0", 1);
+        Check.isTrue(result.isSuccess(), "alias into another zone resolved: " + result.getStatus());
+        Check.equal(3, result.getQueryCount(), "zone, then the TLD and the target's zone");
+        List<ResponseRecord> records = result.getAnswers();
+        Check.equal(2, records.size(), "CNAME and address");
+        Check.equal("www.zone2.tld0", records.get(0).getValue(), "CNAME target");
+        Check.isTrue(!FORGED_ADDRESS.equals(records.get(1).getValue()), "forged address not taken");
+        Check.isTrue(resolver.getAnswerCache().get("www.zone2.tld0", 1) != null, "target cached");
+        Check.equal(address(resolver, "www.zone2.tld0"), records.get(1).getValue(), "address from the target's zone");
+
+        ResolveResult sibling = resolver.resolve("ext2.zone1.tld0", 1);
+        Check.isTrue(sibling.isSuccess(), "second alias of the same target: " + sibling.getStatus());
+        Check.equal(1, sibling.getQueryCount(), "the zone asked, the target's address cached");
+        Check.equal(records.get(1).getValue(), sibling.getAnswers().get(1).getValue(), "same target address");
+    }
+
+    private static String address(Resolver resolver, String name) {
+        return resolver.resolve(name, 1).getRecords().get(0).getValue();
+    }
+}
@@ -0,0 +1,112 @@
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Round trips through {@link AnswerCache}: entries put then read back decoded and copied
+ * into packets, negative entries, and eviction once the cache is full. Each runs on a
+ * cache of one stripe and of several.
+ */
+public class AnswerCacheTest {
+    public static void main(String[] args) throws Exception {
+        for (int stripes : new int[]{1, 4}) {
+            putThenGet(stripes);
+            putThenCopyAnswers(stripes);
+            negativeEntries(stripes);
+            evictsWhenFull(stripes);
+        }
+        System.out.println("AnswerCacheTest passed");
+    }
+
+    private static void putThenGet(int stripes) {
+        AnswerCache cache = new AnswerCache(stripes, 100, AnswerCache.DEFAULT_MAX_BYTES);
+        List<ResponseRecord> answers = new ArrayList<>();
+        answers.add(address("www.example.com", 300, 0x5DB8D822));
+        answers.add(address("www.example.com", 120, 0x5DB8D823));
+        cache.putAnswers("www.example.com", 1, answers);
+
+        AnswerCache.Entry entry = cache.get("WWW.Example.com.", 1);
+        Check.isTrue(entry != null, "entry found whatever the case and trailing dot");
+        Check.isTrue(!entry.isNegative(), "positive entry");
+        Check.isTrue(!entry.isStale(), "fresh entry");
+        List<ResponseRecord> cached = entry.getAnswers();
+        Check.equal(2, cached.size(), "cached answers");
+        Check.equal("93.184.216.34", cached.get(0).getValue(), "first address");
+        Check.equal("93.184.216.35", cached.get(1).getValue(), "second address");
+        Check.isTrue(cached.get(0).getTtl() <= 120 && cached.get(0).getTtl() >= 119, "TTL capped at the smallest");
+        Check.equal(null, cache.get("www.example.com", 28), "other type not cached");
+        Check.equal(1, cache.size(), "size");
+        Check.equal(1L, cache.getHitCount(), "hits");
+        Check.equal(1L, cache.getMissCount(), "misses");
+
+        cache.putAnswers("zero.example.com", 1, List.of(address("zero.example.com", 0, 1)));
+        Check.equal(null, cache.get("zero.example.com", 1), "zero TTL answers are not cached");
+    }
+
+    private static void putThenCopyAnswers(int stripes) throws Exception {
+        AnswerCache cache = new AnswerCache(stripes, 100, AnswerCache.DEFAULT_MAX_BYTES);
+        cache.putAnswers("host.example.test", 1, List.of(address("host.example.test", 300, 0x0A000001),
+                address("host.example.test", 300, 0x0A000002)));
+
+        byte[] query = DNSQuery.encode(5, "host.example.test", 1);
+        ByteBuffer packet = ByteBuffer.allocate(512);
+        packet.put(query);
+        int count = cache.copyAnswers("host.example.test", 1, packet);
+        Check.equal(2, count, "records copied");
+        packet.putShort(2, (short) 0x8400);  // a response, authoritative
+        packet.putShort(6, (short) count);
+
+        DNSResponse response = new DNSResponse(packet.array(), packet.position());
+        response.decodeRecords();
+        Check.equal(2, response.getAnswers().size(), "answers in the packet");
+        Check.equal("host.example.test", response.getAnswers().get(1).getName(), "owner, compressed to the question");
+        Check.equal("10.0.0.2", response.getAnswers().get(1).getValue(), "address");
+        Check.equal(AnswerCache.MISS, cache.copyAnswers("other.example.test", 1, packet), "miss");
+    }
+
+    private static void negativeEntries(int stripes) {
+        AnswerCache cache = new AnswerCache(stripes, 100, AnswerCache.DEFAULT_MAX_BYTES);
+        cache.putNegative("empty.example.com", 28, AnswerCache.RCODE_NO_ERROR, 60);
+        AnswerCache.Entry entry = cache.get("empty.example.com", 28);
+        Check.isTrue(entry.isNegative() && !entry.isNameError(), "no data entry");
+        Check.equal(null, cache.get("empty.example.com", 1), "no data is cached for its type only");
+
+        cache.putNegative("gone.example.com", 1, AnswerCache.RCODE_NAME_ERROR, 60);
+        Check.isTrue(cache.get("gone.example.com", 1).isNameError(), "NXDOMAIN entry");
+        Check.equal("gone.example.com", cache.findNameError("a.b.gone.example.com"), "NXDOMAIN covers names below");
+        Check.equal(null, cache.findNameError("example.com"), "NXDOMAIN does not cover ancestors");
+        ByteBuffer packet = ByteBuffer.allocate(512);
+        Check.equal(AnswerCache.NAME_ERROR, cache.copyAnswers("gone.example.com", 1, packet), "copied NXDOMAIN");
+
+        int ttl = cache.getNegativeTtl("empty.example.com", 28);
+        Check.isTrue(ttl >= 59 && ttl <= 60, "negative TTL of a no data entry: " + ttl);
+        ttl = cache.getNegativeTtl("a.b.gone.example.com", 28);
+        Check.isTrue(ttl >= 59 && ttl <= 60, "negative TTL of the NXDOMAIN above: " + ttl);
+        cache.putAnswers("host.example.com", 1, List.of(address("host.example.com", 300, 1)));
+        Check.equal(-1, cache.getNegativeTtl("host.example.com", 1), "no negative TTL for a positive entry");
+        Check.equal(-1, cache.getNegativeTtl("empty.example.com", 1), "nor for a type not cached");
+    }
+
+    private static void evictsWhenFull(int stripes) {
+        int maxEntries = 64;
+        AnswerCache cache = new AnswerCache(stripes, maxEntries, AnswerCache.DEFAULT_MAX_BYTES);
+        for (int i = 0; i < 4 * maxEntries; i++) {
+            String name = "host" + i + ".example.test";
+            cache.putAnswers(name, 1, List.of(address(name, 300, i)));
+        }
+        Check.isTrue(cache.size() <= maxEntries, "size bounded: " + cache.size());
+        Check.isTrue(cache.getEvictionCount() >= 3 * maxEntries, "evictions: " + cache.getEvictionCount());
+
+        String last = "host" + (4 * maxEntries - 1) + ".example.test";
+        Check.isTrue(cache.get(last, 1) != null, "the newest entry survives");
+
+        cache.clear();
+        Check.equal(0, cache.size(), "cleared");
+        Check.equal(null, cache.get(last, 1), "nothing left after clear");
+    }
+
+    private static ResponseRecord address(String name, int ttl, int address) {
+        return new ResponseRecord(DNSName.of(name), 1, 1, ttl, new RData.A(address));
+    }
+}
@@ -0,0 +1,136 @@
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Round trips through {@link CacheSnapshot}: caches saved then loaded into fresh ones,
+ * across stripe counts, a damaged entry dropped while the rest load, and a resolver
+ * warmed against {@link FakeNameServer} whose snapshot lets a new resolver answer without
+ * asking.
+ */
+public class CacheSnapshotTest {
+    public static void main(String[] args) throws Exception {
+        Path file = Files.createTempFile("cache-snapshot-test", ".bin");
+        try {
+            savedEntriesLoadBack(file);
+            damagedEntryDropped(file);
+            resolverStartsWarm(file);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+        System.out.println("CacheSnapshotTest passed");
+    }
+
+    private static void savedEntriesLoadBack(Path file) throws Exception {
+        AnswerCache answers = new AnswerCache(4, 1000, AnswerCache.DEFAULT_MAX_BYTES);
+        for (int i = 0; i < 100; i++) {
+            String name = "host" + i + ".example.test";
+            answers.putAnswers(name, 1, List.of(new ResponseRecord(DNSName.of(name), 1, 1, 300, new RData.A(i))));
+        }
+        answers.putNegative("gone.example.test", 1, AnswerCache.RCODE_NAME_ERROR, 300);
+        DelegationCache delegations = new DelegationCache();
+        delegations.putReferral("test", "www.example.test",
+                List.of(new ResponseRecord(DNSName.of("example.test"), 2, 1, 3600,
+                        new RData.Name(2, DNSName.of("ns1.example.test")))),
+                List.of(new ResponseRecord(DNSName.of("ns1.example.test"), 1, 1, 3600, new RData.A(0x7F000003))));
+        try (CacheSnapshot snapshot = new CacheSnapshot(file, answers, delegations)) {
+            snapshot.save();
+        }
+
+        for (int stripes : new int[]{1, 4, 3}) {
+            AnswerCache restored = new AnswerCache(stripes, 1000, AnswerCache.DEFAULT_MAX_BYTES);
+            DelegationCache restoredDelegations = new DelegationCache();
+            int loaded;
+            try (CacheSnapshot snapshot = new CacheSnapshot(file, restored, restoredDelegations)) {
+                loaded = snapshot.load();
+            }
+            Check.equal(answers.size(), restored.size(), stripes + " stripes: entries restored");
+            Check.isTrue(loaded >= answers.size(), stripes + " stripes: entries counted as loaded");
+            Check.equal("0.0.0.42", restored.get("host42.example.test", 1).getAnswers().get(0).getValue(),
+                    stripes + " stripes: restored answer");
+            Check.equal("gone.example.test", restored.findNameError("x.gone.example.test"),
+                    stripes + " stripes: restored NXDOMAIN");
+            DelegationCache.Delegation cut = restoredDelegations.findClosest("www.example.test");
+            Check.equal("example.test", cut == null ? null : cut.getZone(), stripes + " stripes: restored zone cut");
+            Check.equal("/127.0.0.3", cut.getAddresses().get(0).toString(), stripes + " stripes: restored glue");
+        }
+    }
+
+    private static void damagedEntryDropped(Path file) throws Exception {
+        AnswerCache answers = new AnswerCache(1, 1000, AnswerCache.DEFAULT_MAX_BYTES);
+        for (String name : new String[]{"good.example.test", "damaged.example.test"}) {
+            answers.putAnswers(name, 1, List.of(new ResponseRecord(DNSName.of(name), 1, 1, 300, new RData.A(1))));
+        }
+        try (CacheSnapshot snapshot = new CacheSnapshot(file, answers, new DelegationCache())) {
+            snapshot.save();
+        }
+
+        // shorten the damaged entry's address to three bytes; its block still adds up
+        byte[] data = Files.readAllBytes(file);
+        byte[] owner = "\u0007damaged\u0007example\u0004test\u0000".getBytes(StandardCharsets.ISO_8859_1);
+        int at = indexOf(data, owner);
+        Check.isTrue(at > 0, "owner of the damaged entry found in the snapshot");
+        Check.equal(4, (int) data[at + owner.length + 9], "address length");
+        data[at + owner.length + 9] = 3;
+        Files.write(file, data);
+
+        AnswerCache restored = new AnswerCache(1, 1000, AnswerCache.DEFAULT_MAX_BYTES);
+        try (CacheSnapshot snapshot = new CacheSnapshot(file, restored, new DelegationCache())) {
+            Check.equal(1, snapshot.load(), "only the sound entry restored");
+        }
+        Check.isTrue(restored.get("good.example.test", 1) != null, "sound entry cached");
+        Check.equal(null, restored.get("damaged.example.test", 1), "damaged entry dropped");
+    }
+
+    private static int indexOf(byte[] data, byte[] part) {
+        for (int i = 0; i + part.length <= data.length; i++) {
+            if (Arrays.equals(data, i, i + part.length, part, 0, part.length)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static void resolverStartsWarm(Path file) throws Exception {
+        try (FakeNameServer server = new FakeNameServer()) {
+            AnswerCache answers = new AnswerCache();
+            DelegationCache delegations = new DelegationCache();
+            ResolveResult first;
+            try (Resolver resolver = new Resolver(server.getRootAddress(), server.getPort(), answers, delegations)) {
+                first = resolver.resolve("www.example.test", 1);
+                Check.isTrue(first.isSuccess(), "resolved through the fake hierarchy: " + first.getStatus());
+                Check.isTrue(first.getQueryCount() > 0, "first lookup asked upstream");
+                Check.equal(0, resolver.resolve("www.example.test", 1).getQueryCount(), "second lookup cached");
+                Check.equal(ResolveStatus.NAME_ERROR, resolver.resolve("nx1.example.test", 1).getStatus(),
+                        "NXDOMAIN from the fake");
+            }
+            try (CacheSnapshot snapshot = new CacheSnapshot(file, answers, delegations)) {
+                snapshot.save();
+            }
+
+            long queries = server.getQueryCount();
+            AnswerCache restored = new AnswerCache(2, 1000, AnswerCache.DEFAULT_MAX_BYTES);
+            DelegationCache restoredDelegations = new DelegationCache();
+            try (CacheSnapshot snapshot = new CacheSnapshot(file, restored, restoredDelegations)) {
+                snapshot.load();
+            }
+            try (Resolver resolver = new Resolver(server.getRootAddress(), server.getPort(), restored,
+                    restoredDelegations)) {
+                ResolveResult warm = resolver.resolve("www.example.test", 1);
+                Check.equal(0, warm.getQueryCount(), "answered from the restored cache");
+                Check.equal(first.getRecords().get(0).getValue(), warm.getRecords().get(0).getValue(),
+                        "restored answer matches");
+                Check.equal(ResolveStatus.NAME_ERROR, resolver.resolve("nx1.example.test", 1).getStatus(),
+                        "restored NXDOMAIN");
+
+                ResolveResult delegated = resolver.resolve("other.example.test", 1);
+                Check.isTrue(delegated.isSuccess(), "new name resolved: " + delegated.getStatus());
+                Check.equal(1, delegated.getQueryCount(), "restored zone cut skips the root and TLD");
+            }
+            Check.equal(queries + 1, server.getQueryCount(), "upstream queries after the restore");
+        }
+    }
+}
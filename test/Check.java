@@ -0,0 +1,23 @@
+
+import java.util.Objects;
+
+/**
+ * Assertions for the round-trip tests. A failed check throws, so a test's main exits
+ * non-zero at the first failure.
+ */
+public class Check {
+    private Check() {
+    }
+
+    public static void equal(Object expected, Object actual, String what) {
+        if (!Objects.equals(expected, actual)) {
+            throw new AssertionError(what + ": expected " + expected + " but was " + actual);
+        }
+    }
+
+    public static void isTrue(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError(what);
+        }
+    }
+}
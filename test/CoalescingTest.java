@@ -0,0 +1,69 @@
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Lookups through {@link ZoneSimulator} that share work: identical lookups started together
+ * walk the hierarchy once, and the nameservers of a zone delegated without glue are looked
+ * up side by side, each address ending up in the cached cut.
+ */
+public class CoalescingTest {
+    private static final int LOOKUPS = 20;
+
+    public static void main(String[] args) throws Exception {
+        identicalLookupsWalkOnce();
+        gluelessNameserversResolvedTogether();
+        System.out.println("CoalescingTest passed");
+    }
+
+    private static void identicalLookupsWalkOnce() throws Exception {
+        try (ZoneSimulator simulator = simulator("outofzone=0");
+             Resolver resolver = new Resolver(simulator.getRootAddress(), simulator.getPort())) {
+            List<CompletableFuture<ResolveResult>> futures = new ArrayList<>();
+            for (int i = 0; i < LOOKUPS; i++) {
+                futures.add(resolver.resolveAsync("www.zone1.tld0", 1));
+            }
+            String address = null;
+            for (CompletableFuture<ResolveResult> future : futures) {
+                ResolveResult result = future.get();
+                Check.isTrue(result.isSuccess(), "coalesced lookup: " + result.getStatus());
+                address = address == null ? result.getRecords().get(0).getValue() : address;
+                Check.equal(address, result.getRecords().get(0).getValue(), "same answer for every lookup");
+            }
+            Check.equal(3L, simulator.getQueryCount(), "one walk through root, TLD and zone");
+            Check.equal((long) LOOKUPS - 1, resolver.getCoalescedCount(), "lookups joined to the first");
+        }
+    }
+
+    private static void gluelessNameserversResolvedTogether() throws Exception {
+        try (ZoneSimulator simulator = simulator("outofzone=1");
+             Resolver resolver = new Resolver(simulator.getRootAddress(), simulator.getPort())) {
+            ResolveResult result = resolver.resolve("www.zone1.tld1", 1);
+            Check.isTrue(result.isSuccess(), "resolved through glueless nameservers: " + result.getStatus());
+            DelegationCache.Delegation cut = resolver.getDelegationCache().findClosest("www.zone1.tld1");
+            Check.equal("zone1.tld1", cut.getZone(), "glueless cut cached");
+            Check.equal(2, cut.getNameservers().size(), "nameservers of the cut");
+            // the lookup goes on at the first address; the other nameserver's lookup still finishes
+            long deadline = System.currentTimeMillis() + 2000;
+            while (cut.getAddresses().size() < 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Check.equal(2, cut.getAddresses().size(), "both nameservers resolved");
+
+            long queries = simulator.getQueryCount();
+            ResolveResult sibling = resolver.resolve("www.zone2.tld1", 1);
+            Check.isTrue(sibling.isSuccess(), "zone sharing a nameserver: " + sibling.getStatus());
+            // the shared nameserver's address is cached; the other is asked of its cached zone
+            Check.isTrue(sibling.getQueryCount() <= 3,
+                    "TLD, the other nameserver's zone and the zone: " + sibling.getQueryCount());
+            Check.isTrue(simulator.getQueryCount() - queries <= 3, "upstream queries for the sibling zone");
+        }
+    }
+
+    private static ZoneSimulator simulator(String outOfZone) throws Exception {
+        ZoneSimulator.Settings settings = new ZoneSimulator.Settings();
+        settings.apply("tlds=3", "zones=4", "servers=4", "latency=20", outOfZone);
+        return new ZoneSimulator(settings);
+    }
+}
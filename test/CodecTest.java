@@ -0,0 +1,125 @@
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Round trips through the wire format: queries encoded then parsed back, the packets of
+ * {@link PacketCorpus} decoded, and {@link FakeNameServer}'s answers to encoded queries.
+ */
+public class CodecTest {
+    public static void main(String[] args) throws Exception {
+        encodedQueryParsesBack();
+        bufferEncodingMatchesArrayEncoding();
+        plainAnswerDecodes();
+        compressedReferralDecodes();
+        largeAdditionalDecodes();
+        fakeServerAnswersEncodedQuery();
+        System.out.println("CodecTest passed");
+    }
+
+    private static void encodedQueryParsesBack() throws Exception {
+        byte[] query = DNSQuery.encode(0x1234, "www.cs.ubc.ca", 28);
+        DNSMessage message = new DNSMessage(query, query.length);
+        Check.equal(0x1234, message.getId(), "query id");
+        Check.isTrue(!message.isResponse(), "a query is not a response");
+        Check.equal(1, message.getQuestionCount(), "question count");
+        Check.equal("www.cs.ubc.ca", message.getQuestionName(), "question name");
+        Check.equal(28, message.getQuestionType(), "question type");
+        Check.equal(1, message.getQuestionClass(), "question class");
+        Check.equal(0, message.getAdditionalCount(), "no OPT record without EDNS");
+
+        byte[] edns = DNSQuery.encode(7, "example.com", 1, 1232);
+        message = new DNSMessage(edns, edns.length);
+        Check.equal(1, message.getAdditionalCount(), "OPT record with EDNS");
+        Check.isTrue(message.nextRecord(), "OPT record present");
+        Check.equal(DNSQuery.TYPE_OPT, message.getRecordType(), "OPT record type");
+        Check.equal(1232, message.getRecordClass(), "advertised UDP payload size");
+    }
+
+    private static void bufferEncodingMatchesArrayEncoding() throws Exception {
+        byte[] expected = DNSQuery.encode(42, "a.very.deeply.nested.name.example.com", 1, 1232);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(DNSQuery.MAX_QUERY_SIZE);
+        int length = DNSQuery.encode(buffer, 42, DNSName.of("a.very.deeply.nested.name.example.com"), 1, 1232);
+        byte[] actual = new byte[length];
+        buffer.get(0, actual);
+        Check.equal(ByteBuffer.wrap(expected), ByteBuffer.wrap(actual), "encoded query");
+    }
+
+    private static void plainAnswerDecodes() throws Exception {
+        byte[] packet = PacketCorpus.plainAnswer();
+        DNSResponse response = new DNSResponse(packet, packet.length);
+        response.decodeRecords();
+        Check.equal(0x1234, response.getQueryID(), "response id");
+        Check.isTrue(response.isAuthoritative(), "authoritative answer");
+        Check.equal(0, response.getRCode(), "rcode");
+        List<ResponseRecord> answers = response.getAnswers();
+        Check.equal(1, answers.size(), "answer count");
+        Check.equal("www.cs.ubc.ca", answers.get(0).getName(), "answer owner");
+        Check.equal(1, answers.get(0).getType(), "answer type");
+        Check.equal(300, answers.get(0).getTtl(), "answer TTL");
+        Check.equal("142.103.6.5", answers.get(0).getValue(), "answer address");
+    }
+
+    private static void compressedReferralDecodes() throws Exception {
+        byte[] packet = PacketCorpus.compressedReferral();
+        DNSResponse response = new DNSResponse(packet, packet.length);
+        response.decodeRecords();
+        Check.isTrue(!response.isAuthoritative(), "a referral is not authoritative");
+        Check.equal(0, response.getAnswers().size(), "referral answers");
+        Check.equal(13, response.getNameservers().size(), "referral nameservers");
+        Check.equal(26, response.getAdditional().size(), "referral glue");
+        for (int i = 0; i < 13; i++) {
+            char c = (char) ('a' + i);
+            ResponseRecord ns = response.getNameservers().get(i);
+            Check.equal("ca", ns.getName(), "nameserver owner " + i);
+            Check.equal(c + ".ca-servers.ca", ns.getValue(), "nameserver name " + i);
+            Check.equal(c + ".ca-servers.ca", response.getAdditional().get(2 * i).getName(), "glue owner " + i);
+            Check.equal("199.4.144." + (i + 1), response.getAdditional().get(2 * i).getValue(), "A glue " + i);
+            Check.isTrue(response.getAdditional().get(2 * i + 1).isIPV6(), "AAAA glue " + i);
+        }
+
+        DelegationCache.Delegation cut = new DelegationCache().putReferral("", "www.cs.ubc.ca",
+                response.getNameservers(), response.getAdditional());
+        Check.equal("ca", cut == null ? null : cut.getZone(), "zone cut taken from the referral");
+        Check.equal(13, cut.getNameservers().size(), "nameservers of the cut");
+        Check.equal(13, cut.getAddresses().size(), "IPv4 glue of the cut");
+        Check.equal(26, cut.getAddresses(true).size(), "IPv4 and IPv6 glue of the cut");
+        Check.equal(null, new DelegationCache().putReferral("ca", "www.cs.ubc.ca", response.getNameservers(),
+                response.getAdditional()), "referral to the zone that sent it");
+    }
+
+    private static void largeAdditionalDecodes() throws Exception {
+        byte[] packet = PacketCorpus.largeAdditional();
+        DNSResponse response = new DNSResponse(packet, packet.length);
+        response.decodeRecords();
+        Check.equal(16, response.getAnswers().size(), "answers");
+        Check.equal(8, response.getNameservers().size(), "nameservers");
+        Check.equal(16, response.getAdditional().size(), "additional records");
+        Check.equal("203.0.113.16", response.getAnswers().get(15).getValue(), "last answer");
+        Check.equal("ns8.dns.example.net", response.getNameservers().get(7).getValue(), "last nameserver");
+
+        DNSMessage message = new DNSMessage(packet, packet.length);
+        int records = 0;
+        while (message.nextRecord()) {
+            records++;
+        }
+        Check.equal(40, records, "records walked by the flyweight");
+    }
+
+    private static void fakeServerAnswersEncodedQuery() throws Exception {
+        PacketWriter writer = new PacketWriter(512);
+        byte[] query = DNSQuery.encode(99, "host1.example.test", 1);
+        byte[] packet = FakeNameServer.respond(2, new DNSMessage(query, query.length), writer);
+        DNSResponse response = new DNSResponse(packet, packet.length);
+        response.decodeRecords();
+        Check.equal(99, response.getQueryID(), "answer id matches the query");
+        Check.equal(1, response.getAnswers().size(), "one answer");
+        Check.equal("host1.example.test", response.getAnswers().get(0).getName(), "answer owner");
+
+        query = DNSQuery.encode(100, "nx1.example.test", 1);
+        packet = FakeNameServer.respond(2, new DNSMessage(query, query.length), writer);
+        response = new DNSResponse(packet, packet.length);
+        response.decodeRecords();
+        Check.equal(3, response.getRCode(), "NXDOMAIN for an nx name");
+    }
+}
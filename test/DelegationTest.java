@@ -0,0 +1,89 @@
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Lookups through {@link ZoneSimulator} that depend on how referrals are taken: lookups
+ * starting at the closest cached cut, TLD servers named under another TLD, whose glue comes
+ * from the root, zones whose nameservers are named in another zone and come without glue,
+ * and cuts replaced by later referrals. Each checks the answer and the number of queries
+ * sent upstream.
+ */
+public class DelegationTest {
+    public static void main(String[] args) throws Exception {
+        lookupsStartAtClosestCut();
+        glueForServersUnderAnotherTld();
+        gluelessDelegation();
+        System.out.println("DelegationTest passed");
+    }
+
+    private static void lookupsStartAtClosestCut() throws Exception {
+        try (ZoneSimulator simulator = simulator("outofzone=0");
+             Resolver resolver = new Resolver(simulator.getRootAddress(), simulator.getPort())) {
+            ResolveResult cold = resolver.resolve("www.zone1.tld0", 1);
+            Check.isTrue(cold.isSuccess(), "cold lookup: " + cold.getStatus());
+            Check.equal(3, cold.getQueryCount(), "cold lookup walks root, TLD and zone");
+            Check.equal(2, resolver.resolve("www.zone2.tld0", 1).getQueryCount(), "other zone starts at the TLD");
+            Check.equal(1, resolver.resolve("mail.zone1.tld0", 1).getQueryCount(), "same zone starts at the zone");
+            Check.equal(3, resolver.resolve("www.zone1.tld2", 1).getQueryCount(), "other TLD starts at the root");
+            Check.equal(ResolveStatus.NAME_ERROR, resolver.resolve("nx.zone3.tld0", 1).getStatus(),
+                    "NXDOMAIN from a zone reached through a cached cut");
+        }
+    }
+
+    private static void glueForServersUnderAnotherTld() throws Exception {
+        try (ZoneSimulator simulator = simulator("outofzone=0");
+             Resolver resolver = new Resolver(simulator.getRootAddress(), simulator.getPort())) {
+            ResolveResult result = resolver.resolve("www.zone1.tld1", 1);
+            Check.isTrue(result.isSuccess(), "resolved through tld1.nic.tld0: " + result.getStatus());
+            Check.equal(3, result.getQueryCount(), "root, TLD and zone, using the root's glue");
+            Check.equal("tld1", resolver.getDelegationCache().findClosest("tld1").getZone(), "TLD cut cached");
+            Check.equal("/127.0.1.2", resolver.getDelegationCache().findClosest("tld1").getAddresses().get(0)
+                    .toString(), "glue kept for a nameserver under tld0");
+        }
+    }
+
+    private static void gluelessDelegation() throws Exception {
+        try (ZoneSimulator simulator = simulator("outofzone=1");
+             Resolver resolver = new Resolver(simulator.getRootAddress(), simulator.getPort())) {
+            ResolveResult result = resolver.resolve("www.zone1.tld1", 1);
+            Check.isTrue(result.isSuccess(), "resolved through srvN.zone0.tld2: " + result.getStatus());
+            // root and tld1, then root, tld2 and zone0.tld2 for each of the two nameservers at most, then the zone
+            Check.isTrue(result.getQueryCount() >= 6 && result.getQueryCount() <= 9,
+                    "queries for a glueless delegation: " + result.getQueryCount());
+
+            ResolveResult next = resolver.resolve("other.zone1.tld1", 1);
+            Check.isTrue(next.isSuccess(), "second name in the zone: " + next.getStatus());
+            Check.equal(1, next.getQueryCount(), "nameserver addresses cached with the cut");
+
+            // the TLD's referral again, still without glue: the cut is replaced, keeping the resolved addresses
+            DelegationCache delegations = resolver.getDelegationCache();
+            DelegationCache.Delegation cut = delegations.findClosest("www.zone1.tld1");
+            List<ResponseRecord> nameservers = new ArrayList<>();
+            for (String nsName : cut.getNameservers()) {
+                nameservers.add(new ResponseRecord(DNSName.of("zone1.tld1"), 2, 1, 86400,
+                        new RData.Name(2, DNSName.of(nsName))));
+            }
+            DelegationCache.Delegation replaced = delegations.putReferral("tld1", "www.zone1.tld1", nameservers,
+                    List.of());
+            Check.isTrue(replaced != cut, "cut from the TLD replaces the cached one");
+            Check.equal(cut.getAddresses(), replaced.getAddresses(), "resolved addresses kept");
+
+            // the root claiming the zone, with glue to a server that does not serve it, is not taken
+            DelegationCache.Delegation claimed = delegations.putReferral("", "www.zone1.tld1",
+                    List.of(new ResponseRecord(DNSName.of("zone1.tld1"), 2, 1, 86400,
+                            new RData.Name(2, DNSName.of("ns9.zone1.tld1")))),
+                    List.of(new ResponseRecord(DNSName.of("ns9.zone1.tld1"), 1, 1, 86400, new RData.A(0x7F000201))));
+            Check.isTrue(claimed == replaced, "cut from the TLD kept over one from the root");
+            ResolveResult after = resolver.resolve("third.zone1.tld1", 1);
+            Check.isTrue(after.isSuccess(), "lookup after the replacements: " + after.getStatus());
+            Check.equal(1, after.getQueryCount(), "still starts at the zone");
+        }
+    }
+
+    private static ZoneSimulator simulator(String outOfZone) throws Exception {
+        ZoneSimulator.Settings settings = new ZoneSimulator.Settings();
+        settings.apply("tlds=3", "zones=4", "servers=4", outOfZone);
+        return new ZoneSimulator(settings);
+    }
+}
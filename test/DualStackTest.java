@@ -0,0 +1,45 @@
+
+/**
+ * A and AAAA lookups of a name in one call through {@link ZoneSimulator}: cold, the AAAA
+ * lookup waits for the A lookup's walk and asks only the zone; from a cached cut both go
+ * at once. A name with addresses of one family only succeeds, a name that does not exist
+ * fails for both, and a repeated lookup is answered from the cache.
+ */
+public class DualStackTest {
+    public static void main(String[] args) throws Exception {
+        ZoneSimulator.Settings settings = new ZoneSimulator.Settings();
+        settings.apply("tlds=1", "zones=4", "servers=4");
+        try (ZoneSimulator simulator = new ZoneSimulator(settings);
+             Resolver resolver = new Resolver(simulator.getRootAddress(), simulator.getPort())) {
+            DualStackResult cold = resolver.resolveDualStack("www.zone1.tld0");
+            Check.isTrue(cold.isSuccess(), "both families resolved: " + cold.getStatus());
+            Check.isTrue(cold.getIPv4().isSuccess() && cold.getIPv6().isSuccess(), "A and AAAA found");
+            Check.equal(2, cold.getRecords().size(), "A record then AAAA record");
+            Check.equal(1, cold.getRecords().get(0).getType(), "A record first");
+            Check.equal(28, cold.getRecords().get(1).getType(), "AAAA record second");
+            Check.equal(3, cold.getIPv4().getQueryCount(), "A lookup walks root, TLD and zone");
+            Check.equal(1, cold.getIPv6().getQueryCount(), "AAAA lookup asks only the zone");
+            Check.equal(4L, simulator.getQueryCount(), "upstream queries for the cold lookup");
+
+            long queries = simulator.getQueryCount();
+            DualStackResult ipv4Only = resolver.resolveDualStack("srv1.zone2.tld0");
+            Check.equal(ResolveStatus.SUCCESS, ipv4Only.getStatus(), "one family is enough");
+            Check.equal(ResolveStatus.NO_ANSWER, ipv4Only.getIPv6().getStatus(), "no AAAA record");
+            Check.equal("127.0.2.2", ipv4Only.getRecords().get(0).getValue(), "the A record");
+            Check.equal(2, ipv4Only.getIPv4().getQueryCount(), "A lookup from the cached TLD cut");
+            Check.equal(2, ipv4Only.getIPv6().getQueryCount(), "AAAA lookup started with it from the same cut");
+            Check.equal(queries + 4, simulator.getQueryCount(), "upstream queries from the cached cut");
+
+            DualStackResult missing = resolver.resolveDualStack("nx1.zone3.tld0");
+            Check.equal(ResolveStatus.NAME_ERROR, missing.getStatus(), "name that does not exist");
+            Check.equal(ResolveStatus.NAME_ERROR, missing.getIPv6().getStatus(), "for either family");
+
+            queries = simulator.getQueryCount();
+            DualStackResult cached = resolver.resolveDualStack("www.zone1.tld0");
+            Check.equal(cold.getRecords().size(), cached.getRecords().size(), "same records from the cache");
+            Check.equal(0, cached.getQueryCount(), "answered from the cache");
+            Check.equal(queries, simulator.getQueryCount(), "nothing sent upstream");
+        }
+        System.out.println("DualStackTest passed");
+    }
+}
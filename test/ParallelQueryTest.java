@@ -0,0 +1,71 @@
+
+import java.net.InetAddress;
+
+/**
+ * Lookups through {@link ZoneSimulator} to a zone whose first server is down: with queries
+ * staggered across the zone's servers the second one answers long before the first would
+ * time out, and asked one at a time the lookup waits that timeout out. The down server is
+ * made to look fastest, so it is asked first.
+ */
+public class ParallelQueryTest {
+    private static final String DOWN = "127.0.2.1";    // ns1 of zone0.tld0
+    private static final String UP = "127.0.2.2";      // ns2 of zone0.tld0
+
+    public static void main(String[] args) throws Exception {
+        staggeredQueryOvertakesDownServer();
+        serialQueryWaitsForTimeout();
+        System.out.println("ParallelQueryTest passed");
+    }
+
+    private static void staggeredQueryOvertakesDownServer() throws Exception {
+        try (ZoneSimulator simulator = simulator();
+             Resolver resolver = new Resolver(simulator.getRootAddress(), simulator.getPort())) {
+            resolver.setStaggerDelay(20);
+            downServerFirst(resolver);
+            long start = System.nanoTime();
+            ResolveResult result = resolver.resolve("www.zone0.tld0", 1);
+            long millis = (System.nanoTime() - start) / 1000000;
+            Check.isTrue(result.isSuccess(), "answered by the second server: " + result.getStatus());
+            Check.equal(3, result.getQueryCount(), "one question each to the root, TLD and zone");
+            Check.equal(4L, simulator.getQueryCount(), "the zone's question sent to both its servers");
+            Check.equal(1L, simulator.getDroppedCount(), "the down server got one query");
+            Check.isTrue(millis < 600, "answered within the stagger, not the timeout: " + millis + " ms");
+        }
+    }
+
+    private static void serialQueryWaitsForTimeout() throws Exception {
+        try (ZoneSimulator simulator = simulator();
+             Resolver resolver = new Resolver(simulator.getRootAddress(), simulator.getPort())) {
+            resolver.setMaxParallelQueries(1);
+            resolver.setStaggerDelay(20);
+            long timeout = downServerFirst(resolver);
+            long start = System.nanoTime();
+            ResolveResult result = resolver.resolve("www.zone0.tld0", 1);
+            long millis = (System.nanoTime() - start) / 1000000;
+            Check.isTrue(result.isSuccess(), "answered by the second server: " + result.getStatus());
+            Check.equal(4L, simulator.getQueryCount(), "the zone's question sent to both its servers");
+            Check.isTrue(millis >= timeout, "waited " + millis + " ms for a " + timeout + " ms timeout");
+        }
+    }
+
+    /**
+     * Give the down server a short measured RTT, with a timeout of over a second, and the
+     * other server a long one.
+     *
+     * @return the down server's timeout, in milliseconds.
+     */
+    private static long downServerFirst(Resolver resolver) throws Exception {
+        ServerStats stats = resolver.getServerStats();
+        stats.recordRtt(InetAddress.getByName(DOWN), 400000);
+        stats.recordRtt(InetAddress.getByName(UP), 5000000);
+        Check.isTrue(stats.getSrttMicros(InetAddress.getByName(DOWN)) < stats.getSrttMicros(InetAddress.getByName(UP)),
+                "down server ordered first");
+        return stats.getTimeoutMillis(InetAddress.getByName(DOWN));
+    }
+
+    private static ZoneSimulator simulator() throws Exception {
+        ZoneSimulator.Settings settings = new ZoneSimulator.Settings();
+        settings.apply("tlds=1", "zones=4", "servers=4", "down=1");
+        return new ZoneSimulator(settings);
+    }
+}
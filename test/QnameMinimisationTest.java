@@ -0,0 +1,66 @@
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lookups through {@link ZoneSimulator} with QNAME minimisation: each zone's servers are
+ * asked for one label more than is known, and an NXDOMAIN for a minimised name ends the
+ * lookup and covers every name below it (RFC 8020). The questions sent are read from the
+ * lookup's trace.
+ */
+public class QnameMinimisationTest {
+    public static void main(String[] args) throws Exception {
+        minimisedQuestions();
+        nameErrorCutsTheWalk();
+        System.out.println("QnameMinimisationTest passed");
+    }
+
+    private static void minimisedQuestions() throws Exception {
+        try (ZoneSimulator simulator = simulator();
+             Resolver resolver = new Resolver(simulator.getRootAddress(), simulator.getPort())) {
+            Check.equal(3, resolver.resolve("a.b.www.zone1.tld0", 1).getQueryCount(), "full name asked of each zone");
+
+            LinkedBlockingQueue<ResolutionTrace> traces = new LinkedBlockingQueue<>();
+            resolver.setTraceSampling(1, traces::add);
+            resolver.setQnameMinimisation(true);
+            ResolveResult result = resolver.resolve("a.b.www.zone2.tld1", 1);
+            Check.isTrue(result.isSuccess(), "minimised lookup: " + result.getStatus());
+            Check.equal(5, result.getQueryCount(), "one label more per query below the zone");
+
+            List<String> asked = new ArrayList<>();
+            for (ResolutionTrace.Event event : traces.poll(5, TimeUnit.SECONDS).getEvents()) {
+                if (event.getKind() == ResolutionTrace.Kind.QUERY) {
+                    asked.add(event.getDetail() == null ? event.getName() : event.getDetail());
+                }
+            }
+            Check.equal(List.of("tld1", "zone2.tld1", "www.zone2.tld1", "b.www.zone2.tld1", "a.b.www.zone2.tld1"),
+                    asked, "questions sent");
+        }
+    }
+
+    private static void nameErrorCutsTheWalk() throws Exception {
+        try (ZoneSimulator simulator = simulator();
+             Resolver resolver = new Resolver(simulator.getRootAddress(), simulator.getPort())) {
+            resolver.setQnameMinimisation(true);
+            ResolveResult result = resolver.resolve("a.b.nxhost.zone1.tld0", 1);
+            Check.equal(ResolveStatus.NAME_ERROR, result.getStatus(), "name below a name that does not exist");
+            Check.equal(3, result.getQueryCount(), "walk stopped at the minimised NXDOMAIN");
+            Check.equal("nxhost.zone1.tld0", resolver.getAnswerCache().findNameError("c.nxhost.zone1.tld0"),
+                    "NXDOMAIN cached for the minimised name");
+
+            long queries = simulator.getQueryCount();
+            ResolveResult below = resolver.resolve("c.d.nxhost.zone1.tld0", 28);
+            Check.equal(ResolveStatus.NAME_ERROR, below.getStatus(), "other name below, other type");
+            Check.equal(0, below.getQueryCount(), "answered from the cached NXDOMAIN");
+            Check.equal(queries, simulator.getQueryCount(), "nothing sent upstream");
+        }
+    }
+
+    private static ZoneSimulator simulator() throws Exception {
+        ZoneSimulator.Settings settings = new ZoneSimulator.Settings();
+        settings.apply("tlds=2", "zones=4", "servers=4");
+        return new ZoneSimulator(settings);
+    }
+}
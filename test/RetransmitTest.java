@@ -0,0 +1,51 @@
+
+import java.net.InetAddress;
+
+/**
+ * Per-server timeouts through {@link ZoneSimulator}: a server that answers gets a timeout
+ * from its measured RTT instead of the initial second, a server that is down has its
+ * timeout doubled on each miss and is marked lame after three in a row, and then it is
+ * asked only after the zone's other server. Queries go to one server at a time, so every
+ * miss is waited out.
+ */
+public class RetransmitTest {
+    private static final String TLD = "127.0.1.1";
+    private static final String DOWN = "127.0.2.1";    // ns1 of zone0.tld0
+    private static final String UP = "127.0.2.2";      // ns2 of zone0.tld0
+
+    public static void main(String[] args) throws Exception {
+        ZoneSimulator.Settings settings = new ZoneSimulator.Settings();
+        settings.apply("tlds=1", "zones=4", "servers=4", "down=1");
+        try (ZoneSimulator simulator = new ZoneSimulator(settings);
+             Resolver resolver = new Resolver(simulator.getRootAddress(), simulator.getPort())) {
+            resolver.setMaxParallelQueries(1);
+            ServerStats stats = resolver.getServerStats();
+            InetAddress down = InetAddress.getByName(DOWN);
+            stats.recordRtt(down, 10000);
+            stats.recordRtt(InetAddress.getByName(UP), 5000000);
+            long timeout = stats.getTimeoutMillis(down);
+
+            for (int i = 1; i <= 3; i++) {
+                Check.isTrue(!stats.isLame(down), "not lame after " + (i - 1) + " timeouts");
+                ResolveResult result = resolver.resolve("host" + i + ".zone0.tld0", 1);
+                Check.isTrue(result.isSuccess(), "answered after the down server timed out: " + result.getStatus());
+                Check.equal((long) i, simulator.getDroppedCount(), "queries to the down server");
+                Check.equal(2 * timeout, stats.getTimeoutMillis(down), "timeout doubled after a miss");
+                timeout *= 2;
+            }
+            Check.isTrue(stats.isLame(down), "lame after three timeouts in a row");
+            long measured = stats.getTimeoutMillis(InetAddress.getByName(TLD));
+            Check.isTrue(measured < 1000, "timeout of a server that answers, from its RTT: " + measured);
+
+            long queries = simulator.getQueryCount();
+            long start = System.nanoTime();
+            ResolveResult result = resolver.resolve("host4.zone0.tld0", 1);
+            long millis = (System.nanoTime() - start) / 1000000;
+            Check.isTrue(result.isSuccess(), "answered with the lame server last: " + result.getStatus());
+            Check.equal(queries + 1, simulator.getQueryCount(), "only the live server asked");
+            Check.equal(3L, simulator.getDroppedCount(), "lame server not asked");
+            Check.isTrue(millis < timeout, "no timeout waited: " + millis + " ms");
+        }
+        System.out.println("RetransmitTest passed");
+    }
+}
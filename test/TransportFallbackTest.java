@@ -0,0 +1,47 @@
+
+/**
+ * Lookups through {@link ZoneSimulator} whose servers cannot answer the way they are first
+ * asked: truncated UDP answers are fetched again over TCP, and servers that answer FORMERR
+ * to an OPT record are asked again without one, and remembered as such.
+ */
+public class TransportFallbackTest {
+    public static void main(String[] args) throws Exception {
+        truncatedAnswersRetriedOverTcp();
+        formatErrorRetriedWithoutEdns();
+        System.out.println("TransportFallbackTest passed");
+    }
+
+    private static void truncatedAnswersRetriedOverTcp() throws Exception {
+        try (ZoneSimulator simulator = simulator("truncate=1");
+             Resolver resolver = new Resolver(simulator.getRootAddress(), simulator.getPort())) {
+            ResolveResult result = resolver.resolve("www.zone1.tld0", 1);
+            Check.isTrue(result.isSuccess(), "answered over TCP: " + result.getStatus());
+            Check.equal(1, result.getRecords().size(), "the answer fetched over TCP");
+            Check.equal(3, result.getQueryCount(), "one question each to the root, TLD and zone");
+            Check.equal(3L, simulator.getTruncatedCount(), "every UDP answer truncated");
+            Check.equal(3L, simulator.getTcpQueryCount(), "every question asked again over TCP");
+            Check.equal(3L, resolver.getMetrics().getTcpRetryCount(), "TCP retries counted");
+        }
+    }
+
+    private static void formatErrorRetriedWithoutEdns() throws Exception {
+        try (ZoneSimulator simulator = simulator("noedns=1");
+             Resolver resolver = new Resolver(simulator.getRootAddress(), simulator.getPort())) {
+            ResolveResult result = resolver.resolve("www.zone1.tld0", 1);
+            Check.isTrue(result.isSuccess(), "answered without EDNS: " + result.getStatus());
+            Check.equal(3, result.getQueryCount(), "one question each to the root, TLD and zone");
+            Check.equal(6L, simulator.getQueryCount(), "every server asked with and then without EDNS");
+            Check.equal(3L, resolver.getMetrics().getEdnsFallbackCount(), "EDNS fallbacks counted");
+
+            ResolveResult next = resolver.resolve("mail.zone1.tld0", 1);
+            Check.isTrue(next.isSuccess(), "second lookup: " + next.getStatus());
+            Check.equal(7L, simulator.getQueryCount(), "server remembered as not speaking EDNS");
+        }
+    }
+
+    private static ZoneSimulator simulator(String misbehaviour) throws Exception {
+        ZoneSimulator.Settings settings = new ZoneSimulator.Settings();
+        settings.apply("tlds=1", "zones=4", "servers=4", misbehaviour);
+        return new ZoneSimulator(settings);
+    }
+}